@@ -0,0 +1,206 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ArrayFormula is one formula assigned to a whole run of rows in a column, such as
+ * "C0:C999999 = A0*B0+5". The formula is written for the first row, and every later row
+ * reads cells the same number of rows further down.
+ * <br>
+ * The formula is parsed once and shared by every cell in the run. Its dependencies are
+ * tracked as column ranges rather than one entry per cell, and when the whole run has to be
+ * computed it is evaluated in bulk with ExpressionTree.evaluateRows.
+ * @author Chelsea Dacones
+ * @author Makai Martines
+ * @author Elias Peterson
+ * @author Alexis Zakrzewski
+ */
+public class ArrayFormula {
+    /** The column this formula fills. */
+    private final int myColumn;
+
+    /** The first row this formula fills. */
+    private final int myFromRow;
+
+    /** The last row this formula fills. */
+    private final int myToRow;
+
+    /** The formula as written for the first row. */
+    private final ExpressionTree myTree;
+
+    /** The columns of the cells the formula refers to. */
+    private final int[] mySourceColumns;
+
+    /** For each entry of mySourceColumns, how many rows below the filled row the referenced cell is. */
+    private final int[] mySourceOffsets;
+
+    /** How many cells in the run still hold this formula, rather than having been given their own. */
+    private final AtomicInteger myLiveCells = new AtomicInteger();
+
+    /**
+     * Creates an array formula.
+     * @param theColumn The column to fill.
+     * @param theFromRow The first row to fill.
+     * @param theToRow The last row to fill.
+     * @param theTree The formula as written for the first row.
+     */
+    ArrayFormula(final int theColumn, final int theFromRow, final int theToRow, final ExpressionTree theTree) {
+        myColumn = theColumn;
+        myFromRow = theFromRow;
+        myToRow = theToRow;
+        myTree = theTree;
+        List<CellToken> sources = theTree.getDependencies();
+        mySourceColumns = new int[sources.size()];
+        mySourceOffsets = new int[sources.size()];
+        for (int i = 0; i < sources.size(); i++) {
+            mySourceColumns[i] = sources.get(i).getColumn();
+            mySourceOffsets[i] = sources.get(i).getRow() - theFromRow;
+        }
+    }
+
+    /** @return The column this formula fills. */
+    public int getColumn() {
+        return myColumn;
+    }
+
+    /** @return The first row this formula fills. */
+    public int getFromRow() {
+        return myFromRow;
+    }
+
+    /** @return The last row this formula fills. */
+    public int getToRow() {
+        return myToRow;
+    }
+
+    /** @return The number of rows this formula fills. */
+    public int getRowCount() {
+        return myToRow - myFromRow + 1;
+    }
+
+    /** @return The formula as written for the first row. */
+    ExpressionTree getTree() {
+        return myTree;
+    }
+
+    /**
+     * Returns this formula as it is once rows or columns are inserted or deleted, if it can stay
+     * one array formula: every row it fills, and every cell each row reads, must move the same
+     * distance. A column it reads may be deleted, in which case every row becomes an error.
+     * @param theRelocation Where the cells move.
+     * @return This formula if nothing it fills or reads moves, a moved copy, or null if its rows
+     *         have to be given formulas of their own, or are gone.
+     */
+    ArrayFormula relocate(final Relocation theRelocation) {
+        if (!theRelocation.movesRows()) {
+            final int column = theRelocation.map(myColumn);
+            if (column < 0) {
+                return null;
+            }
+            final ExpressionTree tree = myTree.relocate(theRelocation, 0);
+            return column == myColumn && tree == myTree ? this : new ArrayFormula(column, myFromRow, myToRow, tree);
+        }
+        final int shift = theRelocation.shiftOf(myFromRow, myToRow);
+        if (shift == Relocation.NOT_UNIFORM) {
+            return null;
+        }
+        for (int offset : mySourceOffsets) {
+            if (theRelocation.shiftOf(myFromRow + offset, myToRow + offset) != shift) {
+                return null;
+            }
+        }
+        return shift == 0 ? this : new ArrayFormula(myColumn, myFromRow + shift, myToRow + shift,
+                myTree.relocate(theRelocation, 0));
+    }
+
+    /**
+     * Returns the cells one row of this formula refers to.
+     * @param theRow The filled row.
+     * @return The referenced cells.
+     */
+    List<CellToken> getDependencies(final int theRow) {
+        List<CellToken> dependencies = new ArrayList<>(mySourceColumns.length);
+        for (int i = 0; i < mySourceColumns.length; i++) {
+            dependencies.add(new CellToken(mySourceColumns[i], theRow + mySourceOffsets[i]));
+        }
+        return dependencies;
+    }
+
+    /**
+     * Evaluates one row of this formula.
+     * @param theValues The values to read cell references from.
+     * @param theRow The filled row.
+     * @return The row's value.
+     */
+    int evaluate(final CellValues theValues, final int theRow) {
+        final int shift = theRow - myFromRow;
+        return myTree.evaluate((row, column) -> theValues.getValue(row + shift, column));
+    }
+
+    /**
+     * Evaluates every row of this formula at once.
+     * @param theValues The values to read cell references from.
+     * @param theErrors Set to true for each row, counted from the first, whose value couldn't be evaluated.
+     * @return The value of each row, counted from the first.
+     */
+    int[] evaluateAll(final SheetSnapshot theValues, final boolean[] theErrors) {
+        return myTree.evaluateRows(theValues, getRowCount(), theErrors);
+    }
+
+    /**
+     * Returns the formula text of one row, with its cell references moved to that row.
+     * @param theRow The filled row.
+     * @return The row's formula.
+     */
+    String getFormula(final int theRow) {
+        return myTree.toFormula(theRow - myFromRow);
+    }
+
+    /**
+     * Returns whether any row reads a cell in the given column between the given rows.
+     * @param theColumn The column.
+     * @param theFromRow The first row of the range.
+     * @param theToRow The last row of the range.
+     * @return True if some row of this formula refers into the range.
+     */
+    boolean readsRange(final int theColumn, final int theFromRow, final int theToRow) {
+        for (int i = 0; i < mySourceColumns.length; i++) {
+            if (mySourceColumns[i] == theColumn
+                    && myFromRow + mySourceOffsets[i] <= theToRow && myToRow + mySourceOffsets[i] >= theFromRow) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Finds the rows of this formula that read a given cell.
+     * @param theCell The cell that was read.
+     * @param theRows Receives a CellToken for each filled row that reads it.
+     */
+    void findReaders(final CellToken theCell, final Collection<CellToken> theRows) {
+        for (int i = 0; i < mySourceColumns.length; i++) {
+            final int row = theCell.getRow() - mySourceOffsets[i];
+            if (mySourceColumns[i] == theCell.getColumn() && row >= myFromRow && row <= myToRow) {
+                theRows.add(new CellToken(myColumn, row));
+            }
+        }
+    }
+
+    /**
+     * Records that a cell was given this formula.
+     * @return True if this is the only cell holding the formula.
+     */
+    boolean addCell() {
+        return myLiveCells.getAndIncrement() == 0;
+    }
+
+    /**
+     * Records that a cell that held this formula was given another one.
+     * @return True if no cell holds this formula any more.
+     */
+    boolean removeCell() {
+        return myLiveCells.decrementAndGet() == 0;
+    }
+}
@@ -0,0 +1,174 @@
+import java.io.Closeable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Autosave saves a Spreadsheet to a file in the background once it has stopped changing for a
+ * while. Each published change restarts the wait, so a burst of edits leads to one save after
+ * the last of them rather than one save per edit. Saves never overlap: if the sheet changes
+ * while a save is being written, the next one waits for it to finish.
+ * @author Chelsea Dacones
+ * @author Makai Martines
+ * @author Elias Peterson
+ * @author Alexis Zakrzewski
+ */
+public class Autosave implements Closeable {
+    /** The spreadsheet being saved. */
+    private final Spreadsheet mySheet;
+
+    /** The file the spreadsheet is saved to. */
+    private final String myFilePath;
+
+    /** How long the sheet must go without changing before it is saved, in milliseconds. */
+    private final long myDelay;
+
+    /** Told when each save finishes, with null on success or the reason it failed. */
+    private final Consumer<Throwable> myCallback;
+
+    /** Waits out the delay. */
+    private final ScheduledExecutorService myTimer;
+
+    /** The save waiting for the sheet to stop changing, or null. Guarded by this. */
+    private ScheduledFuture<?> myPendingSave;
+
+    /** Set while a save is being started or written. Guarded by this. */
+    private boolean mySaving;
+
+    /** Set when the sheet changed while a save was being written. Guarded by this. */
+    private boolean myChangedWhileSaving;
+
+    /** Our subscription to the sheet's changes, once it has started. */
+    private volatile Flow.Subscription mySubscription;
+
+    /** Set once close has been called. */
+    private volatile boolean myClosed;
+
+    /**
+     * Starts saving a spreadsheet whenever it has been left unchanged for the given time.
+     * @param theSheet The spreadsheet to save.
+     * @param theFilePath The file to save it to.
+     * @param theDelay How long the sheet must go without changing before it is saved, in milliseconds.
+     * @param theCallback Told on the saving thread when each save finishes, with null on success or
+     *                    the reason it failed; may be null.
+     */
+    public Autosave(final Spreadsheet theSheet, final String theFilePath, final long theDelay,
+                    final Consumer<Throwable> theCallback) {
+        mySheet = theSheet;
+        myFilePath = theFilePath;
+        myDelay = theDelay;
+        myCallback = theCallback;
+        myTimer = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "spreadsheet-autosave");
+            thread.setDaemon(true);
+            return thread;
+        });
+        theSheet.getChanges().subscribe(new Flow.Subscriber<ChangeBatch>() {
+            @Override
+            public void onSubscribe(final Flow.Subscription theSubscription) {
+                mySubscription = theSubscription;
+                if (myClosed) {
+                    theSubscription.cancel();
+                } else {
+                    theSubscription.request(Long.MAX_VALUE);
+                }
+            }
+
+            @Override
+            public void onNext(final ChangeBatch theBatch) {
+                if (!theBatch.isEmpty()) {
+                    changed();
+                }
+            }
+
+            @Override
+            public void onError(final Throwable theError) {
+            }
+
+            @Override
+            public void onComplete() {
+            }
+        });
+    }
+
+    /**
+     * Restarts the wait before the next save.
+     */
+    private synchronized void changed() {
+        if (myClosed) {
+            return;
+        }
+        if (myPendingSave != null) {
+            myPendingSave.cancel(false);
+        }
+        myPendingSave = myTimer.schedule(this::save, myDelay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Starts a save, unless one is already being written, in which case another follows it.
+     */
+    private void save() {
+        synchronized (this) {
+            myPendingSave = null;
+            if (myClosed) {
+                return;
+            }
+            if (mySaving) {
+                myChangedWhileSaving = true;
+                return;
+            }
+            mySaving = true;
+        }
+        // Starting a save waits for every stripe lock, so it is done without holding this: an
+        // edit holding some stripe may be waiting to tell us about a change.
+        CompletableFuture<Void> running;
+        try {
+            running = mySheet.saveInBackground(myFilePath, null);
+        } catch (RuntimeException e) {
+            saved(e);
+            return;
+        }
+        running.whenComplete((theResult, theError) -> saved(theError));
+    }
+
+    /**
+     * Called when a save finishes.
+     * @param theError Null on success, or the reason the save failed.
+     */
+    private void saved(final Throwable theError) {
+        synchronized (this) {
+            mySaving = false;
+            if (myChangedWhileSaving) {
+                myChangedWhileSaving = false;
+                changed();
+            }
+        }
+        if (myCallback != null) {
+            myCallback.accept(theError instanceof CompletionException ? theError.getCause() : theError);
+        }
+    }
+
+    /**
+     * Stops saving. A save already being written is allowed to finish.
+     */
+    @Override
+    public void close() {
+        myClosed = true;
+        Flow.Subscription subscription = mySubscription;
+        if (subscription != null) {
+            subscription.cancel();
+        }
+        synchronized (this) {
+            if (myPendingSave != null) {
+                myPendingSave.cancel(false);
+                myPendingSave = null;
+            }
+        }
+        myTimer.shutdown();
+    }
+}
@@ -0,0 +1,176 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * BatchRunner applies scripted edits to spreadsheet files and writes out the computed
+ * values without ever starting the GUI. It is used by SpreadsheetApp when it is given
+ * command line arguments.
+ * <br>
+ * A workbook is a file written by Spreadsheet.saveToFile. An edit script has one edit
+ * per line in the form "cell=formula", e.g. "B3=A1*2". Blank lines and lines starting
+ * with '#' are ignored. All of a script's edits are applied together and the sheet is
+ * recalculated once.
+ * @author Chelsea Dacones
+ * @author Makai Martines
+ * @author Elias Peterson
+ * @author Alexis Zakrzewski
+ */
+public final class BatchRunner {
+    /** The file name that stands for standard input or standard output. */
+    private static final String STANDARD_STREAM = "-";
+
+    /** The size of the output buffer, large enough that big sheets write in few system calls. */
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /** The usage message printed for bad arguments. */
+    private static final String USAGE =
+            "Usage: SpreadsheetApp --batch <workbook> <script> [output]\n"
+            + "       SpreadsheetApp --jobs <jobfile>\n"
+            + "       SpreadsheetApp --sharded <processes> <workbook> [output]\n"
+            + "Use - for the script to read standard input, or for the output to write standard output.\n"
+            + "Each line of a job file is a tab separated workbook, script and output.\n"
+            + "--sharded calculates a workbook too big for one process in several worker processes.";
+
+    private BatchRunner() {
+    }
+
+    /**
+     * Runs the batch command described by the command line arguments.
+     * @param args the command line arguments
+     * @return the process exit code, 0 on success
+     */
+    public static int run(final String[] args) {
+        Writer standardOut = new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(FileDescriptor.out), StandardCharsets.UTF_8), BUFFER_SIZE);
+        try {
+            if (args.length >= 3 && args.length <= 4 && args[0].equals("--batch")) {
+                runJob(args[1], args[2], args.length == 4 ? args[3] : STANDARD_STREAM, standardOut);
+            } else if (args.length == 2 && args[0].equals("--jobs")) {
+                runJobFile(args[1], standardOut);
+            } else if (args.length >= 3 && args.length <= 4 && args[0].equals("--sharded")) {
+                runSharded(Integer.parseInt(args[1]), args[2], args.length == 4 ? args[3] : STANDARD_STREAM,
+                        standardOut);
+            } else {
+                System.err.println(USAGE);
+                return 2;
+            }
+            return 0;
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Error: " + e.getMessage());
+            return 1;
+        } finally {
+            try {
+                standardOut.flush();
+            } catch (IOException e) {
+                System.err.println("Error writing standard output: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Runs every job listed in a job file, one per line.
+     * @param theJobFile the job file to read
+     * @param theStandardOut where jobs with an output of "-" write their values
+     */
+    private static void runJobFile(final String theJobFile, final Writer theStandardOut) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new FileReader(theJobFile))) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.isBlank() || line.startsWith("#")) continue;
+                String[] job = line.split("\t");
+                if (job.length != 3) {
+                    throw new IllegalArgumentException(theJobFile + " line " + lineNumber
+                            + ": expected workbook, script and output separated by tabs");
+                }
+                runJob(job[0], job[1], job[2], theStandardOut);
+            }
+        }
+    }
+
+    /**
+     * Loads a workbook, applies an edit script to it and writes the computed values.
+     * @param theWorkbook the workbook file to load
+     * @param theScript the edit script, or "-" for standard input
+     * @param theOutput the output file, or "-" for standard output
+     * @param theStandardOut the Writer used for standard output
+     */
+    public static void runJob(final String theWorkbook, final String theScript, final String theOutput,
+                              final Writer theStandardOut) throws IOException {
+        Spreadsheet spreadsheet = Spreadsheet.loadFromFile(theWorkbook);
+
+        Map<CellToken, String> edits;
+        if (theScript.equals(STANDARD_STREAM)) {
+            // Not closed, since that would close System.in for any later job.
+            edits = readScript(new BufferedReader(new InputStreamReader(System.in)), theScript, spreadsheet);
+        } else {
+            try (BufferedReader reader = new BufferedReader(new FileReader(theScript))) {
+                edits = readScript(reader, theScript, spreadsheet);
+            }
+        }
+        spreadsheet.changeCellFormulasAndRecalculate(edits);
+
+        if (theOutput.equals(STANDARD_STREAM)) {
+            spreadsheet.writeValues(theStandardOut);
+        } else {
+            try (Writer writer = new BufferedWriter(new FileWriter(theOutput), BUFFER_SIZE)) {
+                spreadsheet.writeValues(writer);
+            }
+        }
+    }
+
+    /**
+     * Calculates a workbook in worker processes and writes the computed values.
+     * @param theProcesses the number of worker processes
+     * @param theWorkbook the workbook file to calculate
+     * @param theOutput the output file, or "-" for standard output
+     * @param theStandardOut the Writer used for standard output
+     */
+    public static void runSharded(final int theProcesses, final String theWorkbook, final String theOutput,
+                                  final Writer theStandardOut) throws IOException {
+        if (theOutput.equals(STANDARD_STREAM)) {
+            ShardedCalculation.calculateFile(theWorkbook, theProcesses, theStandardOut);
+        } else {
+            try (Writer writer = new BufferedWriter(new FileWriter(theOutput), BUFFER_SIZE)) {
+                ShardedCalculation.calculateFile(theWorkbook, theProcesses, writer);
+            }
+        }
+    }
+
+    /**
+     * Parses an edit script into the formula for each cell it changes.
+     * If a cell is edited more than once, the last edit wins.
+     * @param theReader the script to read
+     * @param theName the script's name, used in error messages
+     * @param theSpreadsheet the spreadsheet the script will be applied to
+     * @return the new formula of each edited cell, in script order
+     */
+    static Map<CellToken, String> readScript(final BufferedReader theReader, final String theName,
+                                             final Spreadsheet theSpreadsheet) throws IOException {
+        Map<CellToken, String> edits = new LinkedHashMap<>();
+        String line;
+        int lineNumber = 0;
+        while ((line = theReader.readLine()) != null) {
+            lineNumber++;
+            if (line.isBlank() || line.startsWith("#")) continue;
+
+            CellToken cellToken = new CellToken();
+            int index = CellAddress.decode(line, 0, line.length(), cellToken);
+            while (index < line.length() && Character.isWhitespace(line.charAt(index))) {
+                index++;
+            }
+            if (cellToken.getRow() == -1 || index >= line.length() || line.charAt(index) != '=') {
+                throw new IllegalArgumentException(theName + " line " + lineNumber + ": expected cell=formula");
+            }
+            if (!theSpreadsheet.isInReach(cellToken)) {
+                throw new IllegalArgumentException(theName + " line " + lineNumber + ": "
+                        + cellToken + " is outside the spreadsheet");
+            }
+            edits.put(cellToken, line.substring(index + 1).trim());
+        }
+        return edits;
+    }
+}
@@ -0,0 +1,17 @@
+/**
+ * CalculationMode is when a Spreadsheet works out the values of the cells an edit affects.
+ * @author Chelsea Dacones
+ * @author Makai Martines
+ * @author Elias Peterson
+ * @author Alexis Zakrzewski
+ */
+public enum CalculationMode {
+    /** Every affected cell is recalculated as part of the edit. */
+    EAGER,
+
+    /**
+     * An edit only marks the affected cells dirty. A dirty cell is calculated the first time its
+     * value is asked for, and the result is kept until an edit makes it dirty again.
+     */
+    LAZY
+}
@@ -1,6 +1,6 @@
-import java.util.ArrayList;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
 import java.util.List;
-import java.util.Stack;
 
 /**
  * Cell represents an individual Cell in the spreadsheet. It contains a formula and
@@ -12,55 +12,136 @@ import java.util.Stack;
  */
 public class Cell {
     /**
-     * The formula inside this cell. Printed when the cell is selected in the GUI.
+     * The formula inside this cell as it was typed, in UTF-8, or null if it is just the text its
+     * ExpressionTree gives back. Most formulas are typed that way, so most cells keep no text at
+     * all and make it from the tree when asked, which is only when it is shown in the GUI or
+     * saved. The rest keep one byte per character rather than a String.
      */
-    private String myFormula;
+    private byte[] myText;
 
     /**
      * The ExpressionTree of this cell, representing its formula for evaluation.
      */
-    private final ExpressionTree myExpressionTree;
+    private ExpressionTree myExpressionTree;
+
+    /**
+     * The array formula this cell is part of, or null if it has its own formula.
+     * Array formula cells share the ArrayFormula's tree instead of having their own.
+     */
+    private ArrayFormula myArrayFormula;
+
+    /**
+     * The row of this cell, only used when it is part of an array formula.
+     */
+    private int myArrayRow;
 
     /**
      * Constructs a new Cell object and initializes its values.
      */
     public Cell() {
         myExpressionTree = new ExpressionTree();
-        myFormula = "";
+    }
+
+    /**
+     * Constructs a Cell with a formula whose ExpressionTree has already been built.
+     * @param theFormula The formula text, or null if it was never typed and is made from the tree.
+     * @param theExpressionTree The formula's ExpressionTree.
+     */
+    Cell(final String theFormula, final ExpressionTree theExpressionTree) {
+        myExpressionTree = theExpressionTree;
+        myText = compact(theFormula);
+    }
+
+    /**
+     * Constructs a Cell that is one row of an array formula.
+     * @param theArrayFormula The array formula.
+     * @param theRow The row of the cell.
+     */
+    Cell(final ArrayFormula theArrayFormula, final int theRow) {
+        myArrayFormula = theArrayFormula;
+        myArrayRow = theRow;
+    }
+
+    /**
+     * @return A copy of this cell's formula that won't change when this cell does.
+     */
+    Cell copy() {
+        Cell copy = new Cell();
+        copy.myExpressionTree = myExpressionTree;
+        copy.myText = myText;
+        copy.myArrayFormula = myArrayFormula;
+        copy.myArrayRow = myArrayRow;
+        return copy;
     }
 
     /**
      * Evaluates this Cell's ExpressionTree and returns the result.
-     * @param theSpreadsheet The Spreadsheet this Cell is in.
+     * @param theSpreadsheet The values of the cells this Cell refers to.
      * @return The result of this Cell's formula.
      */
-    public int evaluate (final Spreadsheet theSpreadsheet) {
-        return myExpressionTree.evaluate(myExpressionTree.getRoot(), theSpreadsheet);
+    public int evaluate (final CellValues theSpreadsheet) {
+        if (myArrayFormula != null) {
+            return myArrayFormula.evaluate(theSpreadsheet, myArrayRow);
+        }
+        return myExpressionTree.evaluate(theSpreadsheet);
     }
 
     /**
      * @return The formula of this cell as a String.
      */
     public String getFormula() {
-        return myFormula;
+        if (myArrayFormula != null) {
+            // Array formula cells don't keep their own text; it's made when asked for.
+            return myArrayFormula.getFormula(myArrayRow);
+        }
+        return myText == null ? myExpressionTree.toFormula(0) : new String(myText, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return True if this cell has no formula.
+     */
+    public boolean isEmpty() {
+        // An empty tree never keeps text, even if blanks were typed, so an empty cell has none.
+        return myArrayFormula == null && myText == null && myExpressionTree.getRoot() == null;
+    }
+
+    /**
+     * Returns the text to keep for a formula typed for this cell's tree.
+     * @param theFormula The formula text, or null if there is none.
+     * @return Null if there is no text, the tree is empty or the tree gives back the same text,
+     *         otherwise the text in UTF-8.
+     */
+    private byte[] compact(final String theFormula) {
+        if (theFormula == null || myExpressionTree.getRoot() == null
+                || theFormula.equals(myExpressionTree.toFormula(0))) {
+            return null;
+        }
+        return theFormula.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return The array formula this cell is part of, or null if it has its own formula.
+     */
+    public ArrayFormula getArrayFormula() {
+        return myArrayFormula;
     }
 
     /**
-     * Sets the String representation of this Cell's formula.
-     * @param theFormula The String to store.
+     * @return This cell's ExpressionTree.
      */
-    public void setFormula(final String theFormula) {
-        myFormula = theFormula;
+    ExpressionTree getExpressionTree() {
+        return myExpressionTree;
     }
 
     /**
-     * Build this cell's ExpressionTree with a provided Stack of Tokens.
-     * @param theStack The Stack of Tokens to process.
+     * @return The references this cell's formula makes to cells on other sheets of its workbook.
      */
-    public void buildExpressionTree (final Stack<Token> theStack) {
-        myExpressionTree.buildExpressionTree(theStack);
-        //myExpressionTree.printTree();
-        //System.out.println();
+    public List<SheetReference> getSheetReferences() {
+        if (myArrayFormula != null) {
+            // Array formulas can't refer to other sheets.
+            return Collections.emptyList();
+        }
+        return myExpressionTree.getSheetReferences();
     }
 
     /**
@@ -68,9 +149,10 @@ public class Cell {
      * @return A List of CellTokens that this Cell depends on in its formula.
      */
     public List<CellToken> getDependencies() {
-        List<CellToken> dependencies = new ArrayList<>();
-        myExpressionTree.findDependencies(myExpressionTree.getRoot(), dependencies);
-        return dependencies;
+        if (myArrayFormula != null) {
+            return myArrayFormula.getDependencies(myArrayRow);
+        }
+        return myExpressionTree.getDependencies();
     }
 
 }
\ No newline at end of file
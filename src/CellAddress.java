@@ -0,0 +1,331 @@
+/**
+ * CellAddress converts between cells and the addresses they are written as, such as "A3" or "AB12".
+ * The letters give the column: A = 0, B = 1, ..., Z = 25, AA = 26, ..., AZ = 51, BA = 52, ...,
+ * ZZ = 701, AAA = 702. The digits give the row.
+ * <br>
+ * The labels of every column a sheet can have are worked out once, so writing an address only
+ * copies characters. Addresses are written into an array the caller provides and read from a
+ * slice of any CharSequence, and neither makes any objects.
+ * @author Chelsea Dacones
+ * @author Makai Martines
+ * @author Elias Peterson
+ * @author Alexis Zakrzewski
+ */
+public final class CellAddress {
+    /** The row and column a bad address decodes to. */
+    public static final int BAD_CELL = -1;
+
+    /** The most characters a column label can take; seven letters reach past Integer.MAX_VALUE. */
+    public static final int MAX_LABEL_LENGTH = 7;
+
+    /** The most characters encodeInt writes: a sign and ten digits. */
+    public static final int MAX_INT_LENGTH = 11;
+
+    /** The most characters an address can take: a label and a row number. */
+    public static final int MAX_LENGTH = MAX_LABEL_LENGTH + MAX_INT_LENGTH;
+
+    /** What a negative column, such as a bad cell's, is written as. */
+    private static final char BAD_LABEL = '?';
+
+    /** The columns whose labels are worked out ahead of time. */
+    private static final int TABLE_COLUMNS = Spreadsheet.MAX_COLUMNS;
+
+    /** The room each label takes in LABEL_CHARS. */
+    private static final int TABLE_WIDTH = labelLength(TABLE_COLUMNS - 1);
+
+    /** The letters of every column in the table, TABLE_WIDTH characters apart. */
+    private static final char[] LABEL_CHARS = new char[TABLE_COLUMNS * TABLE_WIDTH];
+
+    /** The length of every column's label in the table. */
+    private static final byte[] LABEL_LENGTHS = new byte[TABLE_COLUMNS];
+
+    /** Each column's label as a String, made the first time it is asked for. */
+    private static final String[] LABELS = new String[TABLE_COLUMNS];
+
+    static {
+        for (int column = 0; column < TABLE_COLUMNS; column++) {
+            LABEL_LENGTHS[column] = (byte) computeLabel(column, LABEL_CHARS, column * TABLE_WIDTH);
+        }
+    }
+
+    private CellAddress() {
+    }
+
+    /**
+     * Returns a column's label, e.g. "A" for 0, "Z" for 25 and "AA" for 26. The labels of columns
+     * a sheet can have are made once and shared.
+     * @param theColumn The column.
+     * @return The column's label.
+     */
+    public static String getColumnLabel(final int theColumn) {
+        if (theColumn < 0 || theColumn >= TABLE_COLUMNS) {
+            char[] label = new char[MAX_LABEL_LENGTH];
+            return new String(label, 0, encodeColumn(theColumn, label, 0));
+        }
+        // Two threads may both make a label; either String will do.
+        String label = LABELS[theColumn];
+        if (label == null) {
+            label = new String(LABEL_CHARS, theColumn * TABLE_WIDTH, LABEL_LENGTHS[theColumn]);
+            LABELS[theColumn] = label;
+        }
+        return label;
+    }
+
+    /**
+     * Returns a cell's address, e.g. "C4".
+     * @param theColumn The cell's column.
+     * @param theRow The cell's row.
+     * @return The address.
+     */
+    public static String toString(final int theColumn, final int theRow) {
+        char[] address = new char[MAX_LENGTH];
+        return new String(address, 0, encode(theColumn, theRow, address, 0));
+    }
+
+    /**
+     * Writes a column's label into an array.
+     * @param theColumn The column.
+     * @param theDestination The array, which needs room for MAX_LABEL_LENGTH characters.
+     * @param theOffset Where to write the first character.
+     * @return The position after the last character written.
+     */
+    public static int encodeColumn(final int theColumn, final char[] theDestination, final int theOffset) {
+        if (theColumn >= 0 && theColumn < TABLE_COLUMNS) {
+            int length = LABEL_LENGTHS[theColumn];
+            System.arraycopy(LABEL_CHARS, theColumn * TABLE_WIDTH, theDestination, theOffset, length);
+            return theOffset + length;
+        }
+        if (theColumn < 0) {
+            theDestination[theOffset] = BAD_LABEL;
+            return theOffset + 1;
+        }
+        return theOffset + computeLabel(theColumn, theDestination, theOffset);
+    }
+
+    /**
+     * Writes a column's label into an array of ASCII bytes.
+     * @see #encodeColumn(int, char[], int)
+     */
+    public static int encodeColumn(final int theColumn, final byte[] theDestination, final int theOffset) {
+        if (theColumn >= 0 && theColumn < TABLE_COLUMNS) {
+            int start = theColumn * TABLE_WIDTH;
+            int length = LABEL_LENGTHS[theColumn];
+            for (int i = 0; i < length; i++) {
+                theDestination[theOffset + i] = (byte) LABEL_CHARS[start + i];
+            }
+            return theOffset + length;
+        }
+        if (theColumn < 0) {
+            theDestination[theOffset] = BAD_LABEL;
+            return theOffset + 1;
+        }
+        int end = theOffset + labelLength(theColumn);
+        int column = theColumn;
+        for (int i = end - 1; i >= theOffset; i--) {
+            theDestination[i] = (byte) ('A' + column % 26);
+            column = column / 26 - 1;
+        }
+        return end;
+    }
+
+    /**
+     * Writes a row number into an array.
+     * @param theRow The row.
+     * @param theDestination The array, which needs room for MAX_INT_LENGTH characters.
+     * @param theOffset Where to write the first character.
+     * @return The position after the last character written.
+     */
+    public static int encodeRow(final int theRow, final char[] theDestination, final int theOffset) {
+        return encodeInt(theRow, theDestination, theOffset);
+    }
+
+    /**
+     * Writes a row number into an array of ASCII bytes.
+     * @see #encodeRow(int, char[], int)
+     */
+    public static int encodeRow(final int theRow, final byte[] theDestination, final int theOffset) {
+        return encodeInt(theRow, theDestination, theOffset);
+    }
+
+    /**
+     * Writes any int in decimal into an array, without making a String.
+     * @param theValue The number.
+     * @param theDestination The array, which needs room for MAX_INT_LENGTH characters.
+     * @param theOffset Where to write the first character.
+     * @return The position after the last character written.
+     */
+    public static int encodeInt(final int theValue, final char[] theDestination, final int theOffset) {
+        int position = theOffset;
+        // Working with the negative keeps Integer.MIN_VALUE from overflowing.
+        int value = theValue;
+        if (value >= 0) {
+            value = -value;
+        } else {
+            theDestination[position++] = '-';
+        }
+        int end = position + digitCount(value);
+        for (int i = end - 1; i >= position; i--) {
+            theDestination[i] = (char) ('0' - value % 10);
+            value /= 10;
+        }
+        return end;
+    }
+
+    /**
+     * Writes any int in decimal into an array of ASCII bytes.
+     * @see #encodeInt(int, char[], int)
+     */
+    public static int encodeInt(final int theValue, final byte[] theDestination, final int theOffset) {
+        int position = theOffset;
+        int value = theValue;
+        if (value >= 0) {
+            value = -value;
+        } else {
+            theDestination[position++] = '-';
+        }
+        int end = position + digitCount(value);
+        for (int i = end - 1; i >= position; i--) {
+            theDestination[i] = (byte) ('0' - value % 10);
+            value /= 10;
+        }
+        return end;
+    }
+
+    /**
+     * Writes a cell's address into an array.
+     * @param theColumn The cell's column.
+     * @param theRow The cell's row.
+     * @param theDestination The array, which needs room for MAX_LENGTH characters.
+     * @param theOffset Where to write the first character.
+     * @return The position after the last character written.
+     */
+    public static int encode(final int theColumn, final int theRow, final char[] theDestination, final int theOffset) {
+        return encodeRow(theRow, theDestination, encodeColumn(theColumn, theDestination, theOffset));
+    }
+
+    /**
+     * Writes a cell's address into an array of ASCII bytes.
+     * @see #encode(int, int, char[], int)
+     */
+    public static int encode(final int theColumn, final int theRow, final byte[] theDestination, final int theOffset) {
+        return encodeRow(theRow, theDestination, encodeColumn(theColumn, theDestination, theOffset));
+    }
+
+    /**
+     * Appends a cell's address to a StringBuilder.
+     * @param theBuilder The StringBuilder.
+     * @param theColumn The cell's column.
+     * @param theRow The cell's row.
+     * @return The StringBuilder.
+     */
+    public static StringBuilder append(final StringBuilder theBuilder, final int theColumn, final int theRow) {
+        if (theColumn >= 0 && theColumn < TABLE_COLUMNS) {
+            theBuilder.append(LABEL_CHARS, theColumn * TABLE_WIDTH, LABEL_LENGTHS[theColumn]);
+        } else if (theColumn < 0) {
+            theBuilder.append(BAD_LABEL);
+        } else {
+            theBuilder.append(getColumnLabel(theColumn));
+        }
+        return theBuilder.append(theRow);
+    }
+
+    /**
+     * Reads a column label that fills a slice of some text.
+     * @param theText The text.
+     * @param theStart The first character of the label.
+     * @param theEnd The position after the last character of the label.
+     * @return The column, or BAD_CELL if the slice is empty, holds anything but capital
+     *         letters, or names a column too large for an int.
+     */
+    public static int decodeColumn(final CharSequence theText, final int theStart, final int theEnd) {
+        if (theStart >= theEnd) {
+            return BAD_CELL;
+        }
+        int column = -1;
+        for (int i = theStart; i < theEnd; i++) {
+            char ch = theText.charAt(i);
+            if (ch < 'A' || ch > 'Z' || column >= (Integer.MAX_VALUE - 25) / 26 - 1) {
+                return BAD_CELL;
+            }
+            column = (column + 1) * 26 + (ch - 'A');
+        }
+        return column;
+    }
+
+    /**
+     * Reads the cell address at the start of a slice of some text, after any whitespace, and sets
+     * a CellToken to it. The address is a run of capital letters followed by a run of digits; it
+     * may be followed by anything else, which is left unread.
+     * @param theText The text.
+     * @param theStart Where to start reading.
+     * @param theEnd The end of the slice.
+     * @param theCell Set to the cell read, or to BAD_CELL for both row and column if there is no
+     *                address there or it is too large.
+     * @return The position just after the address, or where reading stopped if there wasn't one.
+     */
+    public static int decode(final CharSequence theText, final int theStart, final int theEnd,
+                             final CellToken theCell) {
+        theCell.setColumn(BAD_CELL);
+        theCell.setRow(BAD_CELL);
+        int index = Math.max(theStart, 0);
+        while (index < theEnd && Character.isWhitespace(theText.charAt(index))) {
+            index++;
+        }
+        final int letters = index;
+        while (index < theEnd && theText.charAt(index) >= 'A' && theText.charAt(index) <= 'Z') {
+            index++;
+        }
+        final int column = decodeColumn(theText, letters, index);
+        if (column == BAD_CELL || index == theEnd || theText.charAt(index) < '0' || theText.charAt(index) > '9') {
+            return index;
+        }
+        int row = 0;
+        while (index < theEnd && theText.charAt(index) >= '0' && theText.charAt(index) <= '9') {
+            int digit = theText.charAt(index) - '0';
+            if (row > (Integer.MAX_VALUE - digit) / 10) {
+                return index;
+            }
+            row = row * 10 + digit;
+            index++;
+        }
+        theCell.setColumn(column);
+        theCell.setRow(row);
+        return index;
+    }
+
+    /**
+     * @return The number of letters in a column's label.
+     */
+    private static int labelLength(final int theColumn) {
+        int length = 1;
+        for (int column = theColumn; column >= 26; column = column / 26 - 1) {
+            length++;
+        }
+        return length;
+    }
+
+    /**
+     * @return The number of digits in a number that is zero or negative.
+     */
+    private static int digitCount(final int theNegative) {
+        int digits = 1;
+        for (int rest = theNegative / 10; rest != 0; rest /= 10) {
+            digits++;
+        }
+        return digits;
+    }
+
+    /**
+     * Works out a column's label, writing it into an array.
+     * @return The length of the label.
+     */
+    private static int computeLabel(final int theColumn, final char[] theDestination, final int theOffset) {
+        int length = labelLength(theColumn);
+        int column = theColumn;
+        for (int i = theOffset + length - 1; i >= theOffset; i--) {
+            theDestination[i] = (char) ('A' + column % 26);
+            column = column / 26 - 1;
+        }
+        return length;
+    }
+}
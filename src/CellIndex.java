@@ -0,0 +1,109 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+
+/**
+ * CellIndex keeps a set of cell positions sorted both by row and by column, so that the cells
+ * from some row or column on, and the last row or column holding one, can be found without
+ * looking at the rest of the sheet. A Spreadsheet keeps one for the cells holding formulas and
+ * one for the cells formulas refer to, which is what inserting and deleting rows or columns
+ * needs to visit.
+ * <br>
+ * Each position is kept as a long, row then column in one set and column then row in the other.
+ * @author Chelsea Dacones
+ * @author Makai Martines
+ * @author Elias Peterson
+ * @author Alexis Zakrzewski
+ */
+final class CellIndex {
+    /** The positions, ordered by row and then column. Guarded by this. */
+    private final NavigableSet<Long> myByRow = new TreeSet<>();
+
+    /** The positions, ordered by column and then row. Guarded by this. */
+    private final NavigableSet<Long> myByColumn = new TreeSet<>();
+
+    /**
+     * Adds a position, if it isn't already in the index.
+     * @param theRow The row.
+     * @param theColumn The column.
+     */
+    synchronized void add(final int theRow, final int theColumn) {
+        if (myByRow.add(key(theRow, theColumn))) {
+            myByColumn.add(key(theColumn, theRow));
+        }
+    }
+
+    /**
+     * Removes a position, if it is in the index.
+     * @param theRow The row.
+     * @param theColumn The column.
+     */
+    synchronized void remove(final int theRow, final int theColumn) {
+        if (myByRow.remove(key(theRow, theColumn))) {
+            myByColumn.remove(key(theColumn, theRow));
+        }
+    }
+
+    /**
+     * Returns the positions from some row or column on.
+     * @param theRows True to look at rows, false for columns.
+     * @param theFrom The first row or column to include.
+     * @return The positions, ordered by that row or column.
+     */
+    synchronized List<CellToken> from(final boolean theRows, final int theFrom) {
+        final NavigableSet<Long> tail = (theRows ? myByRow : myByColumn).tailSet(key(theFrom, 0), true);
+        final List<CellToken> cells = new ArrayList<>(tail.size());
+        for (long key : tail) {
+            final int major = (int) (key >>> Integer.SIZE);
+            final int minor = (int) key;
+            cells.add(theRows ? new CellToken(minor, major) : new CellToken(major, minor));
+        }
+        return cells;
+    }
+
+    /**
+     * @param theRows True to look at rows, false for columns.
+     * @return One past the last row or column holding a position, or 0 if there are none.
+     */
+    synchronized int end(final boolean theRows) {
+        final NavigableSet<Long> positions = theRows ? myByRow : myByColumn;
+        return positions.isEmpty() ? 0 : (int) (positions.last() >>> Integer.SIZE) + 1;
+    }
+
+    /**
+     * Moves the positions for an insert or delete. Positions that are gone are dropped.
+     * @param theRelocation Where the cells move.
+     */
+    synchronized void relocate(final Relocation theRelocation) {
+        final boolean rows = theRelocation.movesRows();
+        final NavigableSet<Long> tail = (rows ? myByRow : myByColumn).tailSet(
+                key(theRelocation.getFirstMoved(), 0), true);
+        final long[] moving = new long[tail.size()];
+        int count = 0;
+        for (long key : tail) {
+            moving[count++] = key;
+        }
+        for (long key : moving) {
+            final int major = (int) (key >>> Integer.SIZE);
+            final int minor = (int) key;
+            myByRow.remove(rows ? key : key(minor, major));
+            myByColumn.remove(rows ? key(minor, major) : key);
+        }
+        for (long key : moving) {
+            final int moved = theRelocation.map((int) (key >>> Integer.SIZE));
+            final int minor = (int) key;
+            if (moved >= 0) {
+                myByRow.add(rows ? key(moved, minor) : key(minor, moved));
+                myByColumn.add(rows ? key(minor, moved) : key(moved, minor));
+            }
+        }
+    }
+
+    /**
+     * @return A position as a long that sorts by the first index and then the second.
+     */
+    private static long key(final int theMajor, final int theMinor) {
+        return ((long) theMajor << Integer.SIZE) | (theMinor & 0xFFFFFFFFL);
+    }
+}
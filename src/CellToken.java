@@ -56,40 +56,7 @@ public class CellToken extends Token {
 
     @Override
     public String toString() {
-        char ch;
-        StringBuilder returnString = new StringBuilder();
-        int col;
-        int largest = 26;  // minimum col number with number_of_digits digits
-        int number_of_digits = 2;
-
-        col = myColumn;
-
-        // compute the biggest power of 26 that is less than or equal to col
-        // We don't check for overflow of largest here.
-        while (largest <= col) {
-            largest = largest * 26;
-            number_of_digits++;
-        }
-        largest = largest / 26;
-        number_of_digits--;
-
-        // append the column label, one character at a time
-        while (number_of_digits > 1) {
-            ch = (char)(((col / largest) - 1) + 'A');
-            returnString.append(ch);
-            col = col % largest;
-            largest = largest  / 26;
-            number_of_digits--;
-        }
-
-        // handle last digit
-        ch = (char)(col + 'A');
-        returnString.append(ch);
-
-        // append the row as an integer
-        returnString.append(myRow);
-
-        return returnString.toString();
+        return CellAddress.toString(myColumn, myRow);
     }
 
     @Override
@@ -100,4 +67,9 @@ public class CellToken extends Token {
         }
         else return false;
     }
+
+    @Override
+    public int hashCode() {
+        return 31 * myRow + myColumn;
+    }
 }
@@ -0,0 +1,17 @@
+/**
+ * CellValues is anything that can supply the value of a cell to a formula being evaluated,
+ * such as a published snapshot or a recalculation in progress.
+ * @author Chelsea Dacones
+ * @author Makai Martines
+ * @author Elias Peterson
+ * @author Alexis Zakrzewski
+ */
+public interface CellValues {
+    /**
+     * Returns the value of the cell at the given row and column.
+     * @param theRow The row of the cell.
+     * @param theColumn The column of the cell.
+     * @return The cell's value.
+     */
+    int getValue(int theRow, int theColumn);
+}
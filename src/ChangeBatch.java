@@ -0,0 +1,197 @@
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * ChangeBatch lists the cells whose values changed when a Spreadsheet published one snapshot,
+ * with each cell's value before and after. Batches are delivered in version order to the
+ * subscribers of Spreadsheet.getChanges.
+ * @author Chelsea Dacones
+ * @author Makai Martines
+ * @author Elias Peterson
+ * @author Alexis Zakrzewski
+ */
+public final class ChangeBatch {
+    /** The version of the snapshot these changes produced. */
+    private final long myVersion;
+
+    private final int[] myRows;
+    private final int[] myColumns;
+    private final int[] myOldValues;
+    private final byte[] myOldStatuses;
+    private final int[] myNewValues;
+    private final byte[] myNewStatuses;
+
+    /**
+     * Creates a batch from the arrays describing each change, which must not be changed afterwards.
+     */
+    private ChangeBatch(final long theVersion, final int[] theRows, final int[] theColumns,
+                        final int[] theOldValues, final byte[] theOldStatuses,
+                        final int[] theNewValues, final byte[] theNewStatuses) {
+        myVersion = theVersion;
+        myRows = theRows;
+        myColumns = theColumns;
+        myOldValues = theOldValues;
+        myOldStatuses = theOldStatuses;
+        myNewValues = theNewValues;
+        myNewStatuses = theNewStatuses;
+    }
+
+    /**
+     * Describes the changes between two snapshots, which may be several publishes apart.
+     * @param theChanges The changes that were applied to theBefore, in order, to produce theAfter.
+     *                   A cell changed by more than one of them is listed once.
+     * @param theBefore The snapshot before the changes.
+     * @param theAfter The snapshot the changes produced.
+     * @return The batch.
+     */
+    static ChangeBatch of(final List<ValueChanges> theChanges, final SheetSnapshot theBefore,
+                          final SheetSnapshot theAfter) {
+        int size = 0;
+        for (ValueChanges changes : theChanges) {
+            size += changes.size();
+            for (int run = 0; run < changes.runCount(); run++) {
+                size += changes.getRunValues(run).length;
+            }
+        }
+        int[] rows = new int[size];
+        int[] columns = new int[size];
+        Set<CellToken> listed = theChanges.size() > 1 ? new HashSet<>() : null;
+        int count = 0;
+        for (ValueChanges changes : theChanges) {
+            for (int run = 0; run < changes.runCount(); run++) {
+                int length = changes.getRunValues(run).length;
+                for (int i = 0; i < length; i++) {
+                    int row = changes.getRunFromRow(run) + i;
+                    int column = changes.getRunColumn(run);
+                    if (listed == null || listed.add(new CellToken(column, row))) {
+                        rows[count] = row;
+                        columns[count++] = column;
+                    }
+                }
+            }
+            for (int i = 0; i < changes.size(); i++) {
+                if (listed == null || listed.add(new CellToken(changes.getColumn(i), changes.getRow(i)))) {
+                    rows[count] = changes.getRow(i);
+                    columns[count++] = changes.getColumn(i);
+                }
+            }
+        }
+
+        int[] oldValues = new int[count];
+        byte[] oldStatuses = new byte[count];
+        int[] newValues = new int[count];
+        byte[] newStatuses = new byte[count];
+        for (int i = 0; i < count; i++) {
+            oldStatuses[i] = statusOf(theBefore, rows[i], columns[i]);
+            oldValues[i] = oldStatuses[i] == SheetSnapshot.NUMBER ? theBefore.getValue(rows[i], columns[i]) : 0;
+            newStatuses[i] = statusOf(theAfter, rows[i], columns[i]);
+            newValues[i] = newStatuses[i] == SheetSnapshot.NUMBER ? theAfter.getValue(rows[i], columns[i]) : 0;
+        }
+        return new ChangeBatch(theAfter.getVersion(), Arrays.copyOf(rows, count), Arrays.copyOf(columns, count),
+                oldValues, oldStatuses, newValues, newStatuses);
+    }
+
+    /**
+     * Returns the status of a cell, or EMPTY if the cell is outside the snapshot, as a cell
+     * changed after the sheet grew is in the snapshots from before.
+     */
+    private static byte statusOf(final SheetSnapshot theSnapshot, final int theRow, final int theColumn) {
+        if (theRow >= theSnapshot.getNumRows() || theColumn >= theSnapshot.getNumColumns()) {
+            return SheetSnapshot.EMPTY;
+        }
+        return theSnapshot.getStatus(theRow, theColumn);
+    }
+
+    /**
+     * Returns the changes that fall inside a rectangle of cells.
+     * @param theTop The first row of the rectangle.
+     * @param theLeft The first column of the rectangle.
+     * @param theBottom The last row of the rectangle.
+     * @param theRight The last column of the rectangle.
+     * @return A batch with the same version holding only those changes; this batch if all are inside.
+     */
+    public ChangeBatch within(final int theTop, final int theLeft, final int theBottom, final int theRight) {
+        int[] keep = new int[myRows.length];
+        int count = 0;
+        for (int i = 0; i < myRows.length; i++) {
+            if (myRows[i] >= theTop && myRows[i] <= theBottom && myColumns[i] >= theLeft && myColumns[i] <= theRight) {
+                keep[count++] = i;
+            }
+        }
+        if (count == myRows.length) {
+            return this;
+        }
+        int[] rows = new int[count];
+        int[] columns = new int[count];
+        int[] oldValues = new int[count];
+        byte[] oldStatuses = new byte[count];
+        int[] newValues = new int[count];
+        byte[] newStatuses = new byte[count];
+        for (int i = 0; i < count; i++) {
+            rows[i] = myRows[keep[i]];
+            columns[i] = myColumns[keep[i]];
+            oldValues[i] = myOldValues[keep[i]];
+            oldStatuses[i] = myOldStatuses[keep[i]];
+            newValues[i] = myNewValues[keep[i]];
+            newStatuses[i] = myNewStatuses[keep[i]];
+        }
+        return new ChangeBatch(myVersion, rows, columns, oldValues, oldStatuses, newValues, newStatuses);
+    }
+
+    /** @return The version of the snapshot these changes produced. */
+    public long getVersion() {
+        return myVersion;
+    }
+
+    /** @return The number of changed cells. */
+    public int size() {
+        return myRows.length;
+    }
+
+    /** @return True if no cells changed. */
+    public boolean isEmpty() {
+        return myRows.length == 0;
+    }
+
+    /** @return The row of the change at the given position. */
+    public int getRow(final int theIndex) {
+        return myRows[theIndex];
+    }
+
+    /** @return The column of the change at the given position. */
+    public int getColumn(final int theIndex) {
+        return myColumns[theIndex];
+    }
+
+    /** @return The status of the cell before the change: SheetSnapshot.EMPTY, NUMBER or ERROR. */
+    public byte getOldStatus(final int theIndex) {
+        return myOldStatuses[theIndex];
+    }
+
+    /** @return The value of the cell before the change; 0 unless the old status is NUMBER. */
+    public int getOldValue(final int theIndex) {
+        return myOldValues[theIndex];
+    }
+
+    /** @return The status of the cell after the change: SheetSnapshot.EMPTY, NUMBER or ERROR. */
+    public byte getNewStatus(final int theIndex) {
+        return myNewStatuses[theIndex];
+    }
+
+    /** @return The value of the cell after the change; 0 unless the new status is NUMBER. */
+    public int getNewValue(final int theIndex) {
+        return myNewValues[theIndex];
+    }
+
+    /** @return The cell after the change as it should be displayed, like SheetSnapshot.getText. */
+    public String getNewText(final int theIndex) {
+        return SheetSnapshot.toText(myNewStatuses[theIndex], myNewValues[theIndex]);
+    }
+
+    @Override
+    public String toString() {
+        return "ChangeBatch[version " + myVersion + ", " + myRows.length + " cells]";
+    }
+}
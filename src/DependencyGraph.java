@@ -0,0 +1,308 @@
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * DependencyGraph is a read-only view of the dependencies between the cells of a
+ * Spreadsheet, built from each Cell's getDependencies. It reports the shape of the
+ * graph (critical path, level widths, fan-in/fan-out and connected components) and
+ * can export the graph as an edge list.
+ * <br>
+ * A cell's level is 0 when it depends on no other cell, otherwise one more than the
+ * highest level among the cells it depends on. Cells on the same level never depend
+ * on each other, so the level widths show how much of a recalculation could run in
+ * parallel.
+ * @author Chelsea Dacones
+ * @author Makai Martines
+ * @author Elias Peterson
+ * @author Alexis Zakrzewski
+ */
+public class DependencyGraph {
+    /** The number of columns in the graphed spreadsheet, used to index cells. */
+    private final int myColumns;
+
+    /** For each cell index, the indices of the cells it depends on. */
+    private final int[][] myPrecedents;
+
+    /** For each cell index, the indices of the cells that depend on it. */
+    private final int[][] myDependents;
+
+    /** Whether each cell index takes part in the graph (has a formula or is referenced). */
+    private final boolean[] myPresent;
+
+    /** The level of each cell index, or -1 if the cell is absent or part of a cycle. */
+    private final int[] myLevels;
+
+    /** The number of edges in the graph. */
+    private final int myEdgeCount;
+
+    /**
+     * Builds the dependency graph of the given spreadsheet.
+     * @param theSpreadsheet The Spreadsheet to analyze.
+     */
+    public DependencyGraph(final Spreadsheet theSpreadsheet) {
+        final int rows = theSpreadsheet.getNumRows();
+        myColumns = theSpreadsheet.getNumColumns();
+        final int size = rows * myColumns;
+        myPrecedents = new int[size][];
+        myPresent = new boolean[size];
+        final int[] dependentCounts = new int[size];
+        int edges = 0;
+
+        for (int row = 0; row < rows; row++) {
+            for (int col = 0; col < myColumns; col++) {
+                final int index = indexOf(row, col);
+                final Cell cell = theSpreadsheet.getCell(row, col);
+                final List<CellToken> dependencies = cell.getDependencies();
+                final int[] precedents = new int[dependencies.size()];
+                int count = 0;
+                for (CellToken token : dependencies) {
+                    // References outside the sheet can't be part of a valid graph.
+                    if (token.getRow() >= 0 && token.getRow() < rows
+                            && token.getColumn() >= 0 && token.getColumn() < myColumns) {
+                        final int precedent = indexOf(token.getRow(), token.getColumn());
+                        precedents[count++] = precedent;
+                        dependentCounts[precedent]++;
+                        myPresent[precedent] = true;
+                    }
+                }
+                myPrecedents[index] = count == precedents.length ? precedents : Arrays.copyOf(precedents, count);
+                edges += count;
+                if (count > 0 || !cell.isEmpty()) {
+                    myPresent[index] = true;
+                }
+            }
+        }
+        myEdgeCount = edges;
+
+        // Invert the precedent lists so we can walk the graph in both directions.
+        myDependents = new int[size][];
+        for (int i = 0; i < size; i++) {
+            myDependents[i] = new int[dependentCounts[i]];
+        }
+        final int[] fill = new int[size];
+        for (int i = 0; i < size; i++) {
+            for (int precedent : myPrecedents[i]) {
+                myDependents[precedent][fill[precedent]++] = i;
+            }
+        }
+
+        myLevels = computeLevels();
+    }
+
+    /**
+     * Assigns every cell its level with a topological sort (Kahn's algorithm).
+     * @return The level of each cell index, -1 for absent cells or cells on a cycle.
+     */
+    private int[] computeLevels() {
+        final int size = myPrecedents.length;
+        final int[] levels = new int[size];
+        final int[] remaining = new int[size];
+        final int[] queue = new int[size];
+        int head = 0;
+        int tail = 0;
+
+        Arrays.fill(levels, -1);
+        for (int i = 0; i < size; i++) {
+            if (!myPresent[i]) continue;
+            remaining[i] = myPrecedents[i].length;
+            if (remaining[i] == 0) {
+                levels[i] = 0;
+                queue[tail++] = i;
+            }
+        }
+        while (head < tail) {
+            final int current = queue[head++];
+            for (int dependent : myDependents[current]) {
+                levels[dependent] = Math.max(levels[dependent], levels[current] + 1);
+                if (--remaining[dependent] == 0) {
+                    queue[tail++] = dependent;
+                }
+            }
+        }
+        // Anything we never dequeued sits on a cycle and has no meaningful level.
+        for (int i = 0; i < size; i++) {
+            if (remaining[i] != 0) levels[i] = -1;
+        }
+        return levels;
+    }
+
+    /**
+     * @return The number of cells that have a formula or are referenced by one.
+     */
+    public int getCellCount() {
+        int count = 0;
+        for (boolean present : myPresent) {
+            if (present) count++;
+        }
+        return count;
+    }
+
+    /**
+     * @return The number of dependency edges in the graph.
+     */
+    public int getEdgeCount() {
+        return myEdgeCount;
+    }
+
+    /**
+     * Returns the length of the longest chain of dependent cells, counted in cells.
+     * This is the minimum number of sequential steps any recalculation needs.
+     * @return The critical path length, or 0 for an empty graph.
+     */
+    public int getCriticalPathLength() {
+        int longest = -1;
+        for (int level : myLevels) {
+            longest = Math.max(longest, level);
+        }
+        return longest + 1;
+    }
+
+    /**
+     * Returns how many cells sit on each level of the graph.
+     * @return An array where index i holds the number of cells on level i.
+     */
+    public int[] getLevelWidths() {
+        final int[] widths = new int[getCriticalPathLength()];
+        for (int level : myLevels) {
+            if (level >= 0) widths[level]++;
+        }
+        return widths;
+    }
+
+    /**
+     * Returns the level of a single cell.
+     * @param theToken The cell to look up.
+     * @return The cell's level, or -1 if it isn't part of the graph.
+     */
+    public int getLevel(final CellToken theToken) {
+        return myLevels[indexOf(theToken.getRow(), theToken.getColumn())];
+    }
+
+    /**
+     * @return The largest number of cells any single cell depends on.
+     */
+    public int getMaxFanIn() {
+        int max = 0;
+        for (int[] precedents : myPrecedents) {
+            max = Math.max(max, precedents.length);
+        }
+        return max;
+    }
+
+    /**
+     * @return The largest number of cells that depend on any single cell.
+     */
+    public int getMaxFanOut() {
+        int max = 0;
+        for (int[] dependents : myDependents) {
+            max = Math.max(max, dependents.length);
+        }
+        return max;
+    }
+
+    /**
+     * Finds the weakly connected components of the graph, ignoring edge direction.
+     * Cells in different components can always be recalculated independently.
+     * @return A list of components, each a list of the CellTokens in it.
+     */
+    public List<List<CellToken>> getConnectedComponents() {
+        final int size = myPrecedents.length;
+        final boolean[] visited = new boolean[size];
+        final int[] stack = new int[size];
+        final List<List<CellToken>> components = new ArrayList<>();
+
+        for (int start = 0; start < size; start++) {
+            if (!myPresent[start] || visited[start]) continue;
+            final List<CellToken> component = new ArrayList<>();
+            int top = 0;
+            stack[top++] = start;
+            visited[start] = true;
+            while (top > 0) {
+                final int current = stack[--top];
+                component.add(tokenOf(current));
+                for (int next : myPrecedents[current]) {
+                    if (!visited[next]) {
+                        visited[next] = true;
+                        stack[top++] = next;
+                    }
+                }
+                for (int next : myDependents[current]) {
+                    if (!visited[next]) {
+                        visited[next] = true;
+                        stack[top++] = next;
+                    }
+                }
+            }
+            components.add(component);
+        }
+        return components;
+    }
+
+    /**
+     * Writes the graph as an edge list. The first line is a header of the form
+     * "# cells edges", followed by one tab separated "precedent dependent" pair per
+     * line, e.g. "A1\tB2" when B2's formula refers to A1.
+     * @param theWriter The Writer to write to. It is not closed.
+     * @throws IOException If the writer fails.
+     */
+    public void writeEdgeList(final Writer theWriter) throws IOException {
+        theWriter.write("# " + getCellCount() + " " + myEdgeCount + "\n");
+        for (int i = 0; i < myPrecedents.length; i++) {
+            if (myPrecedents[i].length == 0) continue;
+            final String dependent = tokenOf(i).toString();
+            for (int precedent : myPrecedents[i]) {
+                theWriter.write(tokenOf(precedent).toString());
+                theWriter.write('\t');
+                theWriter.write(dependent);
+                theWriter.write('\n');
+            }
+        }
+    }
+
+    /**
+     * @return The edge list produced by writeEdgeList as a String.
+     */
+    public String toEdgeList() {
+        StringWriter writer = new StringWriter();
+        try {
+            writeEdgeList(writer);
+        } catch (IOException e) {
+            // StringWriter never throws, but the signature requires us to handle it.
+            throw new UncheckedIOException(e);
+        }
+        return writer.toString();
+    }
+
+    /**
+     * @return A short human-readable summary of the graph's shape.
+     */
+    @Override
+    public String toString() {
+        return "Cells: " + getCellCount()
+                + "\nEdges: " + myEdgeCount
+                + "\nCritical path length: " + getCriticalPathLength()
+                + "\nLevel widths: " + Arrays.toString(getLevelWidths())
+                + "\nMax fan-in: " + getMaxFanIn()
+                + "\nMax fan-out: " + getMaxFanOut()
+                + "\nConnected components: " + getConnectedComponents().size();
+    }
+
+    /**
+     * Converts a row and column into this graph's flat cell index.
+     */
+    private int indexOf(final int theRow, final int theColumn) {
+        return theRow * myColumns + theColumn;
+    }
+
+    /**
+     * Converts a flat cell index back into a CellToken.
+     */
+    private CellToken tokenOf(final int theIndex) {
+        return new CellToken(theIndex % myColumns, theIndex / myColumns);
+    }
+}
@@ -1,5 +1,7 @@
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Stack;
+import java.util.function.UnaryOperator;
 
 /**
  * ExpressionTree holds a collection of ExpressionTreeNodes that
@@ -10,71 +12,129 @@ import java.util.Stack;
  * @author Alexis Zakrzewski
  */
 public class ExpressionTree {
+    /** The largest literal exponent that is evaluated by multiplying instead of with Math.pow. */
+    private static final int MAX_MULTIPLIED_EXPONENT = 4;
+
     /**
      * The root node of this tree.
      */
     private ExpressionTreeNode root;
 
-    public void buildExpressionTree(Stack<Token> theTokens) {
-        root = getExpressionTree(theTokens);
-        if (!theTokens.isEmpty()) {
-            System.out.println("Error in BuildExpressionTree.");
-        }
-    }
+    /**
+     * The tree that is actually evaluated: the same formula as root, simplified by optimize.
+     * Unchanged subtrees are shared with root.
+     */
+    private ExpressionTreeNode myOptimizedRoot;
 
     /**
-     * Returns an expression tree from a given stack of Tokens.
-     * Runs recursively to create the entire tree.
-     * @param s The Stack of Tokens to build from
-     * @return An ExpressionTreeNode containing subtrees of the rest of the stack.
+     * Creates an empty tree, which evaluates to 0.
      */
-    private ExpressionTreeNode getExpressionTree(Stack<Token> s) {
-        ExpressionTreeNode returnTree = null;
-        Token token;
+    public ExpressionTree() {
+    }
 
-        if (s.isEmpty())
-            return null;
+    /**
+     * Creates a tree with the given root, as built by FormulaParser.
+     * @param theRoot The root node, or null for an empty tree.
+     */
+    ExpressionTree(final ExpressionTreeNode theRoot) {
+        root = theRoot;
+        myOptimizedRoot = optimize(theRoot);
+    }
 
-        token = s.pop();  // need to handle stack underflow
-        //System.out.print(token.toString());
-        if ((token instanceof LiteralToken) ||
-                (token instanceof CellToken) ) {
+    /**
+     * Returns a simplified copy of a subtree that always evaluates to the same result, including
+     * dividing by zero and reading the same cells. Subtrees without cell references are worked out
+     * ahead of time, x^2 to x^4 become multiplications, and
+     * x*1, 1*x, x+0, 0+x, x-0, x/1 and x^1 become x. The original subtree is left as it is.
+     * @param theNode The subtree to simplify.
+     * @return The simplified subtree.
+     */
+    private ExpressionTreeNode optimize(final ExpressionTreeNode theNode) {
+        if (theNode == null || !(theNode.getToken() instanceof OperatorToken)) return theNode;
 
-            // Literals and Cells are leaves in the expression tree
-            returnTree = new ExpressionTreeNode(token, null, null);
+        ExpressionTreeNode left = optimize(theNode.getLeft());
+        ExpressionTreeNode right = optimize(theNode.getRight());
+        char operator = ((OperatorToken) theNode.getToken()).getToken();
+        ExpressionTreeNode node = left == theNode.getLeft() && right == theNode.getRight()
+                ? theNode : new ExpressionTreeNode(theNode.getToken(), left, right);
 
-        } else if (token instanceof OperatorToken) {
-            // Continue finding tokens that will form the
-            // right subtree and left subtree.
-            ExpressionTreeNode rightSubtree = getExpressionTree (s);
-            ExpressionTreeNode leftSubtree  = getExpressionTree (s);
-            returnTree =
-                    new ExpressionTreeNode(token, leftSubtree, rightSubtree);
+        // An empty subtree evaluates to 0, so it counts as a constant too.
+        if (isConstant(left) && isConstant(right)) {
+            try {
+                return new ExpressionTreeNode(new LiteralToken(evaluate(node, null)), null, null);
+            } catch (ArithmeticException e) {
+                // Dividing by zero has to stay an error when the formula is evaluated.
+                return node;
+            }
         }
-
-        return returnTree;
+        switch (operator) {
+            case OperatorToken.Plus:
+                if (isLiteral(right, 0)) return left;
+                if (isLiteral(left, 0)) return right;
+                break;
+            case OperatorToken.Minus:
+                if (isLiteral(right, 0)) return left;
+                break;
+            case OperatorToken.Mult:
+                if (isLiteral(right, 1)) return left;
+                if (isLiteral(left, 1)) return right;
+                break;
+            case OperatorToken.Div:
+                if (isLiteral(right, 1)) return left;
+                break;
+            case OperatorToken.Pow:
+                if (isLiteral(right, 1)) return left;
+                if (right != null && right.getToken() instanceof LiteralToken) {
+                    int exponent = ((LiteralToken) right.getToken()).getValue();
+                    if (exponent >= 2 && exponent <= MAX_MULTIPLIED_EXPONENT) {
+                        return new ExpressionTreeNode(theNode.getToken(), left, null, exponent);
+                    }
+                }
+                break;
+        }
+        return node;
     }
 
     /**
-     * Prints out all the nodes inside this Expression Tree.
+     * @return True if the subtree is empty or a literal.
      */
-    public void printTree() {
-        printTreeNode(root);
+    private static boolean isConstant(final ExpressionTreeNode theNode) {
+        return theNode == null || theNode.getToken() instanceof LiteralToken;
     }
 
     /**
-     * Debug method to recursively print out this tree.
-     * @param theNode The node to print.
+     * @return True if the subtree is a literal with the given value.
      */
-    private void printTreeNode(final ExpressionTreeNode theNode) {
-        // If this node is null, exit now.
-        if(theNode == null) return;
+    private static boolean isLiteral(final ExpressionTreeNode theNode, final int theValue) {
+        return theNode != null && theNode.getToken() instanceof LiteralToken
+                && ((LiteralToken) theNode.getToken()).getValue() == theValue;
+    }
 
-        // Prints in infix notation.
-        theNode.printToken();
-        printTreeNode(theNode.getLeft());
-        printTreeNode(theNode.getRight());
+    /**
+     * Raises a number to a small positive power by multiplying, giving the same result as
+     * (int) Math.pow, which rounds results too big for an int to Integer.MAX_VALUE or MIN_VALUE.
+     * @param theBase The number to raise.
+     * @param theExponent The power, at least 1.
+     * @return The result.
+     */
+    static int power(final int theBase, final int theExponent) {
+        long result = theBase;
+        for (int i = 1; i < theExponent; i++) {
+            result *= theBase;
+            if (result > Integer.MAX_VALUE || result < Integer.MIN_VALUE) {
+                return theBase < 0 && theExponent % 2 == 1 ? Integer.MIN_VALUE : Integer.MAX_VALUE;
+            }
+        }
+        return (int) result;
+    }
 
+    /**
+     * @return A List of the cells this whole tree refers to, without duplicates.
+     */
+    public List<CellToken> getDependencies() {
+        List<CellToken> dependencies = new ArrayList<>();
+        findDependencies(root, dependencies);
+        return dependencies;
     }
 
     /**
@@ -95,12 +155,50 @@ public class ExpressionTree {
     }
 
     /**
-     * Evaluates this tree based on the Spreadsheet.
+     * @return A List of the references this tree makes to cells on other sheets, without duplicates.
+     */
+    public List<SheetReference> getSheetReferences() {
+        List<SheetReference> references = new ArrayList<>();
+        findSheetReferences(root, references);
+        return references;
+    }
+
+    /**
+     * Recursively finds the references a subtree makes to cells on other sheets.
+     * @param theNode The node to check.
+     * @param theList The list to add references to.
+     */
+    private void findSheetReferences(final ExpressionTreeNode theNode, final List<SheetReference> theList) {
+        if (theNode == null) return;
+        if (theNode.getToken() instanceof SheetReference) {
+            SheetReference reference = (SheetReference) theNode.getToken();
+            for (SheetReference found : theList) {
+                if (found.getSheet() == reference.getSheet() && found.getCell().equals(reference.getCell())) {
+                    return;
+                }
+            }
+            theList.add(reference);
+        }
+        findSheetReferences(theNode.getLeft(), theList);
+        findSheetReferences(theNode.getRight(), theList);
+    }
+
+    /**
+     * Evaluates this tree, in its optimized form, based on the values of the cells it refers to.
+     * @param theSpreadsheet The cell values to evaluate with.
+     * @return An integer representing the final value of this tree's expression.
+     */
+    public int evaluate(final CellValues theSpreadsheet) {
+        return evaluate(myOptimizedRoot, theSpreadsheet);
+    }
+
+    /**
+     * Evaluates this tree based on the values of the cells it refers to.
      * @param theNode The node to evaluate.
-     * @param theSpreadsheet The spreadsheet to evaluate with.
+     * @param theSpreadsheet The cell values to evaluate with.
      * @return An integer representing the final value of this tree's expression.
      */
-    public int evaluate(final ExpressionTreeNode theNode, final Spreadsheet theSpreadsheet) {
+    public int evaluate(final ExpressionTreeNode theNode, final CellValues theSpreadsheet) {
         // If this node is null, just exit early.
         if(theNode == null) return 0;
 
@@ -121,9 +219,10 @@ public class ExpressionTree {
                 case OperatorToken.Div:
                     return leftValue / rightValue;
                 case OperatorToken.Pow:
+                    if (theNode.exponent != 0) {
+                        return power(leftValue, theNode.exponent);
+                    }
                     return (int)Math.pow(leftValue, rightValue);
-                case OperatorToken.LeftParen:
-                    return rightValue;
             }
         }
         // If the token is a literal, just return the literal's value
@@ -134,13 +233,243 @@ public class ExpressionTree {
         // If the token is a cellToken, return the value in that cell.
         else if (nodeToken instanceof CellToken) {
             CellToken cellToken = (CellToken)nodeToken;
-            return theSpreadsheet.evaluateCell(cellToken);
+            return theSpreadsheet.getValue(cellToken.getRow(), cellToken.getColumn());
+        }
+        // A cell on another sheet is read from that sheet.
+        else if (nodeToken instanceof SheetReference) {
+            return ((SheetReference) nodeToken).getValue();
+        }
+        // A reference to a deleted cell is always an error.
+        else if (nodeToken instanceof ReferenceErrorToken) {
+            throw new ArithmeticException(ReferenceErrorToken.TEXT);
         }
 
         // We should never get here. Return 0.
         return 0;
     }
 
+    /**
+     * Writes this tree back out as formula text, with every cell reference moved down by the given
+     * number of rows. Parentheses are only added where operator priority needs them, so the text
+     * parses back into the same tree.
+     * @param theRowShift How many rows to move each cell reference by.
+     * @return The formula text.
+     */
+    public String toFormula(final int theRowShift) {
+        StringBuilder formula = new StringBuilder();
+        appendFormula(root, theRowShift, formula);
+        return formula.toString();
+    }
+
+    /**
+     * Recursively appends the formula text of a subtree.
+     * @param theNode The root of the subtree.
+     * @param theRowShift How many rows to move each cell reference by.
+     * @param theFormula The text so far.
+     */
+    private void appendFormula(final ExpressionTreeNode theNode, final int theRowShift, final StringBuilder theFormula) {
+        if (theNode == null) return;
+        Token token = theNode.getToken();
+        if (token instanceof CellToken) {
+            CellToken cellToken = (CellToken) token;
+            CellAddress.append(theFormula, cellToken.getColumn(), cellToken.getRow() + theRowShift);
+        } else if (token instanceof SheetReference) {
+            SheetReference reference = (SheetReference) token;
+            theFormula.append(reference.getSheet().getName()).append('!');
+            CellAddress.append(theFormula, reference.getCell().getColumn(), reference.getCell().getRow());
+        } else if (token instanceof OperatorToken) {
+            OperatorToken operator = (OperatorToken) token;
+            // Operators of equal priority group left to right, so only a right operand of equal priority needs parentheses.
+            appendOperand(theNode.getLeft(), operator.priority(), false, theRowShift, theFormula);
+            theFormula.append(operator.getToken());
+            appendOperand(theNode.getRight(), operator.priority(), true, theRowShift, theFormula);
+        } else {
+            theFormula.append(token);
+        }
+    }
+
+    /**
+     * Appends one operand of an operator, in parentheses if the operand binds more loosely.
+     */
+    private void appendOperand(final ExpressionTreeNode theNode, final int thePriority, final boolean theRight,
+                               final int theRowShift, final StringBuilder theFormula) {
+        boolean parenthesize = false;
+        if (theNode != null && theNode.getToken() instanceof OperatorToken) {
+            int priority = ((OperatorToken) theNode.getToken()).priority();
+            parenthesize = priority < thePriority || (theRight && priority == thePriority);
+        }
+        if (parenthesize) theFormula.append(OperatorToken.LeftParen);
+        appendFormula(theNode, theRowShift, theFormula);
+        if (parenthesize) theFormula.append(OperatorToken.RightParen);
+    }
+
+    /**
+     * Returns this tree with its cell references moved to where a Relocation puts the cells. A
+     * reference to a cell that is gone becomes a ReferenceErrorToken. Subtrees without a moved
+     * reference are shared with this tree, so nothing is parsed and little is copied.
+     * @param theRelocation Where the cells move.
+     * @param theRowShift How many rows down to move each reference first, for one row of an array formula.
+     * @return The moved tree, or this tree if no reference moved.
+     */
+    ExpressionTree relocate(final Relocation theRelocation, final int theRowShift) {
+        ExpressionTreeNode moved = relocate(root, theToken -> {
+            if (!(theToken instanceof CellToken)) return theToken;
+            CellToken cellToken = (CellToken) theToken;
+            if (theRowShift != 0) {
+                cellToken = new CellToken(cellToken.getColumn(), cellToken.getRow() + theRowShift);
+            }
+            CellToken target = theRelocation.map(cellToken);
+            return target == null ? ReferenceErrorToken.INSTANCE : target;
+        });
+        return moved == root ? this : new ExpressionTree(moved);
+    }
+
+    /**
+     * Returns this tree with its references to cells on another sheet moved to where a Relocation
+     * of that sheet puts the cells. A reference to a cell that is gone becomes a ReferenceErrorToken.
+     * @param theSheet The sheet whose cells moved.
+     * @param theRelocation Where the cells move.
+     * @return The moved tree, or this tree if no reference moved.
+     */
+    ExpressionTree relocateReferences(final Spreadsheet theSheet, final Relocation theRelocation) {
+        ExpressionTreeNode moved = relocate(root, theToken -> {
+            if (!(theToken instanceof SheetReference) || ((SheetReference) theToken).getSheet() != theSheet) {
+                return theToken;
+            }
+            CellToken cell = ((SheetReference) theToken).getCell();
+            CellToken target = theRelocation.map(cell);
+            if (target == null) return ReferenceErrorToken.INSTANCE;
+            return target == cell ? theToken : new SheetReference(theSheet, target);
+        });
+        return moved == root ? this : new ExpressionTree(moved);
+    }
+
+    /**
+     * Returns this tree as it reads when copied to a cell the given number of rows and columns away,
+     * as when a formula is filled into a range: every cell reference moves by the same amount. A
+     * reference that would land where its sheet can't reach becomes a ReferenceErrorToken.
+     * Subtrees without a reference are shared with this tree, so nothing is parsed.
+     * @param theSheet The sheet this tree's own cell references are on.
+     * @param theRowShift How many rows down to move each reference.
+     * @param theColumnShift How many columns right to move each reference.
+     * @return The moved tree, or this tree if it has no references or doesn't move.
+     */
+    ExpressionTree shift(final Spreadsheet theSheet, final int theRowShift, final int theColumnShift) {
+        if (theRowShift == 0 && theColumnShift == 0) return this;
+        ExpressionTreeNode moved = relocate(root, theToken -> {
+            if (theToken instanceof CellToken) {
+                CellToken cellToken = (CellToken) theToken;
+                CellToken target = new CellToken(cellToken.getColumn() + theColumnShift,
+                        cellToken.getRow() + theRowShift);
+                return theSheet.isInReach(target) ? target : ReferenceErrorToken.INSTANCE;
+            }
+            if (theToken instanceof SheetReference) {
+                SheetReference reference = (SheetReference) theToken;
+                CellToken target = new CellToken(reference.getCell().getColumn() + theColumnShift,
+                        reference.getCell().getRow() + theRowShift);
+                return reference.getSheet().isInReach(target)
+                        ? new SheetReference(reference.getSheet(), target) : ReferenceErrorToken.INSTANCE;
+            }
+            return theToken;
+        });
+        return moved == root ? this : new ExpressionTree(moved);
+    }
+
+    /**
+     * Recursively replaces the leaf tokens of a subtree, copying only the nodes above a replaced leaf.
+     * @param theNode The root of the subtree.
+     * @param theReplacement Gives the token to put in place of each leaf token; the same token to keep it.
+     * @return The new subtree, or theNode if nothing was replaced.
+     */
+    private static ExpressionTreeNode relocate(final ExpressionTreeNode theNode,
+                                               final UnaryOperator<Token> theReplacement) {
+        if (theNode == null) return null;
+        if (!(theNode.getToken() instanceof OperatorToken)) {
+            Token token = theReplacement.apply(theNode.getToken());
+            return token == theNode.getToken() ? theNode : new ExpressionTreeNode(token, null, null);
+        }
+        ExpressionTreeNode left = relocate(theNode.getLeft(), theReplacement);
+        ExpressionTreeNode right = relocate(theNode.getRight(), theReplacement);
+        if (left == theNode.getLeft() && right == theNode.getRight()) {
+            return theNode;
+        }
+        return new ExpressionTreeNode(theNode.getToken(), left, right);
+    }
+
+    /**
+     * Evaluates this tree for a whole run of rows at once. Row 0 of the run uses the cell references
+     * exactly as written, and each later row reads one row further down. Each operator is applied to
+     * every row in a tight loop over primitive arrays, which the JIT compiler turns into SIMD code.
+     * @param theValues The values to read cell references from.
+     * @param theCount The number of rows to evaluate.
+     * @param theErrors Set to true for each row whose value couldn't be evaluated.
+     * @return The value of each row; rows with an error hold 0.
+     */
+    public int[] evaluateRows(final SheetSnapshot theValues, final int theCount, final boolean[] theErrors) {
+        int[] result = evaluateRows(myOptimizedRoot, theValues, theCount, theErrors);
+        for (int i = 0; i < theCount; i++) {
+            if (theErrors[i]) result[i] = 0;
+        }
+        return result;
+    }
+
+    /**
+     * Recursively evaluates a subtree for a run of rows.
+     * @return A new array holding the subtree's value for each row.
+     */
+    private int[] evaluateRows(final ExpressionTreeNode theNode, final SheetSnapshot theValues,
+                               final int theCount, final boolean[] theErrors) {
+        final int[] result = new int[theCount];
+        // An empty subtree is 0, like in evaluate.
+        if (theNode == null) return result;
+
+        Token nodeToken = theNode.getToken();
+        if (nodeToken instanceof LiteralToken) {
+            Arrays.fill(result, ((LiteralToken) nodeToken).getValue());
+        } else if (nodeToken instanceof CellToken) {
+            CellToken cellToken = (CellToken) nodeToken;
+            theValues.copyColumn(cellToken.getColumn(), cellToken.getRow(), result, 0, theCount);
+            for (int i = 0; i < theCount; i++) {
+                if (theValues.getStatus(cellToken.getRow() + i, cellToken.getColumn()) == SheetSnapshot.ERROR) {
+                    theErrors[i] = true;
+                }
+            }
+        } else if (nodeToken instanceof ReferenceErrorToken) {
+            Arrays.fill(theErrors, 0, theCount, true);
+        } else if (nodeToken instanceof OperatorToken) {
+            final int[] left = evaluateRows(theNode.getLeft(), theValues, theCount, theErrors);
+            final int[] right = evaluateRows(theNode.getRight(), theValues, theCount, theErrors);
+            switch (((OperatorToken) nodeToken).getToken()) {
+                case OperatorToken.Plus:
+                    for (int i = 0; i < theCount; i++) result[i] = left[i] + right[i];
+                    break;
+                case OperatorToken.Minus:
+                    for (int i = 0; i < theCount; i++) result[i] = left[i] - right[i];
+                    break;
+                case OperatorToken.Mult:
+                    for (int i = 0; i < theCount; i++) result[i] = left[i] * right[i];
+                    break;
+                case OperatorToken.Div:
+                    for (int i = 0; i < theCount; i++) {
+                        if (right[i] == 0) {
+                            theErrors[i] = true;
+                        } else {
+                            result[i] = left[i] / right[i];
+                        }
+                    }
+                    break;
+                case OperatorToken.Pow:
+                    if (theNode.exponent != 0) {
+                        for (int i = 0; i < theCount; i++) result[i] = power(left[i], theNode.exponent);
+                    } else {
+                        for (int i = 0; i < theCount; i++) result[i] = (int) Math.pow(left[i], right[i]);
+                    }
+                    break;
+            }
+        }
+        return result;
+    }
+
     /**
      * @return The root node of this expression tree.
      */
@@ -150,12 +479,15 @@ public class ExpressionTree {
      * ExpressionTreeNode is an internal class for ExpressionTree that represents
      * individual nodes in the tree.
      */
-    private static class ExpressionTreeNode {
+    static class ExpressionTreeNode {
         private final Token token;
 
         private final ExpressionTreeNode left;
         private final ExpressionTreeNode right;
 
+        /** For a ^ node made by optimize, the literal exponent, with no right child; otherwise 0. */
+        private final int exponent;
+
         /**
          * Creates a node for the expression tree.
          *
@@ -164,16 +496,23 @@ public class ExpressionTree {
          * @param theRight The right child node.
          */
         public ExpressionTreeNode(final Token theToken, final ExpressionTreeNode theLeft, final ExpressionTreeNode theRight) {
-            token = theToken;
-            left = theLeft;
-            right = theRight;
+            this(theToken, theLeft, theRight, 0);
         }
 
         /**
-         * Prints the token as a string.
+         * Creates a ^ node that raises its left child to a fixed power.
+         *
+         * @param theToken The ^ token.
+         * @param theLeft The left child node.
+         * @param theRight The right child node, null when theExponent is used.
+         * @param theExponent The literal exponent, or 0 to use the right child.
          */
-        public void printToken() {
-            System.out.print(token.toString());
+        public ExpressionTreeNode(final Token theToken, final ExpressionTreeNode theLeft, final ExpressionTreeNode theRight,
+                                  final int theExponent) {
+            token = theToken;
+            left = theLeft;
+            right = theRight;
+            exponent = theExponent;
         }
 
         /**
@@ -0,0 +1,31 @@
+/**
+ * FormulaParseException is thrown when a formula isn't a valid expression. It records where in
+ * the formula the problem was found.
+ * @author Chelsea Dacones
+ * @author Makai Martines
+ * @author Elias Peterson
+ * @author Alexis Zakrzewski
+ */
+public class FormulaParseException extends IllegalArgumentException {
+    private static final long serialVersionUID = 1L;
+
+    /** The index in the formula where the problem was found. */
+    private final int myPosition;
+
+    /**
+     * Creates an exception for a problem at the given position.
+     * @param theProblem What is wrong.
+     * @param thePosition The index in the formula where the problem was found.
+     */
+    public FormulaParseException(final String theProblem, final int thePosition) {
+        super(theProblem + " at position " + thePosition);
+        myPosition = thePosition;
+    }
+
+    /**
+     * @return The index in the formula where the problem was found, counting from 0.
+     */
+    public int getPosition() {
+        return myPosition;
+    }
+}
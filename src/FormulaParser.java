@@ -0,0 +1,306 @@
+import java.util.Arrays;
+
+/**
+ * FormulaParser turns formula text straight into an ExpressionTree in a single pass, without
+ * building a stack of tokens first.
+ * <br>
+ * It is an operator precedence parser: operands are pushed on a stack of tree nodes, and an
+ * operator is applied to the top two as soon as a following operator of equal or lower priority
+ * (or the end of a parenthesis or formula) shows it is complete. The stacks are kept per thread
+ * and reused, so the only objects a parse creates are the nodes of the tree itself.
+ * <br>
+ * The grammar matches getFormula's: +, -, *, / and ^ are all left associative, with ^ binding
+ * tightest and + and - loosest. A + or - at the start of the formula or right after a '(' applies
+ * to the following term, as if there were a 0 before it. Whitespace may appear between tokens.
+ * In a Workbook, a cell may be prefixed with the name of its sheet and a '!'. "#REF!" stands for a
+ * reference to a deleted cell.
+ * @author Chelsea Dacones
+ * @author Makai Martines
+ * @author Elias Peterson
+ * @author Alexis Zakrzewski
+ */
+final class FormulaParser {
+    /** The operator tokens, shared by every tree since they never change. */
+    private static final OperatorToken PLUS = new OperatorToken(OperatorToken.Plus);
+    private static final OperatorToken MINUS = new OperatorToken(OperatorToken.Minus);
+    private static final OperatorToken MULT = new OperatorToken(OperatorToken.Mult);
+    private static final OperatorToken DIV = new OperatorToken(OperatorToken.Div);
+    private static final OperatorToken POW = new OperatorToken(OperatorToken.Pow);
+
+    /** Shared tokens for the small literals most formulas use. */
+    private static final LiteralToken[] SMALL_LITERALS = new LiteralToken[256];
+
+    static {
+        for (int i = 0; i < SMALL_LITERALS.length; i++) {
+            SMALL_LITERALS[i] = new LiteralToken(i);
+        }
+    }
+
+    /** The reusable stacks of each thread. */
+    private static final ThreadLocal<FormulaParser> PARSERS = ThreadLocal.withInitial(FormulaParser::new);
+
+    /** The operands waiting for an operator; null stands for the missing left side of a leading + or -. */
+    private ExpressionTree.ExpressionTreeNode[] myNodes = new ExpressionTree.ExpressionTreeNode[16];
+    private int myNodeCount;
+
+    /** The sheet whose formula is being parsed, used to look up other sheets; null if it has no workbook. */
+    private Spreadsheet mySheet;
+
+    /** The operators waiting for their right side, and the position of each in the formula. */
+    private char[] myOperators = new char[16];
+    private int[] myPositions = new int[16];
+    private int myOperatorCount;
+
+    private FormulaParser() {
+    }
+
+    /**
+     * Parses a formula. A formula that is empty or only whitespace gives an empty tree, which evaluates to 0.
+     * @param theFormula The formula text.
+     * @return The formula's ExpressionTree.
+     * @throws FormulaParseException If the formula isn't a valid expression.
+     */
+    static ExpressionTree parse(final CharSequence theFormula) {
+        return parse(theFormula, null);
+    }
+
+    /**
+     * Parses a formula of a sheet in a Workbook, where a cell may be qualified with the name of
+     * the sheet it is on, as in "Sheet2!A1". A reference qualified with the formula's own sheet is
+     * the same as an unqualified one.
+     * @param theFormula The formula text.
+     * @param theSheet The sheet the formula belongs to, or null if it can't refer to other sheets.
+     * @return The formula's ExpressionTree.
+     * @throws FormulaParseException If the formula isn't a valid expression or names an unknown sheet.
+     */
+    static ExpressionTree parse(final CharSequence theFormula, final Spreadsheet theSheet) {
+        FormulaParser parser = PARSERS.get();
+        parser.mySheet = theSheet;
+        try {
+            return new ExpressionTree(parser.parseExpression(theFormula));
+        } finally {
+            parser.clear();
+        }
+    }
+
+    /**
+     * Does the work of parse with this thread's stacks.
+     * @return The root of the tree, or null for an empty formula.
+     */
+    private ExpressionTree.ExpressionTreeNode parseExpression(final CharSequence theFormula) {
+        final int length = theFormula.length();
+        boolean expectOperand = true;
+        // True at the start of the formula and right after a '(', where + and - may have no left side.
+        boolean expressionStart = true;
+        int index = 0;
+        while (true) {
+            while (index < length && Character.isWhitespace(theFormula.charAt(index))) {
+                index++;
+            }
+            if (index == length) break;
+            final char ch = theFormula.charAt(index);
+            final int start = index;
+
+            if (expectOperand) {
+                if (ch >= '0' && ch <= '9') {
+                    int value = 0;
+                    while (index < length && theFormula.charAt(index) >= '0' && theFormula.charAt(index) <= '9') {
+                        value = appendDigit(value, theFormula.charAt(index++), "Number too large", start);
+                    }
+                    pushNode(new ExpressionTree.ExpressionTreeNode(literal(value), null, null));
+                    expectOperand = false;
+                } else if (Character.isLetter(ch) || ch == '_') {
+                    // The name of a sheet, followed by '!', may come before the cell.
+                    Spreadsheet sheet = null;
+                    int end = index;
+                    while (end < length && isNameCharacter(theFormula.charAt(end))) {
+                        end++;
+                    }
+                    if (end < length && theFormula.charAt(end) == '!') {
+                        sheet = findSheet(theFormula.subSequence(index, end).toString(), start);
+                        index = end + 1;
+                        if (index == length || theFormula.charAt(index) < 'A' || theFormula.charAt(index) > 'Z') {
+                            throw new FormulaParseException("Expected a cell", index);
+                        }
+                    } else if (ch > 'Z') {
+                        throw new FormulaParseException("Expected a number, cell or '('", index);
+                    }
+                    final int letters = index;
+                    while (index < length && theFormula.charAt(index) >= 'A' && theFormula.charAt(index) <= 'Z') {
+                        index++;
+                    }
+                    final int column = CellAddress.decodeColumn(theFormula, letters, index);
+                    if (column == CellAddress.BAD_CELL) {
+                        throw new FormulaParseException("Column too large", start);
+                    }
+                    if (index == length || theFormula.charAt(index) < '0' || theFormula.charAt(index) > '9') {
+                        throw new FormulaParseException("Expected a row number", index);
+                    }
+                    int row = 0;
+                    while (index < length && theFormula.charAt(index) >= '0' && theFormula.charAt(index) <= '9') {
+                        row = appendDigit(row, theFormula.charAt(index++), "Row too large", start);
+                    }
+                    CellToken cell = new CellToken(column, row);
+                    pushNode(new ExpressionTree.ExpressionTreeNode(sheet == null || sheet == mySheet
+                            ? cell : new SheetReference(sheet, cell), null, null));
+                    expectOperand = false;
+                } else if (ch == '#') {
+                    // A reference to a deleted cell, as written by toFormula.
+                    final String text = ReferenceErrorToken.TEXT;
+                    if (length - index < text.length()
+                            || !text.contentEquals(theFormula.subSequence(index, index + text.length()))) {
+                        throw new FormulaParseException("Expected " + text, index);
+                    }
+                    pushNode(new ExpressionTree.ExpressionTreeNode(ReferenceErrorToken.INSTANCE, null, null));
+                    index += text.length();
+                    expectOperand = false;
+                } else if (ch == OperatorToken.LeftParen) {
+                    pushOperator(ch, index++);
+                    expressionStart = true;
+                    continue;
+                } else if (expressionStart && (ch == OperatorToken.Plus || ch == OperatorToken.Minus)) {
+                    pushNode(null);
+                    pushOperator(ch, index++);
+                } else {
+                    throw new FormulaParseException("Expected a number, cell or '('", index);
+                }
+            } else {
+                if (ch == OperatorToken.RightParen) {
+                    while (myOperatorCount > 0 && myOperators[myOperatorCount - 1] != OperatorToken.LeftParen) {
+                        reduce();
+                    }
+                    if (myOperatorCount == 0) {
+                        throw new FormulaParseException("')' without a matching '('", index);
+                    }
+                    myOperatorCount--;
+                    index++;
+                } else if (ch == OperatorToken.Plus || ch == OperatorToken.Minus || ch == OperatorToken.Mult
+                        || ch == OperatorToken.Div || ch == OperatorToken.Pow) {
+                    final int priority = OperatorToken.operatorPriority(ch);
+                    while (myOperatorCount > 0 && myOperators[myOperatorCount - 1] != OperatorToken.LeftParen
+                            && OperatorToken.operatorPriority(myOperators[myOperatorCount - 1]) >= priority) {
+                        reduce();
+                    }
+                    pushOperator(ch, index++);
+                    expectOperand = true;
+                } else {
+                    throw new FormulaParseException("Expected an operator or ')'", index);
+                }
+            }
+            expressionStart = false;
+        }
+
+        if (myNodeCount == 0 && myOperatorCount == 0) {
+            return null;
+        }
+        if (expectOperand) {
+            throw new FormulaParseException("Formula ends before its last operand", length);
+        }
+        while (myOperatorCount > 0) {
+            if (myOperators[myOperatorCount - 1] == OperatorToken.LeftParen) {
+                throw new FormulaParseException("'(' is never closed", myPositions[myOperatorCount - 1]);
+            }
+            reduce();
+        }
+        return myNodes[0];
+    }
+
+    /**
+     * Adds a decimal digit to the end of a number.
+     * @param theValue The number so far.
+     * @param theDigit The digit character.
+     * @param theProblem The error message if the number gets too large for an int.
+     * @param thePosition Where the number starts.
+     * @return The longer number.
+     */
+    private static int appendDigit(final int theValue, final char theDigit, final String theProblem,
+                                   final int thePosition) {
+        final int digit = theDigit - '0';
+        if (theValue > (Integer.MAX_VALUE - digit) / 10) {
+            throw new FormulaParseException(theProblem, thePosition);
+        }
+        return theValue * 10 + digit;
+    }
+
+    /**
+     * @return True if the character can be part of a sheet name.
+     */
+    private static boolean isNameCharacter(final char theChar) {
+        return Character.isLetterOrDigit(theChar) || theChar == '_';
+    }
+
+    /**
+     * Looks up a sheet named in a formula.
+     * @param theName The sheet's name.
+     * @param thePosition Where the name starts.
+     * @return The sheet.
+     */
+    private Spreadsheet findSheet(final String theName, final int thePosition) {
+        Workbook workbook = mySheet == null ? null : mySheet.getWorkbook();
+        if (workbook == null) {
+            throw new FormulaParseException("Only a sheet in a workbook can refer to other sheets", thePosition);
+        }
+        Spreadsheet sheet = workbook.getSheet(theName);
+        if (sheet == null) {
+            throw new FormulaParseException("Unknown sheet " + theName, thePosition);
+        }
+        return sheet;
+    }
+
+    /**
+     * Applies the operator on top of the operator stack to the top two operands.
+     */
+    private void reduce() {
+        final char operator = myOperators[--myOperatorCount];
+        final ExpressionTree.ExpressionTreeNode right = myNodes[--myNodeCount];
+        final ExpressionTree.ExpressionTreeNode left = myNodes[--myNodeCount];
+        myNodes[myNodeCount++] = new ExpressionTree.ExpressionTreeNode(operatorToken(operator), left, right);
+    }
+
+    private void pushNode(final ExpressionTree.ExpressionTreeNode theNode) {
+        if (myNodeCount == myNodes.length) {
+            myNodes = Arrays.copyOf(myNodes, myNodeCount * 2);
+        }
+        myNodes[myNodeCount++] = theNode;
+    }
+
+    private void pushOperator(final char theOperator, final int thePosition) {
+        if (myOperatorCount == myOperators.length) {
+            myOperators = Arrays.copyOf(myOperators, myOperatorCount * 2);
+            myPositions = Arrays.copyOf(myPositions, myOperatorCount * 2);
+        }
+        myOperators[myOperatorCount] = theOperator;
+        myPositions[myOperatorCount++] = thePosition;
+    }
+
+    /**
+     * Empties the stacks, letting go of the nodes so they can be garbage collected.
+     */
+    private void clear() {
+        Arrays.fill(myNodes, 0, myNodeCount, null);
+        mySheet = null;
+        myNodeCount = 0;
+        myOperatorCount = 0;
+    }
+
+    /** @return The shared token for an operator. */
+    private static OperatorToken operatorToken(final char theOperator) {
+        switch (theOperator) {
+            case OperatorToken.Plus:
+                return PLUS;
+            case OperatorToken.Minus:
+                return MINUS;
+            case OperatorToken.Mult:
+                return MULT;
+            case OperatorToken.Div:
+                return DIV;
+            default:
+                return POW;
+        }
+    }
+
+    /** @return A token for a literal, shared if it is small. */
+    private static LiteralToken literal(final int theValue) {
+        return theValue < SMALL_LITERALS.length ? SMALL_LITERALS[theValue] : new LiteralToken(theValue);
+    }
+}
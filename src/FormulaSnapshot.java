@@ -0,0 +1,77 @@
+/**
+ * FormulaSnapshot is an immutable view of every formula in a Spreadsheet at one moment, together
+ * with the values published at that moment. Taking one is cheap: the sheet keeps its rows of
+ * cells copy-on-write, so the snapshot only copies the outer array and a row is duplicated later
+ * only if it is edited while the snapshot is still in use. This lets a slow reader, such as a
+ * background save, work from a consistent sheet while editing carries on.
+ * @author Chelsea Dacones
+ * @author Makai Martines
+ * @author Elias Peterson
+ * @author Alexis Zakrzewski
+ */
+public final class FormulaSnapshot {
+    /**
+     * The rows of cells, which the spreadsheet will not write to again. There may be more rows
+     * than the sheet had, and rows may be null or short, as in the spreadsheet.
+     */
+    private final Cell[][] myRows;
+
+    /** The values published when the formulas were taken. */
+    private final SheetSnapshot myValues;
+
+    /**
+     * Creates a snapshot from rows of cells that must not be changed afterwards.
+     * @param theRows The rows of cells.
+     * @param theValues The values published when the rows were taken.
+     */
+    FormulaSnapshot(final Cell[][] theRows, final SheetSnapshot theValues) {
+        myRows = theRows;
+        myValues = theValues;
+    }
+
+    /**
+     * @return The number of rows in this snapshot.
+     */
+    public int getNumRows() {
+        return myValues.getNumRows();
+    }
+
+    /**
+     * @return The number of columns in this snapshot.
+     */
+    public int getNumColumns() {
+        return myValues.getNumColumns();
+    }
+
+    /**
+     * Returns the formula of a cell.
+     * @param theRow The row of the cell.
+     * @param theColumn The column of the cell.
+     * @return The cell's formula, or an empty String if it has none.
+     */
+    public String getFormula(final int theRow, final int theColumn) {
+        final Cell[] row = myRows[theRow];
+        // A row that was never written, or ends before the column, has no formula there.
+        return row == null || theColumn >= row.length ? "" : row[theColumn].getFormula();
+    }
+
+    /**
+     * Returns a cell, formula and all.
+     * @param theRow The row of the cell.
+     * @param theColumn The column of the cell.
+     * @return The cell, or null if it has never been written.
+     */
+    Cell getCell(final int theRow, final int theColumn) {
+        final Cell[] row = myRows[theRow];
+        return row == null || theColumn >= row.length ? null : row[theColumn];
+    }
+
+    /**
+     * Returns the values that were published when the formulas were taken. In lazy mode some of
+     * them may not have been calculated yet.
+     * @return The values.
+     */
+    public SheetSnapshot getValues() {
+        return myValues;
+    }
+}
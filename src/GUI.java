@@ -1,10 +1,18 @@
 import javax.swing.*;
 import javax.swing.table.*;
 import java.awt.*;
+import java.awt.event.InputEvent;
+import java.awt.event.KeyEvent;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
 
 /**
  * The graphical user interface for a spreadsheet application.
@@ -15,6 +23,7 @@ import java.io.IOException;
  */
 public class GUI extends JFrame {
     private final JTable myTable;
+    private final SheetTableModel myModel;
     private JTable myRowHeader;
     private Spreadsheet mySheet;
     private final JScrollPane myScrollPane;
@@ -24,13 +33,28 @@ public class GUI extends JFrame {
 
     private JMenuBar myMenuBar;
 
+    /** The title of the window, to which save progress is added. */
+    private static final String TITLE = "TCSS 342 - Spreadsheet";
+
+    /** How long the sheet must go unchanged before it is saved again after a Save, in milliseconds. */
+    private static final long AUTOSAVE_DELAY = 2000;
+
+    /**
+     * The most cells a change batch repaints one by one. A bigger batch repaints the rows it spans
+     * with one event, since each cell event makes the table look up and repaint that cell.
+     */
+    private static final int CELL_UPDATE_LIMIT = 64;
+
+    /** Saves the sheet to the file it was last saved to, once it stops changing; null until the first Save. */
+    private Autosave myAutosave;
+
     /**
      * A constructor for the GUI that creates a new spreadsheet and initializes
      * GUI components.
      */
     public GUI() {
         createSheet();
-        TableModel myModel = new DefaultTableModel(mySheet.getNumRows(), mySheet.getNumColumns());
+        myModel = new SheetTableModel();
         myTable = new JTable(myModel);
         myScrollPane = new JScrollPane(myTable);
         myHeader = myTable.getTableHeader();
@@ -46,8 +70,8 @@ public class GUI extends JFrame {
     }
 
     /**
-     * Prompts the user to input the desired number of rows and columns for their spreadsheet.
-     * Then creates the table for the spreadsheet.
+     * Prompts the user to input the number of rows and columns their spreadsheet starts with.
+     * Then creates the table for the spreadsheet. The sheet grows later if a formula refers past its edge.
      */
     public void createSheet() {
         boolean validInput = false;
@@ -101,18 +125,24 @@ public class GUI extends JFrame {
             String formula = myInputBar.getText();
             int row = myTable.getSelectedRow();
             int col = myTable.getSelectedColumn();
+            if (row < 0 || col < 0) {
+                JOptionPane.showMessageDialog(this, "Please select a cell.");
+                return;
+            }
             CellToken cellToken = new CellToken();
             cellToken.setRow(row);
             cellToken.setColumn(col);
             try {
                 mySheet.changeCellFormulaAndRecalculate(cellToken, formula);
-            } catch (ArrayIndexOutOfBoundsException a) {
-                JOptionPane.showMessageDialog(this, "Please select a cell.");
+            } catch (FormulaParseException parseException) {
+                JOptionPane.showMessageDialog(this, parseException.getMessage(), "Invalid formula",
+                        JOptionPane.ERROR_MESSAGE);
+                myInputBar.setCaretPosition(parseException.getPosition());
             } catch (IllegalArgumentException illegalArgumentException) {
                 JOptionPane.showMessageDialog(this, "You have either entered a formula that refers to it own cell " +
                                 "\nor referenced a cell not in the table.", "Invalid formula", JOptionPane.ERROR_MESSAGE);
             }
-            updateAllCells();
+            updateVisibleCells();
         });
         add(myInputBar, BorderLayout.NORTH);
     }
@@ -128,13 +158,51 @@ public class GUI extends JFrame {
         // create "Clear" item
         JMenuItem clear  = new JMenuItem("Clear");
         clear.addActionListener(e -> {
+            Map<CellToken, String> emptyFormulas = new HashMap<>();
             for (int row = 0; row < myTable.getRowCount(); row++) {
                 for (int col = 0; col < myTable.getColumnCount(); col++) {
                     CellToken cellToken = new CellToken(col, row);
-                    mySheet.getCell(cellToken).setFormula("");
+                    if (!mySheet.getCell(cellToken).isEmpty()) {
+                        emptyFormulas.put(cellToken, "");
+                    }
                 }
             }
-            updateAllCells();
+            // Going through the spreadsheet (rather than just blanking each formula) also clears the values.
+            mySheet.changeCellFormulasAndRecalculate(emptyFormulas);
+            updateVisibleCells();
+        });
+
+        // create "Undo" and "Redo" items
+        JMenuItem undo = new JMenuItem("Undo");
+        undo.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_Z, InputEvent.CTRL_DOWN_MASK));
+        undo.addActionListener(e -> switchEdit(true));
+        JMenuItem redo = new JMenuItem("Redo");
+        redo.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_Y, InputEvent.CTRL_DOWN_MASK));
+        redo.addActionListener(e -> switchEdit(false));
+
+        // create items that insert or delete the selected cell's row or column
+        JMenuItem insertRow = new JMenuItem("Insert Row");
+        insertRow.addActionListener(e -> moveCells(true, true));
+        JMenuItem deleteRow = new JMenuItem("Delete Row");
+        deleteRow.addActionListener(e -> moveCells(false, true));
+        JMenuItem insertColumn = new JMenuItem("Insert Column");
+        insertColumn.addActionListener(e -> moveCells(true, false));
+        JMenuItem deleteColumn = new JMenuItem("Delete Column");
+        deleteColumn.addActionListener(e -> moveCells(false, false));
+
+        // create items that copy the first row or column of the selection across the rest of it
+        JMenuItem fillDown = new JMenuItem("Fill Down");
+        fillDown.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_D, InputEvent.CTRL_DOWN_MASK));
+        fillDown.addActionListener(e -> fillSelection(true));
+        JMenuItem fillRight = new JMenuItem("Fill Right");
+        fillRight.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_R, InputEvent.CTRL_DOWN_MASK));
+        fillRight.addActionListener(e -> fillSelection(false));
+
+        // create "Lazy Calculation" item, which leaves cells off screen to be calculated when they are scrolled to
+        JCheckBoxMenuItem lazy = new JCheckBoxMenuItem("Lazy Calculation");
+        lazy.addActionListener(e -> {
+            mySheet.setCalculationMode(lazy.isSelected() ? CalculationMode.LAZY : CalculationMode.EAGER);
+            updateVisibleCells();
         });
 
         // create "New" item
@@ -148,12 +216,18 @@ public class GUI extends JFrame {
             fileChooser.setCurrentDirectory(new File("."));
             int option = fileChooser.showSaveDialog(GUI.this);
             if (option == JFileChooser.APPROVE_OPTION) {
-                String filePath = fileChooser.getSelectedFile().getPath();
-                try {
-                    mySheet.saveToFile(filePath, myTable, myRowHeader);
-                } catch (IOException ex) {
-                    throw new RuntimeException(ex);
-                }
+                save(fileChooser.getSelectedFile().getPath());
+            }
+        });
+
+        // create "Export Values..." item, which writes the computed values as CSV, or TSV for a .tsv file
+        JMenuItem export = new JMenuItem("Export Values...");
+        export.addActionListener(e -> {
+            JFileChooser fileChooser = new JFileChooser();
+            fileChooser.setCurrentDirectory(new File("."));
+            int option = fileChooser.showSaveDialog(GUI.this);
+            if (option == JFileChooser.APPROVE_OPTION) {
+                exportValues(fileChooser.getSelectedFile().getPath());
             }
         });
 
@@ -166,7 +240,7 @@ public class GUI extends JFrame {
             if (option == JFileChooser.APPROVE_OPTION) {
                 File file1 = fileChooser.getSelectedFile();
                 try {
-                    mySheet.readFromFile(file1.getAbsolutePath(), myTable);
+                    mySheet.readFromFile(file1.getAbsolutePath());
                     updateAllCells();
                 } catch (IOException ex) {
                     ex.printStackTrace();
@@ -178,28 +252,248 @@ public class GUI extends JFrame {
         file.add(newSpreadsheet);
         file.add(open);
         file.add(save);
+        file.add(export);
+        edit.add(undo);
+        edit.add(redo);
         edit.add(clear);
+        edit.addSeparator();
+        edit.add(insertRow);
+        edit.add(deleteRow);
+        edit.add(insertColumn);
+        edit.add(deleteColumn);
+        edit.addSeparator();
+        edit.add(fillDown);
+        edit.add(fillRight);
+        edit.addSeparator();
+        edit.add(lazy);
         myMenuBar.add(file);
         myMenuBar.add(edit);
     }
 
     /**
-     * Updates all the cells' displayed values.
+     * Updates all the cells' displayed values, for when the whole sheet may have changed, such
+     * as when a file has been opened. Otherwise the table is kept up to date by the spreadsheet's
+     * change batches. In lazy mode only the cells on screen are calculated; the rest are brought
+     * up to date when they are scrolled into view.
      */
     public void updateAllCells() {
-        for(int x = 0; x < mySheet.getNumColumns(); x++) {
-            for(int y = 0; y < mySheet.getNumRows(); y++) {
-                CellToken cellToken = new CellToken(x, y);
-                // Only print a value in this cell if it actually has a formula in it.
-                if(mySheet.getCell(cellToken).getFormula().compareTo("") != 0) {
-                    myTable.setValueAt(mySheet.getCell(cellToken).evaluate(mySheet), y, x);
-                } else {
-                    myTable.setValueAt("", y, x);
+        Rectangle visible = myTable.getVisibleRect();
+        mySheet.calculateRange(firstVisibleRow(visible), firstVisibleColumn(visible),
+                lastVisibleRow(visible), lastVisibleColumn(visible));
+        followSheetSize();
+        myModel.fireTableDataChanged();
+    }
+
+    /**
+     * Grows the table and its row header to the sheet's size, if the sheet has grown.
+     */
+    private void followSheetSize() {
+        myModel.followSheetSize();
+        if (myRowHeader != null) {
+            ((DefaultTableModel) myRowHeader.getModel()).setRowCount(myModel.getRowCount());
+        }
+    }
+
+    /**
+     * Saves the sheet in the background, showing the progress in the title bar, and from then on
+     * saves it to the same file whenever it has been left unchanged for a while.
+     * @param theFilePath The file to save to.
+     */
+    private void save(final String theFilePath) {
+        mySheet.saveInBackground(theFilePath, (theRowsWritten, theTotalRows) -> SwingUtilities.invokeLater(() ->
+                setTitle(TITLE + " - Saving " + (int) (100L * theRowsWritten / theTotalRows) + "%")))
+                .whenComplete((theResult, theError) -> SwingUtilities.invokeLater(() -> {
+                    setTitle(TITLE);
+                    if (theError != null) {
+                        JOptionPane.showMessageDialog(this, "Could not save " + theFilePath + ": "
+                                + theError.getCause().getMessage());
+                    }
+                }));
+        if (myAutosave != null) {
+            myAutosave.close();
+        }
+        myAutosave = new Autosave(mySheet, theFilePath, AUTOSAVE_DELAY, theError -> {
+            if (theError != null) {
+                SwingUtilities.invokeLater(() -> setTitle(TITLE + " - Autosave failed: " + theError.getMessage()));
+            }
+        });
+    }
+
+    /**
+     * Exports the sheet's computed values in the background, showing in the title bar that it is
+     * under way.
+     * @param theFilePath The file to write.
+     */
+    private void exportValues(final String theFilePath) {
+        setTitle(TITLE + " - Exporting");
+        CompletableFuture.runAsync(() -> {
+            try {
+                ValueExport.exportSheet(mySheet, Path.of(theFilePath), ValueExport.Format.forFileName(theFilePath));
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }).whenComplete((theResult, theError) -> SwingUtilities.invokeLater(() -> {
+            setTitle(TITLE);
+            if (theError != null) {
+                JOptionPane.showMessageDialog(this, "Could not export " + theFilePath + ": "
+                        + theError.getCause().getMessage());
+            }
+        }));
+    }
+
+    /**
+     * Fills the selected cells from the first row or column of the selection, then shows the
+     * selected cell's formula as it now is.
+     * @param theDown True to fill down from the first row, false to fill right from the first column.
+     */
+    private void fillSelection(final boolean theDown) {
+        int[] rows = myTable.getSelectedRows();
+        int[] cols = myTable.getSelectedColumns();
+        if (rows.length == 0 || cols.length == 0) {
+            JOptionPane.showMessageDialog(this, "Please select the cells to fill.");
+            return;
+        }
+        int top = rows[0];
+        int left = cols[0];
+        int bottom = rows[rows.length - 1];
+        int right = cols[cols.length - 1];
+        try {
+            if (theDown) mySheet.fillDown(top, left, bottom, right); else mySheet.fillRight(top, left, bottom, right);
+        } catch (IllegalArgumentException ex) {
+            JOptionPane.showMessageDialog(this, ex.getMessage());
+            return;
+        }
+        updateVisibleCells();
+        myInputBar.setText(mySheet.getCell(myTable.getSelectedRow(), myTable.getSelectedColumn()).getFormula());
+    }
+
+    /**
+     * Undoes or redoes an edit, then shows the selected cell's formula as it now is.
+     * @param theUndo True to undo, false to redo.
+     */
+    private void switchEdit(final boolean theUndo) {
+        try {
+            if (theUndo ? mySheet.undo() : mySheet.redo()) {
+                updateVisibleCells();
+                int row = myTable.getSelectedRow();
+                int col = myTable.getSelectedColumn();
+                if (row >= 0 && col >= 0) {
+                    myInputBar.setText(mySheet.getCell(row, col).getFormula());
                 }
             }
+        } catch (IllegalArgumentException ex) {
+            JOptionPane.showMessageDialog(this, ex.getMessage());
         }
     }
 
+    /**
+     * Inserts or deletes the selected cell's row or column, then shows the selected cell's formula
+     * as it now is. The moved values reach the table as a change batch.
+     * @param theInsert True to insert, false to delete.
+     * @param theRow True for the row, false for the column.
+     */
+    private void moveCells(final boolean theInsert, final boolean theRow) {
+        int row = myTable.getSelectedRow();
+        int col = myTable.getSelectedColumn();
+        if (row < 0 || col < 0) {
+            JOptionPane.showMessageDialog(this, "Please select a cell.");
+            return;
+        }
+        try {
+            if (theRow) {
+                if (theInsert) mySheet.insertRows(row, 1); else mySheet.deleteRows(row, 1);
+            } else {
+                if (theInsert) mySheet.insertColumns(col, 1); else mySheet.deleteColumns(col, 1);
+            }
+        } catch (IllegalArgumentException ex) {
+            JOptionPane.showMessageDialog(this, ex.getMessage());
+            return;
+        }
+        updateVisibleCells();
+        myInputBar.setText(mySheet.getCell(row, col).getFormula());
+    }
+
+    /**
+     * Makes sure the cells on screen are calculated. In lazy mode this may publish new values,
+     * which reach the table as a change batch; in eager mode every value is already up to date.
+     */
+    public void updateVisibleCells() {
+        Rectangle visible = myTable.getVisibleRect();
+        mySheet.calculateRange(firstVisibleRow(visible), firstVisibleColumn(visible),
+                lastVisibleRow(visible), lastVisibleColumn(visible));
+    }
+
+    /**
+     * Subscribes the table to the spreadsheet's changes, so each edit updates only the cells it changed,
+     * or for a large edit the rows they span.
+     */
+    private void subscribeToChanges() {
+        mySheet.getChanges().subscribe(new Flow.Subscriber<ChangeBatch>() {
+            private Flow.Subscription mySubscription;
+
+            @Override
+            public void onSubscribe(final Flow.Subscription theSubscription) {
+                mySubscription = theSubscription;
+                mySubscription.request(1);
+            }
+
+            @Override
+            public void onNext(final ChangeBatch theBatch) {
+                SwingUtilities.invokeLater(() -> {
+                    // A batch may come from the sheet growing, or hold cells it has grown into.
+                    followSheetSize();
+                    if (theBatch.size() <= CELL_UPDATE_LIMIT) {
+                        for (int i = 0; i < theBatch.size(); i++) {
+                            myModel.fireTableCellUpdated(theBatch.getRow(i), theBatch.getColumn(i));
+                        }
+                    } else {
+                        int first = Integer.MAX_VALUE;
+                        int last = Integer.MIN_VALUE;
+                        for (int i = 0; i < theBatch.size(); i++) {
+                            first = Math.min(first, theBatch.getRow(i));
+                            last = Math.max(last, theBatch.getRow(i));
+                        }
+                        myModel.fireTableRowsUpdated(first, last);
+                    }
+                });
+                mySubscription.request(1);
+            }
+
+            @Override
+            public void onError(final Throwable theError) {
+                SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(GUI.this,
+                        "The table stopped following the sheet: " + theError.getMessage()
+                                + "\nPlease reopen the spreadsheet.", TITLE, JOptionPane.ERROR_MESSAGE));
+            }
+
+            @Override
+            public void onComplete() {
+            }
+        });
+    }
+
+    /** @return The first row at least partly on screen. */
+    private int firstVisibleRow(final Rectangle theVisible) {
+        return Math.max(myTable.rowAtPoint(theVisible.getLocation()), 0);
+    }
+
+    /** @return The last row at least partly on screen, or the last row if the table isn't shown yet. */
+    private int lastVisibleRow(final Rectangle theVisible) {
+        int row = myTable.rowAtPoint(new Point(theVisible.x, theVisible.y + theVisible.height - 1));
+        return row < 0 ? mySheet.getNumRows() - 1 : row;
+    }
+
+    /** @return The first column at least partly on screen. */
+    private int firstVisibleColumn(final Rectangle theVisible) {
+        return Math.max(myTable.columnAtPoint(theVisible.getLocation()), 0);
+    }
+
+    /** @return The last column at least partly on screen, or the last column if the table isn't shown yet. */
+    private int lastVisibleColumn(final Rectangle theVisible) {
+        int column = myTable.columnAtPoint(new Point(theVisible.x + theVisible.width - 1, theVisible.y));
+        return column < 0 ? mySheet.getNumColumns() - 1 : column;
+    }
+
     /**
      * Sets up the components in this frame.
      */
@@ -228,10 +522,17 @@ public class GUI extends JFrame {
                 SwingUtilities.invokeLater(() -> myInputBar.setCaretPosition(myInputBar.getText().length()));
             }
         });
+        // In lazy mode, cells are calculated as they scroll into view.
+        myScrollPane.getViewport().addChangeListener(e -> {
+            if (mySheet.getCalculationMode() == CalculationMode.LAZY) {
+                updateVisibleCells();
+            }
+        });
         myHeader.setBackground(new Color(250, 250, 250));
         int height = myTable.getRowHeight() * myTable.getRowCount();
         int width = myTable.getColumnModel().getTotalColumnWidth();
         myScrollPane.setPreferredSize(new Dimension(width, height + 35));
+        subscribeToChanges();
         createInputBar();
         createRowHeader();
         createMenu();
@@ -246,9 +547,64 @@ public class GUI extends JFrame {
         setUpComponents();
         pack();
         setResizable(true);
-        setTitle("TCSS 342 - Spreadsheet");
+        setTitle(TITLE);
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         setLocationRelativeTo(null);
         setVisible(true);
     }
+
+    /**
+     * SheetTableModel shows the values the sheet last published. It reads them from the sheet's
+     * snapshot rather than keeping a copy, so the table grows with the sheet without copying
+     * anything; it only takes on the sheet's new size when told to, on the event thread.
+     */
+    private final class SheetTableModel extends AbstractTableModel {
+        private static final long serialVersionUID = 1L;
+
+        /** The number of rows the table shows. */
+        private int myRowCount = mySheet.getNumRows();
+
+        /** The number of columns the table shows. */
+        private int myColumnCount = mySheet.getNumColumns();
+
+        @Override
+        public int getRowCount() {
+            return myRowCount;
+        }
+
+        @Override
+        public int getColumnCount() {
+            return myColumnCount;
+        }
+
+        @Override
+        public String getColumnName(final int theColumn) {
+            return CellAddress.getColumnLabel(theColumn);
+        }
+
+        @Override
+        public Object getValueAt(final int theRow, final int theColumn) {
+            SheetSnapshot snapshot = mySheet.getSnapshot();
+            // Only print a number in this cell if it actually has a formula in it.
+            return snapshot.getStatus(theRow, theColumn) == SheetSnapshot.NUMBER
+                    ? (Object) snapshot.getValue(theRow, theColumn) : snapshot.getText(theRow, theColumn);
+        }
+
+        /**
+         * Grows to the sheet's size, if the sheet has grown.
+         */
+        void followSheetSize() {
+            int rows = mySheet.getNumRows();
+            int columns = mySheet.getNumColumns();
+            if (columns > myColumnCount) {
+                myRowCount = rows;
+                myColumnCount = columns;
+                fireTableStructureChanged();
+            } else if (rows > myRowCount) {
+                int first = myRowCount;
+                myRowCount = rows;
+                fireTableRowsInserted(first, rows - 1);
+            }
+        }
+    }
 }
@@ -0,0 +1,85 @@
+/**
+ * HeapValueChunk is a ValueChunk kept in ordinary Java arrays: the values in an int array,
+ * and each status bitmap in a long array.
+ * @author Chelsea Dacones
+ * @author Makai Martines
+ * @author Elias Peterson
+ * @author Alexis Zakrzewski
+ */
+final class HeapValueChunk extends ValueChunk {
+    /** The value of each row. Empty and error cells hold 0. */
+    private final int[] myValues;
+
+    /** One bit per row, set if the cell has a formula. */
+    private final long[] myPresent;
+
+    /** One bit per row, set if the cell's formula couldn't be evaluated. */
+    private final long[] myErrors;
+
+    /**
+     * Creates a chunk of empty cells.
+     * @param theRows The number of rows in this chunk.
+     */
+    HeapValueChunk(final int theRows) {
+        myValues = new int[theRows];
+        myPresent = new long[(theRows + 63) >>> 6];
+        myErrors = new long[myPresent.length];
+    }
+
+    /**
+     * Creates a copy of another chunk.
+     * @param theOther The chunk to copy.
+     */
+    private HeapValueChunk(final HeapValueChunk theOther) {
+        myValues = theOther.myValues.clone();
+        myPresent = theOther.myPresent.clone();
+        myErrors = theOther.myErrors.clone();
+    }
+
+    @Override
+    int size() {
+        return myValues.length;
+    }
+
+    @Override
+    int getValue(final int theIndex) {
+        return myValues[theIndex];
+    }
+
+    @Override
+    byte getStatus(final int theIndex) {
+        final long bit = 1L << theIndex;
+        if ((myPresent[theIndex >>> 6] & bit) == 0) {
+            return SheetSnapshot.EMPTY;
+        }
+        return (myErrors[theIndex >>> 6] & bit) == 0 ? SheetSnapshot.NUMBER : SheetSnapshot.ERROR;
+    }
+
+    @Override
+    void set(final int theIndex, final int theValue, final byte theStatus) {
+        final int word = theIndex >>> 6;
+        final long bit = 1L << theIndex;
+        myValues[theIndex] = theStatus == SheetSnapshot.NUMBER ? theValue : 0;
+        myPresent[word] = theStatus == SheetSnapshot.EMPTY ? myPresent[word] & ~bit : myPresent[word] | bit;
+        myErrors[word] = theStatus == SheetSnapshot.ERROR ? myErrors[word] | bit : myErrors[word] & ~bit;
+    }
+
+    @Override
+    void copyValues(final int theFrom, final int[] theDestination, final int theOffset, final int theLength) {
+        System.arraycopy(myValues, theFrom, theDestination, theOffset, theLength);
+    }
+
+    @Override
+    long sum(final int theFrom, final int theTo) {
+        long sum = 0;
+        for (int i = theFrom; i < theTo; i++) {
+            sum += myValues[i];
+        }
+        return sum;
+    }
+
+    @Override
+    ValueChunk copy() {
+        return new HeapValueChunk(this);
+    }
+}
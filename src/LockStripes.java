@@ -0,0 +1,163 @@
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * LockStripes divides a spreadsheet into rectangular blocks of rows and columns and keeps
+ * one lock per block. An edit locks only the blocks holding the cells it reads or writes,
+ * so edits to unrelated parts of a sheet can run at the same time.
+ * <br>
+ * Stripes are numbered row block by row block, and are always locked in increasing order
+ * of their number, which keeps two edits from deadlocking on each other.
+ * <br>
+ * The number of stripes is fixed by the size the sheet had when they were made. Once a sheet
+ * has grown past that, its new cells share the stripes of earlier blocks, so every cell still
+ * has a lock, just a busier one.
+ * @author Chelsea Dacones
+ * @author Makai Martines
+ * @author Elias Peterson
+ * @author Alexis Zakrzewski
+ */
+public class LockStripes {
+    /** The number of rows in each stripe. */
+    private final int myStripeRows;
+
+    /** The number of columns in each stripe. */
+    private final int myStripeColumns;
+
+    /** The number of stripes across one row block. */
+    private final int myStripesPerRow;
+
+    /** The lock of each stripe. */
+    private final ReentrantLock[] myLocks;
+
+    /**
+     * Creates the stripes for a sheet of the given size.
+     * @param theRows The number of rows in the sheet.
+     * @param theColumns The number of columns in the sheet.
+     * @param theStripeRows The number of rows in each stripe.
+     * @param theStripeColumns The number of columns in each stripe.
+     */
+    public LockStripes(final int theRows, final int theColumns, final int theStripeRows, final int theStripeColumns) {
+        if (theStripeRows <= 0 || theStripeColumns <= 0) {
+            throw new IllegalArgumentException("Stripe sizes must be positive.");
+        }
+        myStripeRows = theStripeRows;
+        myStripeColumns = theStripeColumns;
+        myStripesPerRow = (theColumns + theStripeColumns - 1) / theStripeColumns;
+        final int rowBlocks = (theRows + theStripeRows - 1) / theStripeRows;
+        myLocks = new ReentrantLock[Math.max(rowBlocks * myStripesPerRow, 1)];
+        for (int i = 0; i < myLocks.length; i++) {
+            myLocks[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Returns the number of the stripe that holds a cell.
+     * @param theRow The row of the cell.
+     * @param theColumn The column of the cell.
+     * @return The cell's stripe number.
+     */
+    public int stripeOf(final int theRow, final int theColumn) {
+        return (int) (((long) (theRow / myStripeRows) * myStripesPerRow + theColumn / myStripeColumns)
+                % myLocks.length);
+    }
+
+    /**
+     * Returns the stripes that hold any of the given cells.
+     * @param theCells The cells to look up.
+     * @return The distinct stripe numbers, in increasing order.
+     */
+    public int[] stripesOf(final Collection<CellToken> theCells) {
+        int[] stripes = new int[theCells.size()];
+        int count = 0;
+        for (CellToken cell : theCells) {
+            stripes[count++] = stripeOf(cell.getRow(), cell.getColumn());
+        }
+        Arrays.sort(stripes);
+        int distinct = 0;
+        for (int i = 0; i < count; i++) {
+            if (distinct == 0 || stripes[distinct - 1] != stripes[i]) {
+                stripes[distinct++] = stripes[i];
+            }
+        }
+        return Arrays.copyOf(stripes, distinct);
+    }
+
+    /**
+     * Locks the given stripes, waiting for each as needed.
+     * @param theStripes Distinct stripe numbers in increasing order, as returned by stripesOf.
+     */
+    public void lock(final int[] theStripes) {
+        for (int stripe : theStripes) {
+            myLocks[stripe].lock();
+        }
+    }
+
+    /**
+     * Unlocks the given stripes, which must all be held by the current thread.
+     * @param theStripes The stripe numbers passed to lock.
+     */
+    public void unlock(final int[] theStripes) {
+        for (int i = theStripes.length - 1; i >= 0; i--) {
+            myLocks[theStripes[i]].unlock();
+        }
+    }
+
+    /**
+     * Locks every stripe, for operations that touch the whole sheet.
+     * @return The stripes that were locked, to pass to unlock.
+     */
+    public int[] lockAll() {
+        int[] stripes = new int[myLocks.length];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = i;
+        }
+        lock(stripes);
+        return stripes;
+    }
+
+    /**
+     * Returns whether one sorted set of stripes contains every stripe of another.
+     * @param theHeld Sorted stripe numbers.
+     * @param theNeeded Sorted stripe numbers.
+     * @return True if every needed stripe is also held.
+     */
+    public static boolean covers(final int[] theHeld, final int[] theNeeded) {
+        int i = 0;
+        for (int stripe : theNeeded) {
+            while (i < theHeld.length && theHeld[i] < stripe) {
+                i++;
+            }
+            if (i == theHeld.length || theHeld[i] != stripe) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Merges two sorted sets of stripes.
+     * @param theFirst Sorted stripe numbers.
+     * @param theSecond Sorted stripe numbers.
+     * @return The sorted, distinct union of both.
+     */
+    public static int[] union(final int[] theFirst, final int[] theSecond) {
+        int[] merged = new int[theFirst.length + theSecond.length];
+        int i = 0;
+        int j = 0;
+        int count = 0;
+        while (i < theFirst.length || j < theSecond.length) {
+            int next;
+            if (j == theSecond.length || (i < theFirst.length && theFirst[i] <= theSecond[j])) {
+                next = theFirst[i++];
+            } else {
+                next = theSecond[j++];
+            }
+            if (count == 0 || merged[count - 1] != next) {
+                merged[count++] = next;
+            }
+        }
+        return Arrays.copyOf(merged, count);
+    }
+}
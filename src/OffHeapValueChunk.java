@@ -0,0 +1,109 @@
+import java.nio.ByteBuffer;
+
+/**
+ * OffHeapValueChunk is a ValueChunk kept outside the Java heap in a ByteBuffer, either native
+ * memory or part of a memory-mapped file. Only this small object lives on the heap, however many
+ * rows it holds. The buffer holds the values first, then the two status bitmaps.
+ * @author Chelsea Dacones
+ * @author Makai Martines
+ * @author Elias Peterson
+ * @author Alexis Zakrzewski
+ */
+final class OffHeapValueChunk extends ValueChunk {
+    /** The storage this chunk came from, used to allocate copies. */
+    private final OffHeapValueStorage myStorage;
+
+    /** The chunk's memory, in native byte order. */
+    private final ByteBuffer myBuffer;
+
+    /** The number of rows in this chunk. */
+    private final int myRows;
+
+    /** Where the bitmap of present cells starts in the buffer. */
+    private final int myPresentOffset;
+
+    /** Where the bitmap of error cells starts in the buffer. */
+    private final int myErrorOffset;
+
+    /**
+     * Creates a chunk over memory that has been zeroed, which reads as all empty.
+     * @param theStorage The storage the memory came from.
+     * @param theBuffer The chunk's memory, at least bytesFor(theRows) long, in native byte order.
+     * @param theRows The number of rows in this chunk.
+     */
+    OffHeapValueChunk(final OffHeapValueStorage theStorage, final ByteBuffer theBuffer, final int theRows) {
+        myStorage = theStorage;
+        myBuffer = theBuffer;
+        myRows = theRows;
+        myPresentOffset = theRows * Integer.BYTES;
+        myErrorOffset = myPresentOffset + bitmapWords(theRows) * Long.BYTES;
+    }
+
+    /**
+     * Returns how many bytes a chunk of the given number of rows needs.
+     * @param theRows The number of rows.
+     * @return The size of the chunk's memory in bytes.
+     */
+    static int bytesFor(final int theRows) {
+        return theRows * Integer.BYTES + 2 * bitmapWords(theRows) * Long.BYTES;
+    }
+
+    /**
+     * @return The number of longs in a status bitmap of the given number of rows.
+     */
+    private static int bitmapWords(final int theRows) {
+        return (theRows + 63) >>> 6;
+    }
+
+    @Override
+    int size() {
+        return myRows;
+    }
+
+    @Override
+    int getValue(final int theIndex) {
+        return myBuffer.getInt(theIndex * Integer.BYTES);
+    }
+
+    @Override
+    byte getStatus(final int theIndex) {
+        final int word = (theIndex >>> 6) * Long.BYTES;
+        final long bit = 1L << theIndex;
+        if ((myBuffer.getLong(myPresentOffset + word) & bit) == 0) {
+            return SheetSnapshot.EMPTY;
+        }
+        return (myBuffer.getLong(myErrorOffset + word) & bit) == 0 ? SheetSnapshot.NUMBER : SheetSnapshot.ERROR;
+    }
+
+    @Override
+    void set(final int theIndex, final int theValue, final byte theStatus) {
+        final int word = (theIndex >>> 6) * Long.BYTES;
+        final long bit = 1L << theIndex;
+        final long present = myBuffer.getLong(myPresentOffset + word);
+        final long errors = myBuffer.getLong(myErrorOffset + word);
+        myBuffer.putInt(theIndex * Integer.BYTES, theStatus == SheetSnapshot.NUMBER ? theValue : 0);
+        myBuffer.putLong(myPresentOffset + word, theStatus == SheetSnapshot.EMPTY ? present & ~bit : present | bit);
+        myBuffer.putLong(myErrorOffset + word, theStatus == SheetSnapshot.ERROR ? errors | bit : errors & ~bit);
+    }
+
+    @Override
+    void copyValues(final int theFrom, final int[] theDestination, final int theOffset, final int theLength) {
+        myBuffer.asIntBuffer().get(theFrom, theDestination, theOffset, theLength);
+    }
+
+    @Override
+    long sum(final int theFrom, final int theTo) {
+        long sum = 0;
+        for (int i = theFrom; i < theTo; i++) {
+            sum += myBuffer.getInt(i * Integer.BYTES);
+        }
+        return sum;
+    }
+
+    @Override
+    ValueChunk copy() {
+        final OffHeapValueChunk copy = (OffHeapValueChunk) myStorage.newChunk(myRows);
+        copy.myBuffer.put(0, myBuffer, 0, bytesFor(myRows));
+        return copy;
+    }
+}
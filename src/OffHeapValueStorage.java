@@ -0,0 +1,137 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * OffHeapValueStorage keeps a Spreadsheet's computed values outside the Java heap, so a sheet
+ * with many values takes that much less heap. Only the values move: the cells, their formula
+ * trees and the dependents index stay on the heap whichever storage is used, so the heap still
+ * grows with the number of formulas.
+ * <br>
+ * Chunks are either native memory, freed when the garbage collector finds the chunk is no longer
+ * in any snapshot, or fixed size slots of a memory-mapped file. Mapped slots are handed back to a
+ * free list when their chunk becomes unreachable, so the file only grows to the size of the
+ * snapshots still in use.
+ * @author Chelsea Dacones
+ * @author Makai Martines
+ * @author Elias Peterson
+ * @author Alexis Zakrzewski
+ */
+public class OffHeapValueStorage implements ValueStorage, Closeable {
+    /** The number of chunk slots mapped at a time when the file has to grow. */
+    private static final int SLOTS_PER_SEGMENT = 1024;
+
+    /** The size of one slot, big enough for a full chunk. */
+    private static final int SLOT_BYTES = OffHeapValueChunk.bytesFor(ValueChunk.ROWS);
+
+    /** Returns mapped slots to the free list once their chunks are unreachable. */
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    /** The mapped file, or null when using native memory. */
+    private final FileChannel myChannel;
+
+    /** The mapped segments of the file, each holding SLOTS_PER_SEGMENT slots. */
+    private final List<MappedByteBuffer> mySegments = new ArrayList<>();
+
+    /** Slots whose chunks have been collected, ready to be reused. */
+    private final Queue<Integer> myFreeSlots = new ConcurrentLinkedQueue<>();
+
+    /** A slot's worth of zeroes, copied over reused slots. */
+    private final ByteBuffer myZeroes;
+
+    /** The number of slots handed out so far. */
+    private int myNextSlot;
+
+    /**
+     * Creates storage that keeps values in native memory.
+     */
+    public OffHeapValueStorage() {
+        myChannel = null;
+        myZeroes = null;
+    }
+
+    /**
+     * Creates storage that keeps values in a memory-mapped file. The file is created if needed
+     * and its previous contents are discarded. It can be deleted once the storage is closed
+     * and no Spreadsheet uses it any more.
+     * @param theFile The file to map.
+     */
+    public OffHeapValueStorage(final Path theFile) throws IOException {
+        myChannel = FileChannel.open(theFile, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        myZeroes = ByteBuffer.allocateDirect(SLOT_BYTES);
+    }
+
+    @Override
+    public ValueChunk newChunk(final int theRows) {
+        if (myChannel == null) {
+            // Direct buffers start zeroed, which is what an all empty chunk looks like.
+            ByteBuffer buffer = ByteBuffer.allocateDirect(OffHeapValueChunk.bytesFor(theRows))
+                    .order(ByteOrder.nativeOrder());
+            return new OffHeapValueChunk(this, buffer, theRows);
+        }
+
+        Integer slot = myFreeSlots.poll();
+        ByteBuffer buffer;
+        if (slot != null) {
+            buffer = slice(slot);
+            buffer.put(0, myZeroes, 0, SLOT_BYTES);
+        } else {
+            slot = newSlot();
+            buffer = slice(slot);
+        }
+        OffHeapValueChunk chunk = new OffHeapValueChunk(this, buffer, theRows);
+        final int freedSlot = slot;
+        CLEANER.register(chunk, () -> myFreeSlots.add(freedSlot));
+        return chunk;
+    }
+
+    /**
+     * Takes a never used slot, mapping another segment of the file if every segment is full.
+     * Newly mapped file space reads as zeroes.
+     * @return The slot number.
+     */
+    private synchronized int newSlot() {
+        int slot = myNextSlot++;
+        if (slot / SLOTS_PER_SEGMENT == mySegments.size()) {
+            try {
+                long position = (long) mySegments.size() * SLOTS_PER_SEGMENT * SLOT_BYTES;
+                mySegments.add(myChannel.map(FileChannel.MapMode.READ_WRITE, position,
+                        (long) SLOTS_PER_SEGMENT * SLOT_BYTES));
+            } catch (IOException e) {
+                myNextSlot--;
+                throw new IllegalStateException("Couldn't grow the value file", e);
+            }
+        }
+        return slot;
+    }
+
+    /**
+     * @return A buffer over the given slot, in native byte order.
+     */
+    private synchronized ByteBuffer slice(final int theSlot) {
+        return mySegments.get(theSlot / SLOTS_PER_SEGMENT)
+                .slice((theSlot % SLOTS_PER_SEGMENT) * SLOT_BYTES, SLOT_BYTES)
+                .order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Closes the mapped file. Mapped chunks stay readable until they are collected.
+     */
+    @Override
+    public void close() throws IOException {
+        if (myChannel != null) {
+            myChannel.close();
+        }
+    }
+}
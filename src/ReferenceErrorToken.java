@@ -0,0 +1,25 @@
+/**
+ * ReferenceErrorToken stands in a formula for a reference to a cell that was deleted, written
+ * as "#REF!". Evaluating it is always an error.
+ * @author Chelsea Dacones
+ * @author Makai Martines
+ * @author Elias Peterson
+ * @author Alexis Zakrzewski
+ */
+public final class ReferenceErrorToken extends Token {
+    /** How the token is written in a formula. */
+    public static final String TEXT = "#REF!";
+
+    /** The only token, shared by every formula since it never changes. */
+    static final ReferenceErrorToken INSTANCE = new ReferenceErrorToken();
+
+    private ReferenceErrorToken() {
+    }
+
+    /**
+     * @return The token as it is written in a formula.
+     */
+    public String toString() {
+        return TEXT;
+    }
+}
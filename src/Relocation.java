@@ -0,0 +1,157 @@
+/**
+ * Relocation describes where cells move when rows or columns are inserted into or deleted from
+ * a sheet. Cells before the change stay where they are, cells after it move along, and cells
+ * that are deleted (or pushed off the end of the sheet by an insert) are gone.
+ * @author Chelsea Dacones
+ * @author Makai Martines
+ * @author Elias Peterson
+ * @author Alexis Zakrzewski
+ */
+final class Relocation {
+    /** What shiftOf returns for a range whose cells don't all move by the same amount. */
+    static final int NOT_UNIFORM = Integer.MIN_VALUE;
+
+    /** True if rows move, false if columns move. */
+    private final boolean myRows;
+
+    /** The first row or column inserted or deleted. */
+    private final int myAt;
+
+    /** How many rows or columns are inserted, or minus how many are deleted. */
+    private final int myCount;
+
+    /** The number of rows or columns in the sheet. */
+    private final int mySize;
+
+    private Relocation(final boolean theRows, final int theAt, final int theCount, final int theSize) {
+        myRows = theRows;
+        myAt = theAt;
+        myCount = theCount;
+        mySize = theSize;
+    }
+
+    /**
+     * Describes inserting empty rows or columns, pushing the ones after them along.
+     * @param theRows True to insert rows, false to insert columns.
+     * @param theAt Where the first new row or column goes.
+     * @param theCount How many to insert.
+     * @param theSize The number of rows or columns in the sheet.
+     * @return The relocation.
+     * @throws IllegalArgumentException If the position or count is out of range.
+     */
+    static Relocation insert(final boolean theRows, final int theAt, final int theCount, final int theSize) {
+        if (theAt < 0 || theAt >= theSize || theCount < 1 || theCount > theSize - theAt) {
+            throw new IllegalArgumentException("Can't insert " + theCount + (theRows ? " rows" : " columns")
+                    + " at " + (theRows ? Integer.toString(theAt) : CellAddress.getColumnLabel(theAt)));
+        }
+        return new Relocation(theRows, theAt, theCount, theSize);
+    }
+
+    /**
+     * Describes deleting rows or columns, moving the ones after them back.
+     * @param theRows True to delete rows, false to delete columns.
+     * @param theAt The first row or column to delete.
+     * @param theCount How many to delete.
+     * @param theSize The number of rows or columns in the sheet.
+     * @return The relocation.
+     * @throws IllegalArgumentException If the position or count is out of range.
+     */
+    static Relocation delete(final boolean theRows, final int theAt, final int theCount, final int theSize) {
+        if (theAt < 0 || theAt >= theSize || theCount < 1 || theCount > theSize - theAt) {
+            throw new IllegalArgumentException("Can't delete " + theCount + (theRows ? " rows" : " columns")
+                    + " at " + (theRows ? Integer.toString(theAt) : CellAddress.getColumnLabel(theAt)));
+        }
+        return new Relocation(theRows, theAt, -theCount, theSize);
+    }
+
+    /**
+     * @return True if rows move, false if columns move.
+     */
+    boolean movesRows() {
+        return myRows;
+    }
+
+    /**
+     * @return The first row or column that moves or is gone; everything before it stays put.
+     */
+    int getFirstMoved() {
+        return myAt;
+    }
+
+    /**
+     * @return How many rows or columns are inserted, or minus how many are deleted.
+     */
+    int getCount() {
+        return myCount;
+    }
+
+    /**
+     * @return The first row or column pushed off the end of the sheet by an insert, or the size
+     *         of the sheet for a delete, which pushes nothing off.
+     */
+    int getFirstPushedOff() {
+        return myCount > 0 ? mySize - myCount : mySize;
+    }
+
+    /**
+     * Returns where a row or column moves to.
+     * @param theIndex The row or column before the change.
+     * @return The row or column after the change, or -1 if it is gone.
+     */
+    int map(final int theIndex) {
+        if (theIndex < myAt) {
+            return theIndex;
+        }
+        if (myCount > 0) {
+            return theIndex + myCount < mySize ? theIndex + myCount : -1;
+        }
+        return theIndex < myAt - myCount ? -1 : theIndex + myCount;
+    }
+
+    /**
+     * Returns where a row or column came from.
+     * @param theIndex The row or column after the change.
+     * @return The row or column before the change, or -1 if it is new and empty.
+     */
+    int source(final int theIndex) {
+        if (theIndex < myAt) {
+            return theIndex;
+        }
+        if (myCount > 0) {
+            return theIndex < myAt + myCount ? -1 : theIndex - myCount;
+        }
+        return theIndex - myCount < mySize ? theIndex - myCount : -1;
+    }
+
+    /**
+     * Returns where a cell moves to.
+     * @param theCell The cell before the change.
+     * @return The same CellToken if the cell doesn't move, a new one if it does, or null if it is gone.
+     */
+    CellToken map(final CellToken theCell) {
+        final int index = myRows ? theCell.getRow() : theCell.getColumn();
+        final int moved = map(index);
+        if (moved == index) {
+            return theCell;
+        }
+        if (moved < 0) {
+            return null;
+        }
+        return myRows ? new CellToken(theCell.getColumn(), moved) : new CellToken(moved, theCell.getRow());
+    }
+
+    /**
+     * Returns how far a run of rows or columns moves, if every one of them moves the same distance.
+     * @param theFrom The first row or column of the run.
+     * @param theTo The last row or column of the run.
+     * @return The distance, or NOT_UNIFORM if the run is split up or partly gone.
+     */
+    int shiftOf(final int theFrom, final int theTo) {
+        final int from = map(theFrom);
+        final int to = map(theTo);
+        if (from < 0 || to < 0 || from - theFrom != to - theTo) {
+            return NOT_UNIFORM;
+        }
+        return from - theFrom;
+    }
+}
@@ -0,0 +1,17 @@
+/**
+ * SaveProgress is told how far a background save has got.
+ * @author Chelsea Dacones
+ * @author Makai Martines
+ * @author Elias Peterson
+ * @author Alexis Zakrzewski
+ */
+@FunctionalInterface
+public interface SaveProgress {
+    /**
+     * Called on the saving thread each time another block of rows has been written, and once
+     * more when the last row has been written.
+     * @param theRowsWritten How many rows have been written so far.
+     * @param theTotalRows How many rows will be written in all.
+     */
+    void rowsWritten(int theRowsWritten, int theTotalRows);
+}
@@ -0,0 +1,343 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+/**
+ * ScenarioModel answers what-if questions about a Spreadsheet: given new values for a few input
+ * cells, what would some output cells come to? Each scenario is a set of such overrides, and many
+ * scenarios can be run at once without editing the sheet.
+ * <br>
+ * The model is built once from a snapshot of the sheet's formulas and values, and never changes,
+ * so later edits to the sheet don't affect it and scenarios can share it from any thread. Each
+ * cell the formulas mention gets a number, with the cells that read it and its place in an order
+ * where every cell comes after the cells it reads. A scenario keeps only the values it changes,
+ * on top of the snapshot, and evaluates only the cells downstream of its overrides, in that
+ * order, skipping any whose inputs came out the same. Scenarios are run in parallel.
+ * <br>
+ * References to other sheets of a workbook read those sheets' current values.
+ * @author Chelsea Dacones
+ * @author Makai Martines
+ * @author Elias Peterson
+ * @author Alexis Zakrzewski
+ */
+public final class ScenarioModel {
+    /** The values of every cell when the model was built. */
+    private final SheetSnapshot myValues;
+
+    /** The number of each cell that has a formula or is read by one. */
+    private final Map<CellToken, Integer> myIds = new HashMap<>();
+
+    /** The cell with each number. */
+    private final CellToken[] myCells;
+
+    /** The formula of each numbered cell, or null if it has none. */
+    private final Cell[] myFormulas;
+
+    /** The numbers of the cells whose formulas read each numbered cell. */
+    private final int[][] myDependents;
+
+    /** Each numbered cell's place in evaluation order. */
+    private final int[] myRanks;
+
+    /**
+     * Builds a model of a sheet as it is now. In lazy mode the sheet is calculated first.
+     * @param theSheet The sheet to model.
+     */
+    public ScenarioModel(final Spreadsheet theSheet) {
+        // The values must be up to date for the formulas taken with them, so we go again if an edit came between.
+        SheetSnapshot calculated = theSheet.calculateAll();
+        FormulaSnapshot formulas = theSheet.snapshotFormulas();
+        while (formulas.getValues() != calculated) {
+            calculated = theSheet.calculateAll();
+            formulas = theSheet.snapshotFormulas();
+        }
+        myValues = calculated;
+
+        List<CellToken> cells = new ArrayList<>();
+        List<Cell> cellFormulas = new ArrayList<>();
+        for (int row = 0; row < formulas.getNumRows(); row++) {
+            for (int column = 0; column < formulas.getNumColumns(); column++) {
+                Cell cell = formulas.getCell(row, column);
+                if (cell != null && !cell.isEmpty()) {
+                    CellToken cellToken = new CellToken(column, row);
+                    myIds.put(cellToken, cells.size());
+                    cells.add(cellToken);
+                    cellFormulas.add(cell);
+                }
+            }
+        }
+        // Cells that are read but have no formula are numbered too, so they can be overridden.
+        int[][] precedents = new int[cells.size()][];
+        for (int id = 0; id < precedents.length; id++) {
+            List<CellToken> dependencies = cellFormulas.get(id).getDependencies();
+            precedents[id] = new int[dependencies.size()];
+            for (int i = 0; i < dependencies.size(); i++) {
+                CellToken dependency = dependencies.get(i);
+                Integer precedent = myIds.get(dependency);
+                if (precedent == null) {
+                    precedent = cells.size();
+                    CellToken cellToken = new CellToken(dependency.getColumn(), dependency.getRow());
+                    myIds.put(cellToken, precedent);
+                    cells.add(cellToken);
+                    cellFormulas.add(null);
+                }
+                precedents[id][i] = precedent;
+            }
+        }
+        myCells = cells.toArray(new CellToken[0]);
+        myFormulas = cellFormulas.toArray(new Cell[0]);
+
+        // Invert the precedent lists, counting a formula that reads a cell twice only once.
+        int[] dependentCounts = new int[myCells.length];
+        for (int[] read : precedents) {
+            for (int precedent : read) {
+                dependentCounts[precedent]++;
+            }
+        }
+        myDependents = new int[myCells.length][];
+        for (int id = 0; id < myCells.length; id++) {
+            myDependents[id] = new int[dependentCounts[id]];
+        }
+        int[] fill = new int[myCells.length];
+        for (int id = 0; id < precedents.length; id++) {
+            for (int precedent : precedents[id]) {
+                if (fill[precedent] == 0 || myDependents[precedent][fill[precedent] - 1] != id) {
+                    myDependents[precedent][fill[precedent]++] = id;
+                }
+            }
+        }
+        for (int id = 0; id < myCells.length; id++) {
+            if (fill[id] < myDependents[id].length) {
+                myDependents[id] = Arrays.copyOf(myDependents[id], fill[id]);
+            }
+        }
+        myRanks = rankCells();
+    }
+
+    /**
+     * Numbers the cells in an order where each comes after every cell it reads (Kahn's algorithm).
+     * The sheet never holds a cycle, so every cell gets a place.
+     * @return Each cell's place in the order.
+     */
+    private int[] rankCells() {
+        int[] remaining = new int[myCells.length];
+        for (int[] dependents : myDependents) {
+            for (int dependent : dependents) {
+                remaining[dependent]++;
+            }
+        }
+        int[] ranks = new int[myCells.length];
+        int[] queue = new int[myCells.length];
+        int head = 0;
+        int tail = 0;
+        for (int id = 0; id < myCells.length; id++) {
+            if (remaining[id] == 0) {
+                queue[tail++] = id;
+            }
+        }
+        while (head < tail) {
+            int current = queue[head];
+            ranks[current] = head++;
+            for (int dependent : myDependents[current]) {
+                if (--remaining[dependent] == 0) {
+                    queue[tail++] = dependent;
+                }
+            }
+        }
+        return ranks;
+    }
+
+    /**
+     * @return The version of the snapshot the model was built from.
+     */
+    public long getVersion() {
+        return myValues.getVersion();
+    }
+
+    /**
+     * Runs scenarios in parallel and reads the same output cells from each.
+     * @param theScenarios The overrides of each scenario: the value each overridden cell takes
+     *                     instead of its own. An overridden cell's formula is not evaluated.
+     * @param theOutputs The cells to read from every scenario.
+     * @return The output values of every scenario.
+     * @throws IllegalArgumentException If an overridden or output cell isn't in the sheet.
+     */
+    public Results run(final List<Map<CellToken, Integer>> theScenarios, final List<CellToken> theOutputs) {
+        for (CellToken output : theOutputs) {
+            checkInSheet(output);
+        }
+        for (Map<CellToken, Integer> scenario : theScenarios) {
+            for (CellToken input : scenario.keySet()) {
+                checkInSheet(input);
+            }
+        }
+        final int outputs = theOutputs.size();
+        final int[] values = new int[theScenarios.size() * outputs];
+        final byte[] statuses = new byte[values.length];
+        IntStream.range(0, theScenarios.size()).parallel().forEach(scenario -> {
+            ValueChanges overlay = evaluate(theScenarios.get(scenario));
+            for (int i = 0; i < outputs; i++) {
+                CellToken output = theOutputs.get(i);
+                int index = overlay.indexOf(output.getRow(), output.getColumn());
+                int slot = scenario * outputs + i;
+                if (index >= 0) {
+                    values[slot] = overlay.getValue(index);
+                    statuses[slot] = overlay.getStatus(index);
+                } else {
+                    statuses[slot] = myValues.getStatus(output.getRow(), output.getColumn());
+                    values[slot] = statuses[slot] == SheetSnapshot.NUMBER
+                            ? myValues.getValue(output.getRow(), output.getColumn()) : 0;
+                }
+            }
+        });
+        return new Results(outputs, values, statuses);
+    }
+
+    /**
+     * Works out the values one scenario changes.
+     * @param theOverrides The value of each overridden cell.
+     * @return The overridden cells and every cell whose value came out differently.
+     */
+    private ValueChanges evaluate(final Map<CellToken, Integer> theOverrides) {
+        ValueChanges overlay = new ValueChanges();
+        // The cells downstream of the overrides, found by walking the dependents.
+        boolean[] seen = new boolean[0];
+        int[] downstream = new int[16];
+        int count = 0;
+        ArrayDeque<Integer> toVisit = new ArrayDeque<>();
+        for (Map.Entry<CellToken, Integer> entry : theOverrides.entrySet()) {
+            CellToken cellToken = entry.getKey();
+            overlay.put(cellToken.getRow(), cellToken.getColumn(), entry.getValue(), SheetSnapshot.NUMBER);
+            Integer id = myIds.get(cellToken);
+            if (id != null) {
+                toVisit.push(id);
+            }
+        }
+        if (!toVisit.isEmpty()) {
+            seen = new boolean[myCells.length];
+        }
+        while (!toVisit.isEmpty()) {
+            for (int dependent : myDependents[toVisit.pop()]) {
+                if (!seen[dependent]) {
+                    seen[dependent] = true;
+                    if (count == downstream.length) {
+                        downstream = Arrays.copyOf(downstream, count * 2);
+                    }
+                    downstream[count++] = dependent;
+                    toVisit.push(dependent);
+                }
+            }
+        }
+        // Sorting by place puts every cell after the cells it reads.
+        long[] order = new long[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = (long) myRanks[downstream[i]] << 32 | downstream[i];
+        }
+        Arrays.sort(order);
+
+        CellValues values = (theRow, theColumn) -> overlay.read(theRow, theColumn, myValues);
+        for (long ranked : order) {
+            int id = (int) ranked;
+            CellToken cellToken = myCells[id];
+            int row = cellToken.getRow();
+            int column = cellToken.getColumn();
+            if (theOverrides.containsKey(cellToken) || !readsNewValue(myFormulas[id], overlay)) {
+                continue;
+            }
+            int value = 0;
+            byte status = SheetSnapshot.NUMBER;
+            try {
+                value = myFormulas[id].evaluate(values);
+            } catch (ArithmeticException e) {
+                status = SheetSnapshot.ERROR;
+            }
+            if (status != myValues.getStatus(row, column)
+                    || (status == SheetSnapshot.NUMBER && value != myValues.getValue(row, column))) {
+                overlay.put(row, column, value, status);
+            }
+        }
+        return overlay;
+    }
+
+    /**
+     * Returns whether a formula reads any cell the scenario has given a new value.
+     */
+    private static boolean readsNewValue(final Cell theFormula, final ValueChanges theOverlay) {
+        for (CellToken dependency : theFormula.getDependencies()) {
+            if (theOverlay.contains(dependency.getRow(), dependency.getColumn())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @throws IllegalArgumentException If the cell isn't in the sheet the model was built from.
+     */
+    private void checkInSheet(final CellToken theCell) {
+        if (theCell.getRow() < 0 || theCell.getRow() >= myValues.getNumRows()
+                || theCell.getColumn() < 0 || theCell.getColumn() >= myValues.getNumColumns()) {
+            throw new IllegalArgumentException(theCell + " is not in the spreadsheet");
+        }
+    }
+
+    /**
+     * Results holds the output values of a run of scenarios.
+     */
+    public static final class Results {
+        /** The number of outputs each scenario has. */
+        private final int myOutputs;
+
+        /** The value of each output of each scenario, scenario by scenario. */
+        private final int[] myValues;
+
+        /** The status of each output of each scenario, in the same order. */
+        private final byte[] myStatuses;
+
+        private Results(final int theOutputs, final int[] theValues, final byte[] theStatuses) {
+            myOutputs = theOutputs;
+            myValues = theValues;
+            myStatuses = theStatuses;
+        }
+
+        /**
+         * Returns the status of one output of one scenario.
+         * @param theScenario The scenario's position in the list that was run.
+         * @param theOutput The output's position in the list of outputs.
+         * @return SheetSnapshot.EMPTY, NUMBER or ERROR.
+         */
+        public byte getStatus(final int theScenario, final int theOutput) {
+            return myStatuses[slot(theScenario, theOutput)];
+        }
+
+        /**
+         * Returns the value of one output of one scenario. Empty cells have the value 0.
+         * @param theScenario The scenario's position in the list that was run.
+         * @param theOutput The output's position in the list of outputs.
+         * @return The value.
+         * @throws ArithmeticException If the output holds an error in that scenario.
+         */
+        public int getValue(final int theScenario, final int theOutput) {
+            int slot = slot(theScenario, theOutput);
+            if (myStatuses[slot] == SheetSnapshot.ERROR) {
+                throw new ArithmeticException("Output " + theOutput + " of scenario " + theScenario
+                        + " holds an error");
+            }
+            return myValues[slot];
+        }
+
+        /**
+         * @return Where one output of one scenario is kept.
+         */
+        private int slot(final int theScenario, final int theOutput) {
+            if (theOutput < 0 || theOutput >= myOutputs) {
+                throw new IndexOutOfBoundsException("No output " + theOutput);
+            }
+            return theScenario * myOutputs + theOutput;
+        }
+    }
+}
@@ -0,0 +1,398 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * ShardWorker is the child process of a ShardedCalculation. It owns one block of columns: it
+ * parses and evaluates the formulas of those columns only, and keeps only their values, plus the
+ * values of cells in other blocks that its formulas read, which the coordinator sends it.
+ * <br>
+ * It talks to the coordinator over its standard input and output in binary. First it is sent
+ * its block and then its formulas, one at a time, and answers with the cells of other blocks
+ * that they read. Next it is sent which of its own cells other blocks read. Then, for each
+ * round, it is sent the values from other blocks that became known in the last round, evaluates
+ * every cell that can now be evaluated and answers with the new values other blocks read and how
+ * many of its cells are still waiting. Finally it writes the value of every cell in its block,
+ * row by row.
+ * @author Chelsea Dacones
+ * @author Makai Martines
+ * @author Elias Peterson
+ * @author Alexis Zakrzewski
+ */
+public final class ShardWorker {
+    /** Message carrying one formula. */
+    static final int CELL = 1;
+
+    /** Message ending the formulas. */
+    static final int END_CELLS = 2;
+
+    /** Message starting a round. */
+    static final int ROUND = 3;
+
+    /** Message asking for the values and ending the worker. */
+    static final int FINISH = 4;
+
+    /** The most cells one block can have, since its values are kept in one array. */
+    static final long MAX_CELLS = Integer.MAX_VALUE - 8;
+
+    /** The number of rows in the sheet. */
+    private int myRows;
+
+    /** The number of columns in the sheet. */
+    private int myColumns;
+
+    /** The first column of this worker's block. */
+    private int myFromColumn;
+
+    /** One past the last column of this worker's block. */
+    private int myToColumn;
+
+    /** The value of each cell in the block, indexed by column within the block and then row. */
+    private int[] myValues;
+
+    /** The status of each cell in the block, as a SheetSnapshot status, indexed like myValues. */
+    private byte[] myStatuses;
+
+    /** The position, formula and number of precedents not yet known of each owned cell with a formula. */
+    private int myCellCount;
+    private int[] myCellRows = new int[16];
+    private int[] myCellColumns = new int[16];
+    private ExpressionTree[] myCellTrees = new ExpressionTree[16];
+    private int[] myCellWaiting;
+
+    /** The id of each owned cell with a formula, by key. */
+    private final Map<Long, Integer> myIds = new HashMap<>();
+
+    /** The owned cells that read each owned cell with a formula, by id. */
+    private final Map<Integer, List<Integer>> myLocalDependents = new HashMap<>();
+
+    /** The owned cells that read each cell of another block, by key. */
+    private final Map<Long, List<Integer>> myRemoteDependents = new HashMap<>();
+
+    /** The other blocks that read each owned cell, by key. */
+    private final Map<Long, List<Integer>> myReaders = new HashMap<>();
+
+    /** The values of cells in other blocks that this block reads, by key. An error is stored as null. */
+    private final Map<Long, Integer> myImported = new HashMap<>();
+
+    /** The owned cells that can be evaluated, as a stack of ids. */
+    private int[] myReady;
+    private int myReadyCount;
+
+    /** How many owned cells have been evaluated. */
+    private int myEvaluatedCount;
+
+    /** The values for other blocks found this round, and how many there are. */
+    private final ByteArrayOutputStream myExports = new ByteArrayOutputStream();
+    private int myExportCount;
+
+    private ShardWorker() {
+    }
+
+    /**
+     * Runs the worker until the coordinator finishes it.
+     * @param args ignored
+     */
+    public static void main(final String[] args) throws IOException {
+        // Anything printed by accident must not end up in the middle of a message.
+        OutputStream stdout = new FileOutputStream(FileDescriptor.out);
+        System.setOut(System.err);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(System.in));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stdout));
+        try {
+            new ShardWorker().run(in, out);
+        } catch (EOFException e) {
+            // The coordinator stopped early, after finding an error in another block.
+        }
+    }
+
+    /**
+     * Reads the block's cells and readers, then answers rounds until told to finish.
+     */
+    private void run(final DataInputStream theIn, final DataOutputStream theOut) throws IOException {
+        String error = readCells(theIn);
+        theOut.writeBoolean(error == null);
+        if (error != null) {
+            writeText(theOut, error);
+            theOut.flush();
+            return;
+        }
+        theOut.writeInt(myRemoteDependents.size());
+        for (long key : myRemoteDependents.keySet()) {
+            theOut.writeInt((int) (key >>> 32));
+            theOut.writeInt((int) key);
+        }
+        theOut.flush();
+        readReaders(theIn);
+
+        while (true) {
+            int message = theIn.readInt();
+            if (message == FINISH) {
+                writeValues(theOut);
+                return;
+            }
+            if (message != ROUND) {
+                throw new IOException("Unexpected message " + message);
+            }
+            int imports = theIn.readInt();
+            for (int i = 0; i < imports; i++) {
+                long key = key(theIn.readInt(), theIn.readInt());
+                byte status = theIn.readByte();
+                int value = theIn.readInt();
+                myImported.put(key, status == SheetSnapshot.ERROR ? null : value);
+                for (int dependent : myRemoteDependents.get(key)) {
+                    known(dependent);
+                }
+            }
+            while (myReadyCount > 0) {
+                evaluate(myReady[--myReadyCount]);
+            }
+            theOut.writeInt(myExportCount);
+            myExports.writeTo(theOut);
+            myExports.reset();
+            myExportCount = 0;
+            theOut.writeInt(myCellCount - myEvaluatedCount);
+            theOut.flush();
+        }
+    }
+
+    /**
+     * Reads this worker's block and formulas, and works out what each formula waits for.
+     * @return Why the formulas can't be calculated, or null if they can.
+     */
+    private String readCells(final DataInputStream theIn) throws IOException {
+        myRows = theIn.readInt();
+        myColumns = theIn.readInt();
+        myFromColumn = theIn.readInt();
+        myToColumn = theIn.readInt();
+        final long cells = (long) myRows * (myToColumn - myFromColumn);
+        if (cells > MAX_CELLS) {
+            throw new IllegalArgumentException("A block of " + cells + " cells is too big for one worker");
+        }
+        myValues = new int[(int) cells];
+        myStatuses = new byte[myValues.length];
+
+        // Every formula is read, even after a bad one, so the coordinator is never left waiting to write.
+        String error = null;
+        int message;
+        while ((message = theIn.readInt()) == CELL) {
+            int row = theIn.readInt();
+            int column = theIn.readInt();
+            String formula = readText(theIn);
+            if (error != null) {
+                continue;
+            }
+            try {
+                addCell(row, column, FormulaParser.parse(formula));
+            } catch (IllegalArgumentException e) {
+                error = e.getMessage();
+            }
+        }
+        if (message != END_CELLS) {
+            throw new IOException("Unexpected message " + message);
+        }
+        if (error != null) {
+            return error;
+        }
+
+        myCellWaiting = new int[myCellCount];
+        myReady = new int[myCellCount];
+        for (int id = 0; id < myCellCount; id++) {
+            Set<Long> precedents = new HashSet<>();
+            for (CellToken dependency : myCellTrees[id].getDependencies()) {
+                int row = dependency.getRow();
+                int column = dependency.getColumn();
+                if (row >= myRows || column >= myColumns) {
+                    return dependency + " is not in the spreadsheet";
+                }
+                long key = key(row, column);
+                if (!precedents.add(key)) {
+                    continue;
+                }
+                if (column >= myFromColumn && column < myToColumn) {
+                    // A cell without a formula is empty, and reads as 0 without waiting for anything.
+                    Integer precedent = myIds.get(key);
+                    if (precedent != null) {
+                        myLocalDependents.computeIfAbsent(precedent, k -> new ArrayList<>()).add(id);
+                        myCellWaiting[id]++;
+                    }
+                } else {
+                    myRemoteDependents.computeIfAbsent(key, k -> new ArrayList<>()).add(id);
+                    myCellWaiting[id]++;
+                }
+            }
+            if (myCellWaiting[id] == 0) {
+                myReady[myReadyCount++] = id;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Adds an owned cell with a formula.
+     */
+    private void addCell(final int theRow, final int theColumn, final ExpressionTree theTree) {
+        if (myCellCount == myCellRows.length) {
+            int length = myCellCount + (myCellCount >> 1);
+            myCellRows = Arrays.copyOf(myCellRows, length);
+            myCellColumns = Arrays.copyOf(myCellColumns, length);
+            myCellTrees = Arrays.copyOf(myCellTrees, length);
+        }
+        myIds.put(key(theRow, theColumn), myCellCount);
+        myCellRows[myCellCount] = theRow;
+        myCellColumns[myCellCount] = theColumn;
+        myCellTrees[myCellCount] = theTree;
+        myCellCount++;
+    }
+
+    /**
+     * Reads which other blocks read each owned cell. Cells without a formula are empty, so their
+     * values are sent in the first round.
+     */
+    private void readReaders(final DataInputStream theIn) throws IOException {
+        int count = theIn.readInt();
+        for (int i = 0; i < count; i++) {
+            int row = theIn.readInt();
+            int column = theIn.readInt();
+            int reader = theIn.readInt();
+            long key = key(row, column);
+            myReaders.computeIfAbsent(key, k -> new ArrayList<>()).add(reader);
+            if (!myIds.containsKey(key)) {
+                export(reader, row, column);
+            }
+        }
+    }
+
+    /**
+     * Counts one more precedent of an owned cell as known.
+     * @param theCell The cell's id.
+     */
+    private void known(final int theCell) {
+        if (--myCellWaiting[theCell] == 0) {
+            myReady[myReadyCount++] = theCell;
+        }
+    }
+
+    /**
+     * Evaluates one owned cell, and passes its value on to the cells that read it.
+     * @param theCell The cell's id.
+     */
+    private void evaluate(final int theCell) throws IOException {
+        int row = myCellRows[theCell];
+        int column = myCellColumns[theCell];
+        int index = indexOf(row, column);
+        try {
+            myValues[index] = myCellTrees[theCell].evaluate(this::read);
+            myStatuses[index] = SheetSnapshot.NUMBER;
+        } catch (ArithmeticException e) {
+            myValues[index] = 0;
+            myStatuses[index] = SheetSnapshot.ERROR;
+        }
+        myEvaluatedCount++;
+        List<Integer> readers = myReaders.get(key(row, column));
+        if (readers != null) {
+            for (int reader : readers) {
+                export(reader, row, column);
+            }
+        }
+        List<Integer> dependents = myLocalDependents.get(theCell);
+        if (dependents != null) {
+            for (int dependent : dependents) {
+                known(dependent);
+            }
+        }
+    }
+
+    /**
+     * Reads a cell for a formula, from this block or from the values imported from other blocks.
+     * @throws ArithmeticException If the cell holds an error.
+     */
+    private int read(final int theRow, final int theColumn) {
+        if (theColumn >= myFromColumn && theColumn < myToColumn) {
+            int index = indexOf(theRow, theColumn);
+            if (myStatuses[index] == SheetSnapshot.ERROR) {
+                throw new ArithmeticException(CellAddress.toString(theColumn, theRow) + " holds an error");
+            }
+            return myValues[index];
+        }
+        Integer value = myImported.get(key(theRow, theColumn));
+        if (value == null) {
+            throw new ArithmeticException(CellAddress.toString(theColumn, theRow) + " holds an error");
+        }
+        return value;
+    }
+
+    /**
+     * Adds an owned cell's value to this round's answer, for one block that reads it.
+     */
+    private void export(final int theReader, final int theRow, final int theColumn) throws IOException {
+        DataOutputStream entry = new DataOutputStream(myExports);
+        entry.writeInt(theReader);
+        writeCell(entry, theRow, theColumn);
+        myExportCount++;
+    }
+
+    /**
+     * Writes the status and value of every cell in the block, row by row. Cells that were never
+     * evaluated, because they are in a cycle, are left empty.
+     */
+    private void writeValues(final DataOutputStream theOut) throws IOException {
+        for (int row = 0; row < myRows; row++) {
+            for (int column = myFromColumn; column < myToColumn; column++) {
+                int index = indexOf(row, column);
+                theOut.writeByte(myStatuses[index]);
+                theOut.writeInt(myValues[index]);
+            }
+        }
+        theOut.flush();
+    }
+
+    /**
+     * Writes one owned cell's row, column, status and value.
+     */
+    private void writeCell(final DataOutputStream theOut, final int theRow, final int theColumn) throws IOException {
+        int index = indexOf(theRow, theColumn);
+        theOut.writeInt(theRow);
+        theOut.writeInt(theColumn);
+        theOut.writeByte(myStatuses[index]);
+        theOut.writeInt(myValues[index]);
+    }
+
+    /**
+     * @return The index of an owned cell in myValues and myStatuses.
+     */
+    private int indexOf(final int theRow, final int theColumn) {
+        return (theColumn - myFromColumn) * myRows + theRow;
+    }
+
+    /**
+     * @return A key identifying a cell.
+     */
+    static long key(final int theRow, final int theColumn) {
+        return ((long) theRow << 32) | (theColumn & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Writes text of any length as its UTF-8 length and bytes.
+     */
+    static void writeText(final DataOutputStream theOut, final String theText) throws IOException {
+        byte[] bytes = theText.getBytes(StandardCharsets.UTF_8);
+        theOut.writeInt(bytes.length);
+        theOut.write(bytes);
+    }
+
+    /**
+     * Reads text written by writeText.
+     */
+    static String readText(final DataInputStream theIn) throws IOException {
+        byte[] bytes = new byte[theIn.readInt()];
+        theIn.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
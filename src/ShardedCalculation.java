@@ -0,0 +1,233 @@
+import java.io.*;
+import java.nio.file.Paths;
+import java.util.*;
+
+/**
+ * ShardedCalculation calculates a sheet too big for one Java heap by splitting it into blocks of
+ * columns, each owned by a ShardWorker running in its own JVM on the same machine. A worker
+ * parses and evaluates only its own formulas and keeps only its own values. This process never
+ * holds the sheet: it reads the file a line at a time, sending each formula straight to the
+ * worker that owns its column, passes on the values that one block reads from another, and
+ * writes the workers' values out a row at a time.
+ * <br>
+ * Cells are evaluated in rounds. In each round every worker evaluates, at the same time as the
+ * others, every cell whose precedents are all known, and answers with the values of those cells
+ * that other blocks read; they are sent on at the start of the next round. Values are exchanged
+ * over the workers' standard input and output. When a round finds nothing new for any block, the
+ * calculation is done, unless some cell is still waiting, which means there is a cycle.
+ * @author Chelsea Dacones
+ * @author Makai Martines
+ * @author Elias Peterson
+ * @author Alexis Zakrzewski
+ */
+public final class ShardedCalculation {
+    private ShardedCalculation() {
+    }
+
+    /**
+     * Calculates a file written by Spreadsheet.saveToFile and writes the computed values in the
+     * layout of Spreadsheet.writeValues.
+     * @param theFile The file to read.
+     * @param theShards The number of worker processes.
+     * @param theWriter Where to write the values; it is not closed, and should be buffered.
+     * @throws IllegalArgumentException If a formula is invalid or refers outside the sheet, or there is a cycle.
+     */
+    public static void calculateFile(final String theFile, final int theShards, final Writer theWriter)
+            throws IOException {
+        calculateFile(theFile, theShards, Collections.emptyList(), theWriter);
+    }
+
+    /**
+     * Calculates a file written by Spreadsheet.saveToFile in worker processes and writes the
+     * computed values in the layout of Spreadsheet.writeValues.
+     * @param theFile The file to read.
+     * @param theShards The number of worker processes; there are never more than there are columns.
+     * @param theJvmOptions Options for each worker's JVM, such as "-Xmx4g".
+     * @param theWriter Where to write the values; it is not closed, and should be buffered.
+     * @throws IllegalArgumentException If a formula is invalid or refers outside the sheet, a
+     *         block is too big for one worker, or there is a cycle.
+     */
+    public static void calculateFile(final String theFile, final int theShards, final List<String> theJvmOptions,
+                                     final Writer theWriter) throws IOException {
+        // The first pass only finds the size of the sheet, the way Spreadsheet.readFormulas does.
+        int rows = 0;
+        int columns;
+        try (BufferedReader reader = new BufferedReader(new FileReader(theFile))) {
+            String line = reader.readLine();
+            columns = line == null ? 0 : line.split("\t").length - 1;
+            while ((line = reader.readLine()) != null) {
+                columns = Math.max(columns, line.split("\t").length - 1);
+                rows++;
+            }
+        }
+        rows = Math.max(rows, 1);
+        columns = Math.max(columns, 1);
+
+        int shards = Math.max(1, Math.min(theShards, columns));
+        int blockWidth = (columns + shards - 1) / shards;
+        shards = (columns + blockWidth - 1) / blockWidth;
+        if ((long) rows * blockWidth > ShardWorker.MAX_CELLS) {
+            throw new IllegalArgumentException("Blocks of " + blockWidth + " columns of " + rows
+                    + " rows are too big for one worker; use more processes");
+        }
+
+        List<Process> workers = new ArrayList<>();
+        try {
+            List<DataOutputStream> outs = new ArrayList<>();
+            List<DataInputStream> ins = new ArrayList<>();
+            for (int shard = 0; shard < shards; shard++) {
+                Process worker = startWorker(theJvmOptions);
+                workers.add(worker);
+                outs.add(new DataOutputStream(new BufferedOutputStream(worker.getOutputStream())));
+                ins.add(new DataInputStream(new BufferedInputStream(worker.getInputStream())));
+            }
+
+            for (int shard = 0; shard < shards; shard++) {
+                DataOutputStream out = outs.get(shard);
+                out.writeInt(rows);
+                out.writeInt(columns);
+                out.writeInt(shard * blockWidth);
+                out.writeInt(Math.min(columns, (shard + 1) * blockWidth));
+            }
+            try (BufferedReader reader = new BufferedReader(new FileReader(theFile))) {
+                // the first line is the column header
+                String line = reader.readLine();
+                int row = 0;
+                while ((line = reader.readLine()) != null) {
+                    String[] formulas = line.split("\t");
+                    for (int i = 1; i < formulas.length; i++) {
+                        if (!formulas[i].isBlank()) {
+                            DataOutputStream out = outs.get((i - 1) / blockWidth);
+                            out.writeInt(ShardWorker.CELL);
+                            out.writeInt(row);
+                            out.writeInt(i - 1);
+                            ShardWorker.writeText(out, formulas[i]);
+                        }
+                    }
+                    row++;
+                }
+            }
+            for (DataOutputStream out : outs) {
+                out.writeInt(ShardWorker.END_CELLS);
+                out.flush();
+            }
+
+            // Each block is told which of its cells other blocks read: row, column and reader of each.
+            List<ByteArrayOutputStream> readers = new ArrayList<>();
+            int[] readerCounts = new int[shards];
+            for (int shard = 0; shard < shards; shard++) {
+                readers.add(new ByteArrayOutputStream());
+            }
+            for (int shard = 0; shard < shards; shard++) {
+                DataInputStream in = ins.get(shard);
+                if (!in.readBoolean()) {
+                    throw new IllegalArgumentException(ShardWorker.readText(in));
+                }
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    int row = in.readInt();
+                    int column = in.readInt();
+                    int owner = column / blockWidth;
+                    DataOutputStream entry = new DataOutputStream(readers.get(owner));
+                    entry.writeInt(row);
+                    entry.writeInt(column);
+                    entry.writeInt(shard);
+                    readerCounts[owner]++;
+                }
+            }
+            for (int shard = 0; shard < shards; shard++) {
+                outs.get(shard).writeInt(readerCounts[shard]);
+                readers.get(shard).writeTo(outs.get(shard));
+            }
+
+            // The values each block is still to be sent: row, column, status and value of each.
+            List<ByteArrayOutputStream> imports = new ArrayList<>();
+            int[] importCounts = new int[shards];
+            for (int shard = 0; shard < shards; shard++) {
+                imports.add(new ByteArrayOutputStream());
+            }
+            long sent;
+            long waiting;
+            do {
+                // Every worker is sent its round before any answer is read, so they all work at once.
+                for (int shard = 0; shard < shards; shard++) {
+                    DataOutputStream out = outs.get(shard);
+                    out.writeInt(ShardWorker.ROUND);
+                    out.writeInt(importCounts[shard]);
+                    imports.get(shard).writeTo(out);
+                    out.flush();
+                    imports.get(shard).reset();
+                    importCounts[shard] = 0;
+                }
+                sent = 0;
+                waiting = 0;
+                for (int shard = 0; shard < shards; shard++) {
+                    DataInputStream in = ins.get(shard);
+                    int count = in.readInt();
+                    for (int i = 0; i < count; i++) {
+                        int reader = in.readInt();
+                        DataOutputStream entry = new DataOutputStream(imports.get(reader));
+                        entry.writeInt(in.readInt());
+                        entry.writeInt(in.readInt());
+                        entry.writeByte(in.readByte());
+                        entry.writeInt(in.readInt());
+                        importCounts[reader]++;
+                    }
+                    sent += count;
+                    waiting += in.readInt();
+                }
+            } while (sent > 0);
+            if (waiting > 0) {
+                throw new IllegalArgumentException("Cycle found");
+            }
+
+            // Each worker writes its block a row at a time; a row is put together from every block.
+            for (DataOutputStream out : outs) {
+                out.writeInt(ShardWorker.FINISH);
+                out.flush();
+            }
+            char[] label = new char[CellAddress.MAX_LENGTH];
+            theWriter.write("\t");
+            for (int x = 0; x < columns; x++) {
+                theWriter.write(label, 0, CellAddress.encodeColumn(x, label, 0));
+                theWriter.write("\t");
+            }
+            theWriter.write("\n");
+            for (int y = 0; y < rows; y++) {
+                theWriter.write(label, 0, CellAddress.encodeRow(y, label, 0));
+                theWriter.write("\t");
+                for (int shard = 0; shard < shards; shard++) {
+                    DataInputStream in = ins.get(shard);
+                    int width = Math.min(columns, (shard + 1) * blockWidth) - shard * blockWidth;
+                    for (int x = 0; x < width; x++) {
+                        byte status = in.readByte();
+                        theWriter.write(SheetSnapshot.toText(status, in.readInt()));
+                        theWriter.write("\t");
+                    }
+                }
+                theWriter.write("\n");
+            }
+        } catch (EOFException e) {
+            throw new IOException("A worker process ended early", e);
+        } finally {
+            for (Process worker : workers) {
+                worker.destroy();
+            }
+        }
+    }
+
+    /**
+     * Starts a worker process running ShardWorker with this process's class path.
+     * @param theJvmOptions Options for the worker's JVM.
+     * @return The worker process.
+     */
+    private static Process startWorker(final List<String> theJvmOptions) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(theJvmOptions);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(ShardWorker.class.getName());
+        return new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+    }
+}
@@ -0,0 +1,247 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * SharedValueReader reads the values a SharedValueWriter in another process publishes, straight
+ * from the mapped file, without copying the file, parsing anything or calculating anything.
+ * <br>
+ * Every read is consistent: if the writer changes values while a read is under way, the read
+ * is retried, so the values returned together always come from one version of the sheet.
+ * <br>
+ * A file only ever holds a sheet of one size. Once the sheet's size changes, the writer moves to
+ * a new file at the same path and isStale starts returning true; open the path again to keep up.
+ * @author Chelsea Dacones
+ * @author Makai Martines
+ * @author Elias Peterson
+ * @author Alexis Zakrzewski
+ */
+public class SharedValueReader implements CellValues, Closeable {
+    /** The mapped file. */
+    private final MappedByteBuffer myBuffer;
+
+    /** The file's channel, kept open until close. */
+    private final FileChannel myChannel;
+
+    /** The number of rows in the sheet. */
+    private final int myRows;
+
+    /** The number of columns in the sheet. */
+    private final int myColumns;
+
+    /** Where the statuses start. */
+    private final int myStatusOffset;
+
+    /**
+     * Opens a value file.
+     * @param theFile The file a SharedValueWriter writes.
+     * @throws IOException If the file can't be read, or isn't a value file written on this machine.
+     */
+    public SharedValueReader(final Path theFile) throws IOException {
+        myChannel = FileChannel.open(theFile, StandardOpenOption.READ);
+        try {
+            long size = myChannel.size();
+            if (size < SharedValueWriter.HEADER_SIZE) {
+                throw new IOException(theFile + " is not a value file");
+            }
+            myBuffer = myChannel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            myBuffer.order(ByteOrder.nativeOrder());
+            // The writer sets the magic number last, once the header and values are in place.
+            int magic;
+            int rows;
+            int columns;
+            long sequence;
+            do {
+                sequence = stableSequence();
+                magic = myBuffer.getInt(SharedValueWriter.MAGIC_OFFSET);
+                rows = myBuffer.getInt(SharedValueWriter.ROWS_OFFSET);
+                columns = myBuffer.getInt(SharedValueWriter.COLUMNS_OFFSET);
+                VarHandle.loadLoadFence();
+            } while (sequence != sequence());
+            if (magic != SharedValueWriter.MAGIC
+                    || size < SharedValueWriter.HEADER_SIZE + (long) rows * columns * (Integer.BYTES + 1)) {
+                throw new IOException(theFile + " is not a value file");
+            }
+            myRows = rows;
+            myColumns = columns;
+            myStatusOffset = SharedValueWriter.HEADER_SIZE + myRows * myColumns * Integer.BYTES;
+        } catch (IOException | RuntimeException e) {
+            myChannel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return The number of rows in the sheet.
+     */
+    public int getNumRows() {
+        return myRows;
+    }
+
+    /**
+     * @return The number of columns in the sheet.
+     */
+    public int getNumColumns() {
+        return myColumns;
+    }
+
+    /**
+     * @return True once the writer has stopped updating this file because the sheet's size
+     *         changed. The file at the same path then holds the sheet, unless it grew too big to share.
+     */
+    public boolean isStale() {
+        return (long) SharedValueWriter.LONG.getAcquire(myBuffer, SharedValueWriter.STALE_OFFSET) != 0;
+    }
+
+    /**
+     * @return The version of the snapshot the file holds now.
+     */
+    public long getVersion() {
+        while (true) {
+            long sequence = stableSequence();
+            long version = (long) SharedValueWriter.LONG.get(myBuffer, SharedValueWriter.VERSION_OFFSET);
+            VarHandle.loadLoadFence();
+            if (sequence == sequence()) {
+                return version;
+            }
+        }
+    }
+
+    /**
+     * Returns the status of a cell.
+     * @param theRow The row of the cell.
+     * @param theColumn The column of the cell.
+     * @return SheetSnapshot.EMPTY, NUMBER or ERROR.
+     */
+    public byte getStatus(final int theRow, final int theColumn) {
+        int index = indexOf(theRow, theColumn);
+        while (true) {
+            long sequence = stableSequence();
+            byte status = myBuffer.get(myStatusOffset + index);
+            VarHandle.loadLoadFence();
+            if (sequence == sequence()) {
+                return status;
+            }
+        }
+    }
+
+    /**
+     * Returns the value of a cell. Empty cells have the value 0.
+     * @throws ArithmeticException If the cell holds an error.
+     */
+    @Override
+    public int getValue(final int theRow, final int theColumn) {
+        int index = indexOf(theRow, theColumn);
+        while (true) {
+            long sequence = stableSequence();
+            int value = myBuffer.getInt(SharedValueWriter.HEADER_SIZE + index * Integer.BYTES);
+            byte status = myBuffer.get(myStatusOffset + index);
+            VarHandle.loadLoadFence();
+            if (sequence == sequence()) {
+                if (status == SheetSnapshot.ERROR) {
+                    throw new ArithmeticException(CellAddress.toString(theColumn, theRow) + " holds an error");
+                }
+                return value;
+            }
+        }
+    }
+
+    /**
+     * Reads several cells from the same version of the sheet.
+     * @param theRows The row of each cell.
+     * @param theColumns The column of each cell.
+     * @param theValues Receives the value of each cell; 0 unless its status is NUMBER.
+     * @param theStatuses Receives the status of each cell.
+     * @return The version the cells were read from.
+     */
+    public long read(final int[] theRows, final int[] theColumns, final int[] theValues, final byte[] theStatuses) {
+        while (true) {
+            long sequence = stableSequence();
+            long version = (long) SharedValueWriter.LONG.get(myBuffer, SharedValueWriter.VERSION_OFFSET);
+            for (int i = 0; i < theRows.length; i++) {
+                int index = indexOf(theRows[i], theColumns[i]);
+                theValues[i] = myBuffer.getInt(SharedValueWriter.HEADER_SIZE + index * Integer.BYTES);
+                theStatuses[i] = myBuffer.get(myStatusOffset + index);
+            }
+            VarHandle.loadLoadFence();
+            if (sequence == sequence()) {
+                return version;
+            }
+        }
+    }
+
+    /**
+     * Copies a run of values from one column into an array, all from the same version of the sheet.
+     * Empty and error cells copy as 0.
+     * @param theColumn The column to copy from.
+     * @param theFromRow The first row to copy.
+     * @param theDestination The array to copy into.
+     * @param theOffset Where in the array to put the first value.
+     * @param theLength How many rows to copy.
+     * @return The version the values were read from.
+     */
+    public long copyColumn(final int theColumn, final int theFromRow,
+                           final int[] theDestination, final int theOffset, final int theLength) {
+        int first = indexOf(theFromRow, theColumn);
+        if (theLength > 0) {
+            indexOf(theFromRow + theLength - 1, theColumn);
+        }
+        while (true) {
+            long sequence = stableSequence();
+            long version = (long) SharedValueWriter.LONG.get(myBuffer, SharedValueWriter.VERSION_OFFSET);
+            for (int i = 0; i < theLength; i++) {
+                int index = first + i;
+                theDestination[theOffset + i] = myBuffer.get(myStatusOffset + index) == SheetSnapshot.NUMBER
+                        ? myBuffer.getInt(SharedValueWriter.HEADER_SIZE + index * Integer.BYTES) : 0;
+            }
+            VarHandle.loadLoadFence();
+            if (sequence == sequence()) {
+                return version;
+            }
+        }
+    }
+
+    /**
+     * Waits for the writer to finish any write under way.
+     * @return The even sequence number read.
+     */
+    private long stableSequence() {
+        long sequence = (long) SharedValueWriter.LONG.getAcquire(myBuffer, SharedValueWriter.SEQUENCE_OFFSET);
+        while ((sequence & 1) != 0) {
+            Thread.onSpinWait();
+            sequence = (long) SharedValueWriter.LONG.getAcquire(myBuffer, SharedValueWriter.SEQUENCE_OFFSET);
+        }
+        return sequence;
+    }
+
+    /**
+     * @return The sequence number now, to check against the one a read started with.
+     */
+    private long sequence() {
+        return (long) SharedValueWriter.LONG.getOpaque(myBuffer, SharedValueWriter.SEQUENCE_OFFSET);
+    }
+
+    /**
+     * @return The index of a cell among the values and statuses.
+     * @throws IndexOutOfBoundsException If the cell isn't in the sheet.
+     */
+    private int indexOf(final int theRow, final int theColumn) {
+        if (theRow < 0 || theRow >= myRows || theColumn < 0 || theColumn >= myColumns) {
+            throw new IndexOutOfBoundsException(theRow + ", " + theColumn + " is not in the spreadsheet");
+        }
+        return theColumn * myRows + theRow;
+    }
+
+    /**
+     * Closes the file. The mapping itself is released once this reader is garbage collected.
+     */
+    @Override
+    public void close() throws IOException {
+        myChannel.close();
+    }
+}
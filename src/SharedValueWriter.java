@@ -0,0 +1,306 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Flow;
+
+/**
+ * SharedValueWriter keeps a memory-mapped file up to date with the computed values of a
+ * Spreadsheet, so that other processes on the same machine can read them with a
+ * SharedValueReader instead of loading the sheet and calculating it themselves.
+ * <br>
+ * The file starts with a header holding the sheet's size, a sequence number and the version of
+ * the snapshot the file holds. Then comes the value of every cell, column by column, followed by
+ * the status of every cell in the same order. The sequence number makes the file a seqlock:
+ * it is odd while the writer is changing values and even otherwise, so a reader that sees the
+ * same even number before and after reading knows that what it read was not torn by a write.
+ * Each published ChangeBatch rewrites only the cells it lists.
+ * <br>
+ * A file keeps the size the sheet had when it was written. Each file is filled under a temporary
+ * name and then moved onto the path, so a reader opening the path always finds a complete file.
+ * Once the sheet's size changes, the writer moves a new file of the new size onto the path, and
+ * only then sets the old file's stale flag. A reader that finds its file stale opens the path again.
+ * @author Chelsea Dacones
+ * @author Makai Martines
+ * @author Elias Peterson
+ * @author Alexis Zakrzewski
+ */
+public class SharedValueWriter implements Closeable {
+    /** Identifies a value file, and that it was written with this machine's byte order. */
+    static final int MAGIC = 0x53505631;
+
+    /** Where the header fields are. */
+    static final int MAGIC_OFFSET = 0;
+    static final int ROWS_OFFSET = 4;
+    static final int COLUMNS_OFFSET = 8;
+    static final int SEQUENCE_OFFSET = 16;
+    static final int VERSION_OFFSET = 24;
+    static final int STALE_OFFSET = 32;
+
+    /** The size of the header; the values start here. */
+    static final int HEADER_SIZE = 64;
+
+    /** Reads and writes the long header fields atomically, as the seqlock needs. */
+    static final VarHandle LONG = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    /** The spreadsheet being published. */
+    private final Spreadsheet mySheet;
+
+    /** Where the file is. */
+    private final Path myFile;
+
+    /** The file's channel, kept open until close; null until the first file is written. Guarded by this. */
+    private FileChannel myChannel;
+
+    /** The mapped file; null until the first file is written. Guarded by this. */
+    private MappedByteBuffer myBuffer;
+
+    /** The number of rows in the file. Guarded by this. */
+    private int myRows;
+
+    /** The number of columns in the file. Guarded by this. */
+    private int myColumns;
+
+    /** Where the statuses start. Guarded by this. */
+    private int myStatusOffset;
+
+    /** Set if the sheet grew too big to share, after which the file is left stale. Guarded by this. */
+    private boolean myStopped;
+
+    /** The version of the snapshot the file holds. Guarded by this. */
+    private long myVersion;
+
+    /** Our subscription to the sheet's changes, once it has started. */
+    private volatile Flow.Subscription mySubscription;
+
+    /** Set once close has been called. */
+    private volatile boolean myClosed;
+
+    /**
+     * Creates or replaces a value file holding the current values of a spreadsheet, and keeps it
+     * up to date as the values change.
+     * @param theSheet The spreadsheet to publish.
+     * @param theFile The file to write.
+     * @throws IllegalArgumentException If the sheet has too many cells for one mapped file.
+     */
+    public SharedValueWriter(final Spreadsheet theSheet, final Path theFile) throws IOException {
+        mySheet = theSheet;
+        myFile = theFile;
+
+        // Subscribing first means no batch after the snapshot written here can be missed.
+        theSheet.getChanges().subscribe(new Flow.Subscriber<ChangeBatch>() {
+            @Override
+            public void onSubscribe(final Flow.Subscription theSubscription) {
+                mySubscription = theSubscription;
+                if (myClosed) {
+                    theSubscription.cancel();
+                } else {
+                    theSubscription.request(Long.MAX_VALUE);
+                }
+            }
+
+            @Override
+            public void onNext(final ChangeBatch theBatch) {
+                write(theBatch);
+            }
+
+            @Override
+            public void onError(final Throwable theError) {
+            }
+
+            @Override
+            public void onComplete() {
+            }
+        });
+        try {
+            writeLatest();
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Creates and maps a new file of the given size, under a temporary name until moveIntoPlace.
+     * @throws IllegalArgumentException If the size has too many cells for one mapped file.
+     */
+    private void open(final int theRows, final int theColumns) throws IOException {
+        long cells = (long) theRows * theColumns;
+        long size = HEADER_SIZE + cells * (Integer.BYTES + 1);
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("The sheet has too many cells to share");
+        }
+        // A new file rather than a truncated one, so readers still mapping an old file aren't cut short.
+        Path temporary = temporaryFile();
+        Files.deleteIfExists(temporary);
+        FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            myBuffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        myBuffer.order(ByteOrder.nativeOrder());
+        myChannel = channel;
+        myRows = theRows;
+        myColumns = theColumns;
+        myStatusOffset = (int) (HEADER_SIZE + cells * Integer.BYTES);
+    }
+
+    /**
+     * @return Where a new file is written until it is complete.
+     */
+    private Path temporaryFile() {
+        return myFile.resolveSibling(myFile.getFileName() + ".writing");
+    }
+
+    /**
+     * Moves the file written by open onto myFile, replacing the one readers would open before.
+     */
+    private void moveIntoPlace() throws IOException {
+        try {
+            Files.move(temporaryFile(), myFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temporaryFile(), myFile, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Writes the sheet's latest snapshot in full, first moving to a new file if the sheet's size
+     * has changed. The old file is marked stale once the new one is complete.
+     */
+    private synchronized void writeLatest() throws IOException {
+        // Taken under the lock: a batch already written here is never newer than this snapshot.
+        SheetSnapshot snapshot = mySheet.getSnapshot();
+        if (myBuffer != null && snapshot.getNumRows() == myRows && snapshot.getNumColumns() == myColumns) {
+            writeAll(snapshot);
+            return;
+        }
+        FileChannel oldChannel = myChannel;
+        MappedByteBuffer oldBuffer = myBuffer;
+        int oldRows = myRows;
+        int oldColumns = myColumns;
+        int oldStatusOffset = myStatusOffset;
+        open(snapshot.getNumRows(), snapshot.getNumColumns());
+        try {
+            writeAll(snapshot);
+            moveIntoPlace();
+        } catch (IOException | RuntimeException e) {
+            // The file at myFile is still the old one, so it stays the one to mark stale or close.
+            myChannel.close();
+            Files.deleteIfExists(temporaryFile());
+            myChannel = oldChannel;
+            myBuffer = oldBuffer;
+            myRows = oldRows;
+            myColumns = oldColumns;
+            myStatusOffset = oldStatusOffset;
+            throw e;
+        }
+        if (oldBuffer != null) {
+            LONG.setRelease(oldBuffer, STALE_OFFSET, 1L);
+            oldChannel.close();
+        }
+    }
+
+    /**
+     * Fills the file with every value of a snapshot of the file's size.
+     */
+    private void writeAll(final SheetSnapshot theSnapshot) {
+        LONG.setOpaque(myBuffer, SEQUENCE_OFFSET, 1L);
+        VarHandle.storeStoreFence();
+        myBuffer.putInt(ROWS_OFFSET, myRows);
+        myBuffer.putInt(COLUMNS_OFFSET, myColumns);
+        for (int column = 0; column < myColumns; column++) {
+            for (int row = 0; row < myRows; row++) {
+                byte status = theSnapshot.getStatus(row, column);
+                putCell(row, column, status == SheetSnapshot.NUMBER ? theSnapshot.getValue(row, column) : 0, status);
+            }
+        }
+        myVersion = theSnapshot.getVersion();
+        LONG.set(myBuffer, VERSION_OFFSET, myVersion);
+        myBuffer.putInt(MAGIC_OFFSET, MAGIC);
+        LONG.setRelease(myBuffer, SEQUENCE_OFFSET, 2L);
+    }
+
+    /**
+     * Writes the cells of one batch of changes, unless the file already holds them.
+     */
+    private synchronized void write(final ChangeBatch theBatch) {
+        if (myClosed || myStopped || theBatch.getVersion() <= myVersion) {
+            return;
+        }
+        SheetSnapshot latest = mySheet.getSnapshot();
+        if (latest.getNumRows() != myRows || latest.getNumColumns() != myColumns) {
+            // The new file holds the latest snapshot, which includes this batch.
+            try {
+                writeLatest();
+            } catch (IOException | IllegalArgumentException e) {
+                myStopped = true;
+                if (myBuffer != null) {
+                    LONG.setRelease(myBuffer, STALE_OFFSET, 1L);
+                }
+            }
+            return;
+        }
+        long sequence = (long) LONG.get(myBuffer, SEQUENCE_OFFSET);
+        LONG.setOpaque(myBuffer, SEQUENCE_OFFSET, sequence + 1);
+        VarHandle.storeStoreFence();
+        for (int i = 0; i < theBatch.size(); i++) {
+            putCell(theBatch.getRow(i), theBatch.getColumn(i), theBatch.getNewValue(i), theBatch.getNewStatus(i));
+        }
+        myVersion = theBatch.getVersion();
+        LONG.set(myBuffer, VERSION_OFFSET, myVersion);
+        LONG.setRelease(myBuffer, SEQUENCE_OFFSET, sequence + 2);
+    }
+
+    /**
+     * Writes one cell's value and status.
+     */
+    private void putCell(final int theRow, final int theColumn, final int theValue, final byte theStatus) {
+        int index = theColumn * myRows + theRow;
+        myBuffer.putInt(HEADER_SIZE + index * Integer.BYTES, theValue);
+        myBuffer.put(myStatusOffset + index, theStatus);
+    }
+
+    /**
+     * @return The spreadsheet being published.
+     */
+    public Spreadsheet getSheet() {
+        return mySheet;
+    }
+
+    /**
+     * @return The version of the snapshot the file holds.
+     */
+    public synchronized long getVersion() {
+        return myVersion;
+    }
+
+    /**
+     * Stops updating the file. The file is left holding the last values written, for readers
+     * that still have it open.
+     */
+    @Override
+    public void close() throws IOException {
+        myClosed = true;
+        Flow.Subscription subscription = mySubscription;
+        if (subscription != null) {
+            subscription.cancel();
+        }
+        synchronized (this) {
+            if (myBuffer != null) {
+                myBuffer.force();
+                myChannel.close();
+            }
+        }
+    }
+}
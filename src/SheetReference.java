@@ -0,0 +1,56 @@
+/**
+ * SheetReference represents a reference in a formula to a cell on another sheet of the same
+ * Workbook, written as "Sheet2!A1". The sheet is looked up when the formula is parsed, so
+ * evaluating the reference reads the other sheet directly.
+ * @author Chelsea Dacones
+ * @author Makai Martines
+ * @author Elias Peterson
+ * @author Alexis Zakrzewski
+ */
+public class SheetReference extends Token {
+    /** The sheet the referenced cell is on. */
+    private final Spreadsheet mySheet;
+
+    /** The referenced cell. */
+    private final CellToken myCell;
+
+    /**
+     * Creates a reference to a cell on another sheet.
+     * @param theSheet The sheet the cell is on.
+     * @param theCell The cell.
+     */
+    public SheetReference(final Spreadsheet theSheet, final CellToken theCell) {
+        mySheet = theSheet;
+        myCell = theCell;
+    }
+
+    /**
+     * @return The sheet the referenced cell is on.
+     */
+    public Spreadsheet getSheet() {
+        return mySheet;
+    }
+
+    /**
+     * @return The referenced cell.
+     */
+    public CellToken getCell() {
+        return myCell;
+    }
+
+    /**
+     * Reads the referenced cell's value, calculating it first if its sheet is in lazy mode.
+     * @return The cell's value.
+     * @throws ArithmeticException If the cell holds an error.
+     */
+    public int getValue() {
+        return mySheet.getValue(myCell.getRow(), myCell.getColumn());
+    }
+
+    /**
+     * @return The reference as it is written in a formula.
+     */
+    public String toString() {
+        return mySheet.getName() + "!" + myCell;
+    }
+}
@@ -0,0 +1,390 @@
+import java.util.Arrays;
+
+/**
+ * SheetSnapshot is an immutable view of every computed value in a Spreadsheet at one version.
+ * A Spreadsheet publishes a new snapshot each time a recalculation finishes, so a reader holding
+ * a snapshot always sees a consistent sheet, never one that is half way through an edit, and
+ * never has to wait for the writer.
+ * <br>
+ * Values are kept column by column in primitive chunks of ValueChunk.ROWS rows, each with a
+ * status bitmap, so scanning a column reads contiguous memory. A new snapshot copies only the
+ * chunks that changed and shares the rest with the snapshot before it.
+ * <br>
+ * A snapshot may have room for more rows and columns than the sheet has, so that a growing
+ * sheet can take a new size without copying anything; the cells past the sheet's size are empty.
+ * @author Chelsea Dacones
+ * @author Makai Martines
+ * @author Elias Peterson
+ * @author Alexis Zakrzewski
+ */
+public final class SheetSnapshot implements CellValues {
+    /** The status of a cell without a formula. Its value reads as 0. */
+    public static final byte EMPTY = 0;
+
+    /** The status of a cell whose formula evaluated to a number. */
+    public static final byte NUMBER = 1;
+
+    /** The status of a cell whose formula couldn't be evaluated, e.g. because it divides by zero. */
+    public static final byte ERROR = 2;
+
+    /** How an ERROR cell is displayed. */
+    public static final String ERROR_TEXT = "#ERROR";
+
+    /** The version of this snapshot; each published snapshot has a higher version than the last. */
+    private final long myVersion;
+
+    /** The number of rows in the sheet. */
+    private final int myRows;
+
+    /** The number of columns in the sheet. */
+    private final int myColumns;
+
+    /** The number of rows the chunks have room for, at least myRows. */
+    private final int myCapacity;
+
+    /**
+     * The chunks of each column, indexed by column and then row / ValueChunk.ROWS. A null chunk is
+     * all empty. There may be more columns than the sheet has.
+     */
+    private final ValueChunk[][] myChunks;
+
+    /** Where new chunks are allocated. */
+    private final ValueStorage myStorage;
+
+    /**
+     * Creates a snapshot of a sheet where every cell is empty.
+     * @param theVersion The version of this snapshot.
+     * @param theRows The number of rows in the sheet.
+     * @param theColumns The number of columns in the sheet.
+     * @param theStorage Where the chunks of this and later snapshots are allocated.
+     */
+    SheetSnapshot(final long theVersion, final int theRows, final int theColumns, final ValueStorage theStorage) {
+        this(theVersion, theRows, theColumns, theRows,
+                new ValueChunk[theColumns][(theRows + ValueChunk.MASK) >>> ValueChunk.SHIFT], theStorage);
+    }
+
+    /**
+     * Creates a snapshot from chunks that must not be changed afterwards.
+     */
+    private SheetSnapshot(final long theVersion, final int theRows, final int theColumns, final int theCapacity,
+                          final ValueChunk[][] theChunks, final ValueStorage theStorage) {
+        myVersion = theVersion;
+        myRows = theRows;
+        myColumns = theColumns;
+        myCapacity = theCapacity;
+        myChunks = theChunks;
+        myStorage = theStorage;
+    }
+
+    /**
+     * Creates the next snapshot, with some cells changed. Chunks without a changed cell are
+     * shared with this snapshot rather than copied, and this snapshot itself is left untouched.
+     * @param theChanges The new value and status of each changed cell.
+     * @return A snapshot one version newer than this one.
+     */
+    SheetSnapshot withChanges(final ValueChanges theChanges) {
+        final ValueChunk[][] chunks = myChunks.clone();
+        // Which chunks of each column have already been copied for this snapshot.
+        final boolean[][] copied = new boolean[chunks.length][];
+        for (int run = 0; run < theChanges.runCount(); run++) {
+            final int column = theChanges.getRunColumn(run);
+            final int fromRow = theChanges.getRunFromRow(run);
+            final int[] values = theChanges.getRunValues(run);
+            final boolean[] errors = theChanges.getRunErrors(run);
+            for (int i = 0; i < values.length; i++) {
+                final int row = fromRow + i;
+                writableChunk(chunks, copied, column, row >>> ValueChunk.SHIFT).set(row & ValueChunk.MASK,
+                        values[i], errors[i] ? ERROR : NUMBER);
+            }
+        }
+        for (int i = 0; i < theChanges.size(); i++) {
+            final int column = theChanges.getColumn(i);
+            final int row = theChanges.getRow(i);
+            writableChunk(chunks, copied, column, row >>> ValueChunk.SHIFT).set(row & ValueChunk.MASK,
+                    theChanges.getValue(i), theChanges.getStatus(i));
+        }
+        return new SheetSnapshot(myVersion + 1, myRows, myColumns, myCapacity, chunks, myStorage);
+    }
+
+    /**
+     * Returns a chunk of the next snapshot that may be written to, copying it from this snapshot the
+     * first time it is asked for.
+     * @param theChunks The chunks of the next snapshot.
+     * @param theCopied Which chunks of each column have already been copied for the next snapshot.
+     * @param theColumn The column of the chunk.
+     * @param theChunk The chunk's index within the column.
+     * @return The chunk to write to.
+     */
+    private ValueChunk writableChunk(final ValueChunk[][] theChunks, final boolean[][] theCopied,
+                                     final int theColumn, final int theChunk) {
+        if (theCopied[theColumn] == null) {
+            theChunks[theColumn] = theChunks[theColumn].clone();
+            theCopied[theColumn] = new boolean[theChunks[theColumn].length];
+        }
+        if (!theCopied[theColumn][theChunk]) {
+            final ValueChunk original = theChunks[theColumn][theChunk];
+            theChunks[theColumn][theChunk] = original != null ? original.copy() : myStorage.newChunk(chunkSize(theChunk));
+            theCopied[theColumn][theChunk] = true;
+        }
+        return theChunks[theColumn][theChunk];
+    }
+
+    /**
+     * Creates the next snapshot, with rows or columns inserted or deleted. Moving columns only
+     * rearranges them, sharing every chunk. Moving rows only looks at the chunks holding values
+     * from the first moved row on: a chunk that moves by a whole number of chunks is shared, and
+     * any other is copied a value at a time into new chunks, so empty parts of the sheet cost nothing.
+     * @param theRelocation Where the cells move.
+     * @return A snapshot one version newer than this one.
+     */
+    SheetSnapshot relocate(final Relocation theRelocation) {
+        final ValueChunk[][] chunks = new ValueChunk[myChunks.length][];
+        if (!theRelocation.movesRows()) {
+            for (int column = 0; column < chunks.length; column++) {
+                final int source = theRelocation.source(column);
+                chunks[column] = source < 0 ? new ValueChunk[myChunks[column].length] : myChunks[source];
+            }
+            return new SheetSnapshot(myVersion + 1, myRows, myColumns, myCapacity, chunks, myStorage);
+        }
+        final int firstChunk = theRelocation.getFirstMoved() >>> ValueChunk.SHIFT;
+        for (int column = 0; column < chunks.length; column++) {
+            final ValueChunk[] sources = myChunks[column];
+            final ValueChunk[] moved = sources.clone();
+            Arrays.fill(moved, Math.min(firstChunk, moved.length), moved.length, null);
+            for (int chunk = firstChunk; chunk < sources.length; chunk++) {
+                final ValueChunk source = sources[chunk];
+                if (source == null) {
+                    continue;
+                }
+                final int first = chunk << ValueChunk.SHIFT;
+                final int shift = theRelocation.shiftOf(first, Math.min(first + source.size(), myRows) - 1);
+                final int target = chunk + (shift >> ValueChunk.SHIFT);
+                if (shift != Relocation.NOT_UNIFORM && (shift & ValueChunk.MASK) == 0 && first + source.size() <= myRows
+                        && target < moved.length && chunkSize(target) == source.size()) {
+                    // Every row of the chunk lands in one other chunk, which nothing else moves into.
+                    moved[target] = source;
+                    continue;
+                }
+                for (int index = 0; index < source.size() && first + index < myRows; index++) {
+                    final byte status = source.getStatus(index);
+                    final int row = theRelocation.map(first + index);
+                    if (status == EMPTY || row < 0) {
+                        continue;
+                    }
+                    ValueChunk into = moved[row >>> ValueChunk.SHIFT];
+                    if (into == null) {
+                        into = myStorage.newChunk(chunkSize(row >>> ValueChunk.SHIFT));
+                        moved[row >>> ValueChunk.SHIFT] = into;
+                    }
+                    into.set(row & ValueChunk.MASK, status == NUMBER ? source.getValue(index) : 0, status);
+                }
+            }
+            chunks[column] = moved;
+        }
+        return new SheetSnapshot(myVersion + 1, myRows, myColumns, myCapacity, chunks, myStorage);
+    }
+
+    /**
+     * Creates the next snapshot, for a sheet that has grown. Every new cell is empty. If this
+     * snapshot has room, the new one shares all its chunks; otherwise it makes room for half as
+     * many rows or columns again as it needs, so that a sheet growing a little at a time only
+     * now and then has to copy its columns' arrays of chunks, and the last chunk of each column.
+     * @param theRows The number of rows in the sheet, at least as many as now.
+     * @param theColumns The number of columns in the sheet, at least as many as now.
+     * @return A snapshot one version newer than this one.
+     */
+    SheetSnapshot withSize(final int theRows, final int theColumns) {
+        if (theRows <= myCapacity && theColumns <= myChunks.length) {
+            return new SheetSnapshot(myVersion + 1, theRows, theColumns, myCapacity, myChunks, myStorage);
+        }
+        final int capacity = theRows <= myCapacity ? myCapacity : Math.max(theRows, myCapacity + (myCapacity >> 1));
+        final int chunkCount = (capacity + ValueChunk.MASK) >>> ValueChunk.SHIFT;
+        final int columnCapacity = theColumns <= myChunks.length ? myChunks.length
+                : Math.max(theColumns, myChunks.length + (myChunks.length >> 1));
+        final ValueChunk[][] chunks = Arrays.copyOf(myChunks, columnCapacity);
+        for (int column = 0; column < chunks.length; column++) {
+            if (column >= myChunks.length) {
+                chunks[column] = new ValueChunk[chunkCount];
+            } else if (capacity > myCapacity) {
+                chunks[column] = Arrays.copyOf(myChunks[column], chunkCount);
+                // The old last chunk may be too short to hold the rows now after it.
+                final int last = myChunks[column].length - 1;
+                final ValueChunk chunk = last < 0 ? null : myChunks[column][last];
+                if (chunk != null && chunk.size() < ValueChunk.ROWS) {
+                    final ValueChunk longer = myStorage.newChunk(Math.min(ValueChunk.ROWS,
+                            capacity - (last << ValueChunk.SHIFT)));
+                    for (int index = 0; index < chunk.size(); index++) {
+                        if (chunk.getStatus(index) != EMPTY) {
+                            longer.set(index, chunk.getValue(index), chunk.getStatus(index));
+                        }
+                    }
+                    chunks[column][last] = longer;
+                }
+            }
+        }
+        return new SheetSnapshot(myVersion + 1, theRows, theColumns, capacity, chunks, myStorage);
+    }
+
+    /**
+     * Creates a snapshot with the same values as this one but a different version.
+     * @param theVersion The version of the new snapshot.
+     * @return The new snapshot, which shares all of this one's chunks.
+     */
+    SheetSnapshot withVersion(final long theVersion) {
+        return new SheetSnapshot(theVersion, myRows, myColumns, myCapacity, myChunks, myStorage);
+    }
+
+    /**
+     * Returns whether another snapshot holds exactly the values of this one, because one was made
+     * from the other by withVersion, or they are the same snapshot.
+     * @param theOther The other snapshot.
+     * @return True if both share the same chunks.
+     */
+    boolean hasSameValues(final SheetSnapshot theOther) {
+        return myChunks == theOther.myChunks;
+    }
+
+    /**
+     * @return The number of rows the given chunk holds; only the last chunk of a column may be short.
+     */
+    private int chunkSize(final int theChunk) {
+        return Math.min(ValueChunk.ROWS, myCapacity - (theChunk << ValueChunk.SHIFT));
+    }
+
+    /**
+     * @return The version of this snapshot.
+     */
+    public long getVersion() {
+        return myVersion;
+    }
+
+    /**
+     * @return The number of rows in this snapshot.
+     */
+    public int getNumRows() {
+        return myRows;
+    }
+
+    /**
+     * @return The number of columns in this snapshot.
+     */
+    public int getNumColumns() {
+        return myColumns;
+    }
+
+    /**
+     * Returns the status of a cell.
+     * @param theRow The row of the cell.
+     * @param theColumn The column of the cell.
+     * @return EMPTY, NUMBER or ERROR.
+     */
+    public byte getStatus(final int theRow, final int theColumn) {
+        final ValueChunk chunk = myChunks[theColumn][theRow >>> ValueChunk.SHIFT];
+        return chunk == null ? EMPTY : chunk.getStatus(theRow & ValueChunk.MASK);
+    }
+
+    /**
+     * Returns the value of a cell. Empty cells have the value 0.
+     * @throws ArithmeticException If the cell holds an error.
+     */
+    @Override
+    public int getValue(final int theRow, final int theColumn) {
+        final ValueChunk chunk = myChunks[theColumn][theRow >>> ValueChunk.SHIFT];
+        if (chunk == null) {
+            return 0;
+        }
+        final int index = theRow & ValueChunk.MASK;
+        if (chunk.getStatus(index) == ERROR) {
+            throw new ArithmeticException(CellAddress.toString(theColumn, theRow) + " holds an error");
+        }
+        return chunk.getValue(index);
+    }
+
+    /**
+     * Returns the value of the cell the given CellToken refers to.
+     * @param theToken The cell to read.
+     * @return The cell's value at this snapshot's version.
+     * @throws ArithmeticException If the cell holds an error.
+     */
+    public int getValue(final CellToken theToken) {
+        return getValue(theToken.getRow(), theToken.getColumn());
+    }
+
+    /**
+     * Returns a cell as it should be displayed: blank if empty, ERROR_TEXT for an error,
+     * and the number otherwise.
+     * @param theRow The row of the cell.
+     * @param theColumn The column of the cell.
+     * @return The cell's display text.
+     */
+    public String getText(final int theRow, final int theColumn) {
+        final byte status = getStatus(theRow, theColumn);
+        return toText(status, status == NUMBER ? getValue(theRow, theColumn) : 0);
+    }
+
+    /**
+     * Returns how a cell with the given status and value should be displayed.
+     * @param theStatus EMPTY, NUMBER or ERROR.
+     * @param theValue The cell's value, only used for NUMBER.
+     * @return The cell's display text.
+     */
+    static String toText(final byte theStatus, final int theValue) {
+        switch (theStatus) {
+            case NUMBER:
+                return Integer.toString(theValue);
+            case ERROR:
+                return ERROR_TEXT;
+            default:
+                return "";
+        }
+    }
+
+    /**
+     * Copies a run of values from one column into an array. Empty and error cells copy as 0.
+     * @param theColumn The column to copy from.
+     * @param theFromRow The first row to copy.
+     * @param theDestination The array to copy into.
+     * @param theOffset Where in the array to put the first value.
+     * @param theLength How many rows to copy.
+     */
+    public void copyColumn(final int theColumn, final int theFromRow,
+                           final int[] theDestination, final int theOffset, final int theLength) {
+        int row = theFromRow;
+        int offset = theOffset;
+        final int end = theFromRow + theLength;
+        while (row < end) {
+            final int index = row & ValueChunk.MASK;
+            final int count = Math.min(ValueChunk.ROWS - index, end - row);
+            final ValueChunk chunk = myChunks[theColumn][row >>> ValueChunk.SHIFT];
+            if (chunk == null) {
+                Arrays.fill(theDestination, offset, offset + count, 0);
+            } else {
+                chunk.copyValues(index, theDestination, offset, count);
+            }
+            row += count;
+            offset += count;
+        }
+    }
+
+    /**
+     * Adds up the values of a run of rows in one column. Empty and error cells count as 0.
+     * @param theColumn The column to add up.
+     * @param theFromRow The first row to include.
+     * @param theToRow One past the last row to include.
+     * @return The sum of the values.
+     */
+    public long sumColumn(final int theColumn, final int theFromRow, final int theToRow) {
+        long sum = 0;
+        int row = theFromRow;
+        while (row < theToRow) {
+            final int index = row & ValueChunk.MASK;
+            final int count = Math.min(ValueChunk.ROWS - index, theToRow - row);
+            final ValueChunk chunk = myChunks[theColumn][row >>> ValueChunk.SHIFT];
+            if (chunk != null) {
+                sum += chunk.sum(index, index + count);
+            }
+            row += count;
+        }
+        return sum;
+    }
+}
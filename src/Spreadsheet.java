@@ -1,10 +1,20 @@
-import javax.swing.*;
-import javax.swing.table.DefaultTableModel;
-import javax.swing.table.JTableHeader;
-import javax.swing.table.TableModel;
 import java.io.*;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Spreadsheet is a class containing a spreadsheet of cells with equations.
@@ -13,11 +23,186 @@ import java.util.concurrent.ConcurrentHashMap;
  * @author Elias Peterson
  * @author Alexis Zakrzewski
  */
-public class Spreadsheet {
+public class Spreadsheet implements CellValues {
     /**
-     * The Cells of this spreadsheet.
+     * The default number of rows in each block of cells locked together.
      */
-    private final Cell[][] cells;
+    public static final int DEFAULT_STRIPE_ROWS = 64;
+
+    /**
+     * The default number of columns in each block of cells locked together.
+     */
+    public static final int DEFAULT_STRIPE_COLUMNS = 16;
+
+    /**
+     * The most rows a sheet grows to when an edit or formula refers past its last row. A sheet
+     * made bigger than this can still have as many rows as it was made with.
+     */
+    public static final int MAX_ROWS = 1 << 20;
+
+    /**
+     * The most columns a sheet grows to when an edit or formula refers past its last column.
+     */
+    public static final int MAX_COLUMNS = 1 << 14;
+
+    /**
+     * How many edits can be undone.
+     */
+    public static final int UNDO_LIMIT = 100;
+
+    /**
+     * How many rows a save writes between progress reports.
+     */
+    private static final int SAVE_PROGRESS_ROWS = 1024;
+
+    /**
+     * The size of a save's output buffer.
+     */
+    private static final int SAVE_BUFFER_SIZE = 1 << 16;
+
+    /**
+     * Runs background saves one at a time, on a thread that won't keep the program running.
+     */
+    private static final ExecutorService SAVER = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "spreadsheet-save");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * The cell of every position that has never held a formula. Like every Cell in a row, it is never changed.
+     */
+    private static final Cell EMPTY_CELL = new Cell();
+
+    /**
+     * The Cells of this spreadsheet. Each row is copy-on-write: once a FormulaSnapshot has been
+     * taken, the first edit to a row replaces it with a copy, so the snapshot's row never changes.
+     * A Cell is never changed once it is in a row; editing a cell puts a new Cell in its place.
+     * <br>
+     * There may be room for more rows than the sheet has, so that it can grow without copying.
+     * A row is null until a cell in it is first written, and may be shorter than the sheet is
+     * wide if the sheet has grown since; the cells past its end are empty. Only replaced, with a
+     * longer array, while myRowLock is held.
+     */
+    private volatile Cell[][] cells;
+
+    /**
+     * The generation each row was last copied in. A row may be written in place only if it was
+     * copied in the current generation. Guarded by myRowLock.
+     */
+    private int[] myRowGenerations;
+
+    /**
+     * The number of rows in the sheet. Only changed while every stripe is locked.
+     */
+    private volatile int myRows;
+
+    /**
+     * The number of columns in the sheet. Only changed while every stripe is locked.
+     */
+    private volatile int myColumns;
+
+    /**
+     * The current generation, one more each time a FormulaSnapshot is taken. Guarded by myRowLock.
+     */
+    private int myRowGeneration;
+
+    /**
+     * Held while copying a row or putting a cell into one. Edits in different stripes can share a row.
+     */
+    private final Object myRowLock = new Object();
+
+    /**
+     * The locks an edit takes on the blocks of cells it reads and writes.
+     */
+    private final LockStripes myStripes;
+
+    /**
+     * For each cell that some formula refers to, the cells whose formulas refer to it.
+     */
+    private final Map<CellToken, Set<CellToken>> myDependents = new ConcurrentHashMap<>();
+
+    /**
+     * The cells that hold a formula, so inserts and deletes only visit those. Changed while myRowLock is held.
+     */
+    private final CellIndex myFormulaCells = new CellIndex();
+
+    /**
+     * The cells that are keys of myDependents, so inserts and deletes can find the formulas
+     * that refer to moved cells without looking at the rest.
+     */
+    private final CellIndex myReferencedCells = new CellIndex();
+
+    /**
+     * The array formulas some cell still holds. Their cells aren't in myDependents; the cells
+     * they read are tracked by column range instead.
+     */
+    private final List<ArrayFormula> myArrayFormulas = new CopyOnWriteArrayList<>();
+
+    /**
+     * Held while publishing a new snapshot, so concurrent edits publish one after the other.
+     */
+    private final Object myPublishLock = new Object();
+
+    /**
+     * The values from the last finished recalculation. Readers never lock; they just read this field.
+     */
+    private volatile SheetSnapshot mySnapshot;
+
+    /**
+     * Whether edits recalculate the cells they affect, or only mark them dirty.
+     * Only changed while every stripe is locked.
+     */
+    private volatile CalculationMode myCalculationMode = CalculationMode.EAGER;
+
+    /**
+     * In lazy mode, the cells whose published values are out of date. Everything downstream of a
+     * dirty cell is dirty too, so a clean cell never reads a dirty one.
+     */
+    private final Set<CellToken> myDirtyCells = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Delivers ChangeBatches to subscribers as snapshots are published.
+     */
+    private final SubmissionPublisher<ChangeBatch> myChanges = new SubmissionPublisher<>();
+
+    /**
+     * Submits the ChangeBatches to myChanges one at a time, in the order they were published, on a
+     * thread of its own that stops when there is nothing to submit. Submitting waits while a
+     * subscriber's buffer is full, so it is kept off the threads that edit the sheet.
+     */
+    private final ThreadPoolExecutor myChangeSubmitter = newChangeSubmitter();
+
+    /**
+     * The snapshot published before the changes waiting to be submitted, or null if none are
+     * waiting. Guarded by myPublishLock.
+     */
+    private SheetSnapshot myPendingBefore;
+
+    /**
+     * The changes published since myPendingBefore, in order. Guarded by myPublishLock.
+     */
+    private final List<ValueChanges> myPendingChanges = new ArrayList<>();
+
+    /**
+     * The edits that can be undone, most recent first. Guarded by myPublishLock.
+     */
+    private final Deque<Edit> myUndoEdits = new ArrayDeque<>();
+
+    /**
+     * The edits that have been undone and can be redone, most recently undone first. Guarded by myPublishLock.
+     */
+    private final Deque<Edit> myRedoEdits = new ArrayDeque<>();
+
+    /**
+     * The workbook this sheet belongs to, or null if it stands alone.
+     */
+    private final Workbook myWorkbook;
+
+    /**
+     * This sheet's name in its workbook, or null if it stands alone.
+     */
+    private final String myName;
 
     /**
      * Constructs a spreadsheet object of a specified size, where sheetSize is the
@@ -25,440 +210,1798 @@ public class Spreadsheet {
      * @param rows The amount of rows in the spreadsheet.
      * @param cols The amount of columns in the spreadsheet
      */
-    public Spreadsheet(final int rows, final int cols) {
-        cells = new Cell[rows][cols];
-        for (int x = 0; x < rows; x++) {
-            for (int y = 0; y < cols; y++) {
-                cells[x][y] = new Cell();
+    public Spreadsheet(final int rows, final int cols) {
+        this(rows, cols, DEFAULT_STRIPE_ROWS, DEFAULT_STRIPE_COLUMNS, ValueStorage.HEAP);
+    }
+
+    /**
+     * Constructs a spreadsheet object of a specified size that keeps its computed values in the given storage,
+     * e.g. an OffHeapValueStorage to keep the values of a big sheet off the Java heap. The formulas stay on the heap.
+     * @param rows The amount of rows in the spreadsheet.
+     * @param cols The amount of columns in the spreadsheet
+     * @param storage Where to keep the computed values.
+     */
+    public Spreadsheet(final int rows, final int cols, final ValueStorage storage) {
+        this(rows, cols, DEFAULT_STRIPE_ROWS, DEFAULT_STRIPE_COLUMNS, storage);
+    }
+
+    /**
+     * Constructs a spreadsheet object of a specified size, locked for editing in blocks of the given size.
+     * Edits whose cells fall in different blocks can run on different threads at the same time.
+     * @param rows The amount of rows in the spreadsheet.
+     * @param cols The amount of columns in the spreadsheet
+     * @param stripeRows The amount of rows in each locked block.
+     * @param stripeCols The amount of columns in each locked block.
+     */
+    public Spreadsheet(final int rows, final int cols, final int stripeRows, final int stripeCols) {
+        this(rows, cols, stripeRows, stripeCols, ValueStorage.HEAP);
+    }
+
+    /**
+     * Constructs a spreadsheet object of a specified size, locked for editing in blocks of the given size,
+     * that keeps its computed values in the given storage.
+     * @param rows The amount of rows in the spreadsheet.
+     * @param cols The amount of columns in the spreadsheet
+     * @param stripeRows The amount of rows in each locked block.
+     * @param stripeCols The amount of columns in each locked block.
+     * @param storage Where to keep the computed values.
+     */
+    public Spreadsheet(final int rows, final int cols, final int stripeRows, final int stripeCols,
+                       final ValueStorage storage) {
+        this(rows, cols, stripeRows, stripeCols, storage, null, null);
+    }
+
+    /**
+     * Constructs a sheet of a workbook.
+     * @param rows The amount of rows in the spreadsheet.
+     * @param cols The amount of columns in the spreadsheet
+     * @param stripeRows The amount of rows in each locked block.
+     * @param stripeCols The amount of columns in each locked block.
+     * @param storage Where to keep the computed values.
+     * @param workbook The workbook the sheet belongs to, or null if it stands alone.
+     * @param name The sheet's name in the workbook, or null if it stands alone.
+     */
+    Spreadsheet(final int rows, final int cols, final int stripeRows, final int stripeCols,
+                final ValueStorage storage, final Workbook workbook, final String name) {
+        myWorkbook = workbook;
+        myName = name;
+        myStripes = new LockStripes(rows, cols, stripeRows, stripeCols);
+        cells = new Cell[rows][];
+        myRowGenerations = new int[rows];
+        myRows = rows;
+        myColumns = cols;
+        mySnapshot = new SheetSnapshot(0, rows, cols, storage);
+    }
+
+    /**
+     * @return The workbook this sheet belongs to, or null if it stands alone.
+     */
+    public Workbook getWorkbook() {
+        return myWorkbook;
+    }
+
+    /**
+     * @return This sheet's name in its workbook, or null if it stands alone.
+     */
+    public String getName() {
+        return myName;
+    }
+
+    /**
+     * @return The number of rows in the spreadsheet.
+     */
+    public int getNumRows() {
+        return myRows;
+    }
+
+    /**
+     * @return The number of columns in the spreadsheet.
+     */
+    public int getNumColumns() {
+        return myColumns;
+    }
+
+    /**
+     * @return Whether edits recalculate the cells they affect right away or when they are read.
+     */
+    public CalculationMode getCalculationMode() {
+        return myCalculationMode;
+    }
+
+    /**
+     * Chooses whether edits recalculate the cells they affect right away or when they are read.
+     * Switching to EAGER calculates every dirty cell first.
+     * @param theMode The new calculation mode.
+     */
+    public void setCalculationMode(final CalculationMode theMode) {
+        int[] held = myStripes.lockAll();
+        try {
+            if (theMode == CalculationMode.EAGER) {
+                calculateLocked(new HashSet<>(myDirtyCells));
+            }
+            myCalculationMode = theMode;
+        } finally {
+            myStripes.unlock(held);
+        }
+    }
+
+    /**
+     * Changes the given cellToken's formula to the String provided, then recalculates the cells that depend on it.
+     * The spreadsheet grows if the cell, or a cell the formula refers to, is past its last row or column.
+     * @param cellToken The CellToken to change.
+     * @param theFormula The formula for this Cell to have.
+     * @throws FormulaParseException If the formula isn't a valid expression.
+     * @throws IllegalArgumentException If the cell, or a cell the formula refers to, is past where the spreadsheet
+     *         can grow to, or the formula creates a cycle.
+     */
+    public void changeCellFormulaAndRecalculate(final CellToken cellToken, final String theFormula) throws IllegalArgumentException {
+        if (!isInReach(cellToken)) {
+            throw new IllegalArgumentException("Bad cell: " + cellToken);
+        }
+        applyEdits(Collections.singletonMap(cellToken, theFormula));
+    }
+
+    /**
+     * Changes the formulas of several cells at once, then recalculates the cells that depend on them a single time.
+     * If any of the new formulas is invalid, introduces a cycle or refers to a cell the spreadsheet can't grow to,
+     * every cell in the batch is reverted to its previous formula. The spreadsheet grows to hold every
+     * cell changed or referred to, and stays grown even if the edits are rejected.
+     * @param theFormulas The new formula for each CellToken to change.
+     * @throws FormulaParseException If a formula isn't a valid expression.
+     * @throws IllegalArgumentException If a cell is one the spreadsheet can't grow to or the edits create a cycle.
+     */
+    public void changeCellFormulasAndRecalculate(final Map<CellToken, String> theFormulas) throws IllegalArgumentException {
+        for (CellToken cellToken : theFormulas.keySet()) {
+            if (!isInReach(cellToken)) {
+                throw new IllegalArgumentException("Bad cell: " + cellToken);
+            }
+        }
+        applyEdits(theFormulas);
+    }
+
+    /**
+     * Gives a run of rows in one column a single formula, written for the first row, and
+     * recalculates. Each later row reads cells the same number of rows further down, so
+     * "C0:C999 = A0*B0+5" makes C1 = A1*B1+5, and so on. The formula is parsed once and the
+     * whole run is evaluated in one bulk pass over the column values. The spreadsheet grows to
+     * hold the range and every cell it refers to.
+     * @param theColumn The column to fill.
+     * @param theFromRow The first row to fill.
+     * @param theToRow The last row to fill.
+     * @param theFormula The formula of the first row.
+     * @throws IllegalArgumentException If the range or a referenced cell is one the spreadsheet can't grow to,
+     *                                  the formula is empty, or it creates a cycle.
+     */
+    public void changeColumnFormulaAndRecalculate(final int theColumn, final int theFromRow, final int theToRow,
+                                                  final String theFormula) throws IllegalArgumentException {
+        if (!isInReach(new CellToken(theColumn, theFromRow)) || !isInReach(new CellToken(theColumn, theToRow))
+                || theFromRow > theToRow) {
+            throw new IllegalArgumentException("Bad range: " + CellAddress.toString(theColumn, theFromRow)
+                    + ":" + CellAddress.toString(theColumn, theToRow));
+        }
+        changeColumnTree(theColumn, theFromRow, theToRow, FormulaParser.parse(theFormula, this));
+    }
+
+    /**
+     * Does the work of changeColumnFormulaAndRecalculate once the formula is parsed.
+     * @param theColumn The column to fill.
+     * @param theFromRow The first row to fill.
+     * @param theToRow The last row to fill.
+     * @param theTree The formula of the first row.
+     */
+    private void changeColumnTree(final int theColumn, final int theFromRow, final int theToRow,
+                                  final ExpressionTree theTree) {
+        if (theTree.getRoot() == null) {
+            throw new IllegalArgumentException("An array formula can't be empty");
+        }
+        if (!theTree.getSheetReferences().isEmpty()) {
+            throw new IllegalArgumentException("An array formula can't refer to another sheet");
+        }
+        // Every row must refer inside the sheet, so it's enough to check the first and last.
+        List<CellToken> reached = new ArrayList<>();
+        reached.add(new CellToken(theColumn, theToRow));
+        for (CellToken dependency : theTree.getDependencies()) {
+            CellToken last = new CellToken(dependency.getColumn(), dependency.getRow() + theToRow - theFromRow);
+            if (!isInReach(dependency)) {
+                throw new IllegalArgumentException(dependency + " is not in the spreadsheet");
+            }
+            if (!isInReach(last)) {
+                throw new IllegalArgumentException(last + " is not in the spreadsheet");
+            }
+            reached.add(last);
+        }
+        growToInclude(reached);
+        ArrayFormula arrayFormula = new ArrayFormula(theColumn, theFromRow, theToRow, theTree);
+        if (arrayFormula.readsRange(theColumn, theFromRow, theToRow)) {
+            throw new IllegalArgumentException("Cycle found");
+        }
+
+        // A column edit covers a large part of the sheet, so it takes every stripe rather than
+        // working out which ones it needs.
+        Collection<CellToken> changed;
+        int[] held = myStripes.lockAll();
+        try {
+            changed = applyColumnEditLocked(arrayFormula);
+        } finally {
+            myStripes.unlock(held);
+        }
+        if (myWorkbook != null) {
+            myWorkbook.propagate(this, changed);
+        }
+    }
+
+    /**
+     * Does the work of changeColumnFormulaAndRecalculate once every stripe is locked.
+     * @param theArrayFormula The formula to give the run of cells.
+     * @return The cells whose values may have changed, if this sheet is in a workbook.
+     */
+    private Collection<CellToken> applyColumnEditLocked(final ArrayFormula theArrayFormula) {
+        final int column = theArrayFormula.getColumn();
+        List<CellToken> targets = new ArrayList<>(theArrayFormula.getRowCount());
+        Edit edit = new Edit(theArrayFormula.getRowCount());
+        for (int row = theArrayFormula.getFromRow(); row <= theArrayFormula.getToRow(); row++) {
+            CellToken cellToken = new CellToken(column, row);
+            targets.add(cellToken);
+            Cell formula = new Cell(theArrayFormula, row);
+            edit.add(cellToken, getCell(cellToken).copy(), formula);
+            installCell(cellToken, formula);
+        }
+
+        // The run is evaluated from the published values, so none of the cells it reads may be
+        // downstream of it.
+        Set<CellToken> downstream = findDownstreamCells(targets);
+        for (CellToken cellToken : targets) {
+            downstream.remove(cellToken);
+        }
+        boolean cycle = false;
+        for (CellToken cellToken : downstream) {
+            if (theArrayFormula.readsRange(cellToken.getColumn(), cellToken.getRow(), cellToken.getRow())) {
+                cycle = true;
+                break;
+            }
+        }
+
+        ValueChanges newValues = null;
+        if (!cycle) {
+            // The run is always calculated in bulk, even in lazy mode, but the cells it reads have to be
+            // brought up to date first.
+            if (!myDirtyCells.isEmpty()) {
+                Set<CellToken> dirtySources = new HashSet<>();
+                for (CellToken cellToken : myDirtyCells) {
+                    if (theArrayFormula.readsRange(cellToken.getColumn(), cellToken.getRow(), cellToken.getRow())) {
+                        dirtySources.add(cellToken);
+                    }
+                }
+                calculateLocked(findDirtyPrecedents(dirtySources));
+            }
+            boolean[] errors = new boolean[theArrayFormula.getRowCount()];
+            int[] values = theArrayFormula.evaluateAll(mySnapshot, errors);
+            newValues = new ValueChanges();
+            newValues.putColumn(column, theArrayFormula.getFromRow(), values, errors);
+            if (myCalculationMode == CalculationMode.LAZY) {
+                myDirtyCells.removeAll(targets);
+                myDirtyCells.addAll(downstream);
+            } else {
+                newValues = recalculate(downstream, Collections.emptySet(), newValues);
+            }
+        }
+        if (newValues == null) {
+            edit.restore(true);
+            throw new IllegalArgumentException("Cycle found");
+        }
+        publish(newValues, edit);
+        Collection<CellToken> changed = changedCells(newValues);
+        if (myWorkbook != null && myCalculationMode == CalculationMode.LAZY) {
+            // The cells downstream of the run are only marked dirty, but their values may change too.
+            changed.addAll(downstream);
+        }
+        return changed;
+    }
+
+    /**
+     * Copies one cell's formula into every cell of a range. Each copy reads the cells that are
+     * the same number of rows and columns away from it as the source's references are from the
+     * source, so filling A0 = B0*2 into A1:A3 gives A1 = B1*2, A2 = B2*2 and A3 = B3*2. A
+     * reference that would land off the sheet becomes #REF!. The source's formula isn't parsed
+     * again; its tree is copied with the references moved, the copies are installed together
+     * and the cells downstream are recalculated once. The fill is a single edit to undo. If the
+     * source is in the range it is left as it is. The spreadsheet grows to hold the range and
+     * every cell the copies refer to.
+     * @param theSource The cell whose formula is copied.
+     * @param theTop The first row of the range.
+     * @param theLeft The first column of the range.
+     * @param theBottom The last row of the range.
+     * @param theRight The last column of the range.
+     * @throws IllegalArgumentException If the source or range is one the spreadsheet can't grow to,
+     *                                  or the copies create a cycle.
+     */
+    public void fill(final CellToken theSource, final int theTop, final int theLeft,
+                     final int theBottom, final int theRight) throws IllegalArgumentException {
+        if (!isInReach(theSource)) {
+            throw new IllegalArgumentException("Bad cell: " + theSource);
+        }
+        fillRange(theSource, false, theTop, theLeft, theBottom, theRight);
+    }
+
+    /**
+     * Fills each column of a range downward from its first row, copying the formula at the top of
+     * the column into the cells below it, as fill does.
+     * @param theTop The row holding the formulas to copy.
+     * @param theLeft The first column of the range.
+     * @param theBottom The last row to fill.
+     * @param theRight The last column of the range.
+     * @throws IllegalArgumentException If the range is one the spreadsheet can't grow to, or the
+     *                                  copies create a cycle.
+     */
+    public void fillDown(final int theTop, final int theLeft, final int theBottom, final int theRight)
+            throws IllegalArgumentException {
+        fillRange(null, true, theTop, theLeft, theBottom, theRight);
+    }
+
+    /**
+     * Fills each row of a range rightward from its first column, copying the formula at the left
+     * of the row into the cells after it, as fill does.
+     * @param theTop The first row of the range.
+     * @param theLeft The column holding the formulas to copy.
+     * @param theBottom The last row of the range.
+     * @param theRight The last column to fill.
+     * @throws IllegalArgumentException If the range is one the spreadsheet can't grow to, or the
+     *                                  copies create a cycle.
+     */
+    public void fillRight(final int theTop, final int theLeft, final int theBottom, final int theRight)
+            throws IllegalArgumentException {
+        fillRange(null, false, theTop, theLeft, theBottom, theRight);
+    }
+
+    /**
+     * Does the work of fill, fillDown and fillRight.
+     * @param theSource The cell to copy into the whole range, or null to copy from the range's
+     *                  first row or first column.
+     * @param theDown When there is no single source, true to copy from the first row, false to
+     *                copy from the first column.
+     */
+    private void fillRange(final CellToken theSource, final boolean theDown, final int theTop, final int theLeft,
+                           final int theBottom, final int theRight) {
+        if (!isInReach(new CellToken(theLeft, theTop)) || !isInReach(new CellToken(theRight, theBottom))
+                || theTop > theBottom || theLeft > theRight) {
+            throw new IllegalArgumentException("Bad range: " + CellAddress.toString(theLeft, theTop)
+                    + ":" + CellAddress.toString(theRight, theBottom));
+        }
+        if (theLeft == theRight && (theDown || theSource != null) && fillColumn(theSource, theTop, theLeft, theBottom)) {
+            return;
+        }
+        Map<CellToken, ExpressionTree> newTrees = new LinkedHashMap<>();
+        List<CellToken> reached = new ArrayList<>();
+        Map<Spreadsheet, List<CellToken>> reachedOnOtherSheets = new HashMap<>();
+        for (int row = theTop; row <= theBottom; row++) {
+            for (int column = theLeft; column <= theRight; column++) {
+                int sourceRow = theSource != null ? theSource.getRow() : theDown ? theTop : row;
+                int sourceColumn = theSource != null ? theSource.getColumn() : theDown ? column : theLeft;
+                if (sourceRow == row && sourceColumn == column) continue;
+                Cell source = isInBounds(new CellToken(sourceColumn, sourceRow))
+                        ? getCell(sourceRow, sourceColumn) : EMPTY_CELL;
+                ExpressionTree tree = source.getExpressionTree();
+                // A row of an array formula is copied from the formula as written for its first row.
+                if (source.getArrayFormula() != null) {
+                    tree = source.getArrayFormula().getTree();
+                    sourceRow = source.getArrayFormula().getFromRow();
+                }
+                tree = tree.shift(this, row - sourceRow, column - sourceColumn);
+                reached.addAll(tree.getDependencies());
+                for (SheetReference reference : tree.getSheetReferences()) {
+                    reachedOnOtherSheets.computeIfAbsent(reference.getSheet(), k -> new ArrayList<>())
+                            .add(reference.getCell());
+                }
+                CellToken cellToken = new CellToken(column, row);
+                newTrees.put(cellToken, tree);
+                reached.add(cellToken);
+            }
+        }
+        // As in parseEdits, we grow before locking anything.
+        growToInclude(reached);
+        for (Map.Entry<Spreadsheet, List<CellToken>> entry : reachedOnOtherSheets.entrySet()) {
+            entry.getKey().growToInclude(entry.getValue());
+        }
+        // The copies keep no text of their own; their formulas are made from their trees.
+        Collection<CellToken> changed = applyEdits(Collections.emptyMap(), newTrees, Collections.emptySet());
+        if (myWorkbook != null) {
+            myWorkbook.propagate(this, changed);
+        }
+    }
+
+    /**
+     * Fills a run of one column as a single array formula, if it can be one, so the copies share
+     * one tree and are evaluated in one bulk pass, as changeColumnFormulaAndRecalculate does.
+     * @param theSource The cell to copy, or null to copy the run's first row into the rest of it.
+     * @param theTop The first row of the range.
+     * @param theColumn The column of the range.
+     * @param theBottom The last row of the range.
+     * @return False if the fill has to be done cell by cell: the source is empty, reads another
+     *         sheet, sits inside the run, or the copies would read cells off the sheet.
+     */
+    private boolean fillColumn(final CellToken theSource, final int theTop, final int theColumn, final int theBottom) {
+        CellToken source = theSource != null ? theSource : new CellToken(theColumn, theTop);
+        int fromRow = theTop;
+        int toRow = theBottom;
+        if (source.getColumn() == theColumn && source.getRow() == theTop) {
+            fromRow++;
+        } else if (source.getColumn() == theColumn && source.getRow() == theBottom) {
+            toRow--;
+        } else if (source.getColumn() == theColumn && source.getRow() > theTop && source.getRow() < theBottom) {
+            return false;
+        }
+        if (fromRow > toRow) {
+            return true;
+        }
+        Cell cell = isInBounds(source) ? getCell(source) : EMPTY_CELL;
+        ExpressionTree tree = cell.getExpressionTree();
+        int sourceRow = source.getRow();
+        if (cell.getArrayFormula() != null) {
+            tree = cell.getArrayFormula().getTree();
+            sourceRow = cell.getArrayFormula().getFromRow();
+        }
+        if (tree.getRoot() == null || !tree.getSheetReferences().isEmpty()) {
+            return false;
+        }
+        for (CellToken dependency : tree.getDependencies()) {
+            CellToken first = new CellToken(dependency.getColumn() + theColumn - source.getColumn(),
+                    dependency.getRow() + fromRow - sourceRow);
+            CellToken last = new CellToken(first.getColumn(), first.getRow() + toRow - fromRow);
+            if (!isInReach(first) || !isInReach(last)) {
+                return false;
+            }
+        }
+        changeColumnTree(theColumn, fromRow, toRow, tree.shift(this, fromRow - sourceRow, theColumn - source.getColumn()));
+        return true;
+    }
+
+    /**
+     * Inserts empty rows, moving the rows from theRow on down. Formulas that refer to moved
+     * cells are changed to follow them, so every value stays the same. The sheet grows by the
+     * inserted rows, so nothing is pushed off the end, until it reaches MAX_ROWS; past that the
+     * last rows are pushed off, and references to them become #REF!. Inserting rows
+     * can't be undone, and the edits before it can't be undone afterwards.
+     * @param theRow Where the first new row goes.
+     * @param theCount How many rows to insert.
+     * @throws IllegalArgumentException If the rows are out of range or a formula would be pushed
+     *                                  past the most rows the sheet can grow to.
+     */
+    public void insertRows(final int theRow, final int theCount) {
+        makeRoomToInsert(true, theCount);
+        relocate(Relocation.insert(true, theRow, theCount, getNumRows()));
+    }
+
+    /**
+     * Deletes rows, moving the rows after them up and leaving empty rows at the bottom.
+     * Formulas that refer to moved cells are changed to follow them, and references to deleted
+     * cells become #REF!, so only the cells that read a deleted cell, and the cells downstream
+     * of those, are recalculated. Deleting rows can't be undone, and the edits before it can't
+     * be undone afterwards.
+     * @param theRow The first row to delete.
+     * @param theCount How many rows to delete.
+     * @throws IllegalArgumentException If the rows are out of range.
+     */
+    public void deleteRows(final int theRow, final int theCount) {
+        relocate(Relocation.delete(true, theRow, theCount, getNumRows()));
+    }
+
+    /**
+     * Inserts empty columns, the same way insertRows inserts rows.
+     * @param theColumn Where the first new column goes.
+     * @param theCount How many columns to insert.
+     * @throws IllegalArgumentException If the columns are out of range or a formula would be pushed
+     *                                  past the most columns the sheet can grow to.
+     */
+    public void insertColumns(final int theColumn, final int theCount) {
+        makeRoomToInsert(false, theCount);
+        relocate(Relocation.insert(false, theColumn, theCount, getNumColumns()));
+    }
+
+    /**
+     * Deletes columns, the same way deleteRows deletes rows.
+     * @param theColumn The first column to delete.
+     * @param theCount How many columns to delete.
+     * @throws IllegalArgumentException If the columns are out of range.
+     */
+    public void deleteColumns(final int theColumn, final int theCount) {
+        relocate(Relocation.delete(false, theColumn, theCount, getNumColumns()));
+    }
+
+    /**
+     * Grows the sheet by the rows or columns about to be inserted, as far as it can, so that
+     * inserting pushes nothing off the end: not a formula, nor an empty cell that a formula,
+     * an array formula or another sheet refers to.
+     * @param theRows True to make room for rows, false for columns.
+     * @param theCount How many rows or columns will be inserted.
+     */
+    private void makeRoomToInsert(final boolean theRows, final int theCount) {
+        final int size = theRows ? getNumRows() : getNumColumns();
+        final int limit = Math.max(size, theRows ? MAX_ROWS : MAX_COLUMNS);
+        if (theCount < 1 || theCount > limit) {
+            return;
+        }
+        final int grown = (int) Math.min((long) size + theCount, limit);
+        growTo(theRows ? grown : getNumRows(), theRows ? getNumColumns() : grown);
+    }
+
+    /**
+     * Moves cells for an insert or delete, with every stripe locked, then brings the formulas on
+     * other sheets that refer to moved cells up to date.
+     * @param theRelocation Where the cells move.
+     */
+    private void relocate(final Relocation theRelocation) {
+        Collection<CellToken> changed;
+        int[] held = myStripes.lockAll();
+        try {
+            changed = relocateLocked(theRelocation);
+        } finally {
+            myStripes.unlock(held);
+        }
+        if (myWorkbook != null) {
+            myWorkbook.relocateReferences(this, theRelocation);
+            myWorkbook.propagate(this, changed);
+        }
+    }
+
+    /**
+     * Does the work of relocate once every stripe is locked.
+     * <br>
+     * Cells don't know where they are, so moving them is only a matter of moving rows or column
+     * entries around. What has to change is everything that names a cell by its position: the
+     * formulas that refer to moved cells, the dependents index, the array formulas and the
+     * values. Only formulas that refer to a moved cell are rewritten, from their trees rather
+     * than their text, and only the ones that lost a reference are recalculated. myFormulaCells
+     * and myReferencedCells say which cells move, so the work grows with the formulas and
+     * references that move rather than with the size of the sheet.
+     * @param theRelocation Where the cells move.
+     * @return The cells whose values may have changed, if this sheet is in a workbook.
+     */
+    private Collection<CellToken> relocateLocked(final Relocation theRelocation) {
+        final boolean rows = theRelocation.movesRows();
+        final int size = rows ? getNumRows() : getNumColumns();
+        if (myFormulaCells.end(rows) > theRelocation.getFirstPushedOff()) {
+            throw new IllegalArgumentException("Inserting would push formulas off the end of the sheet");
+        }
+        final int firstMoved = theRelocation.getFirstMoved();
+        final List<CellToken> movedFormulas = myFormulaCells.from(rows, firstMoved);
+        // Only cells with a formula, or waiting to be calculated, can show a value.
+        final List<CellToken> movedValues = new ArrayList<>(movedFormulas);
+        for (CellToken cellToken : myDirtyCells) {
+            if ((rows ? cellToken.getRow() : cellToken.getColumn()) >= firstMoved && getCell(cellToken).isEmpty()) {
+                movedValues.add(cellToken);
+            }
+        }
+
+        // The new Cell for each position whose cell is rewritten, and the rewritten cells that lost a reference.
+        Map<CellToken, Cell> rewritten = new HashMap<>();
+        Set<CellToken> roots = new HashSet<>();
+
+        // The dependents index is keyed by position: entries for moved cells, or listing moved
+        // cells, are replaced. Those are the entries of the moved cells that are referred to, and
+        // of the cells the moved formulas refer to. Mapping positions is one to one, so a moved
+        // entry never lands on one that stays.
+        Set<CellToken> keys = new HashSet<>(myReferencedCells.from(rows, firstMoved));
+        for (CellToken formula : movedFormulas) {
+            keys.addAll(getCell(formula).getDependencies());
+        }
+        Map<CellToken, Set<CellToken>> movedDependents = new HashMap<>();
+        Set<CellToken> readers = new HashSet<>();
+        Set<CellToken> losers = new HashSet<>();
+        for (CellToken key : keys) {
+            Set<CellToken> entry = myDependents.get(key);
+            if (entry == null) {
+                continue;
+            }
+            CellToken target = theRelocation.map(key);
+            boolean moved = target != key;
+            if (moved) {
+                readers.addAll(entry);
+                if (target == null) {
+                    losers.addAll(entry);
+                }
+            } else {
+                for (CellToken dependent : entry) {
+                    if (theRelocation.map(dependent) != dependent) {
+                        moved = true;
+                        break;
+                    }
+                }
+            }
+            if (!moved) {
+                continue;
+            }
+            myDependents.remove(key);
+            if (target != null) {
+                Set<CellToken> dependents = ConcurrentHashMap.newKeySet();
+                for (CellToken dependent : entry) {
+                    CellToken movedDependent = theRelocation.map(dependent);
+                    if (movedDependent != null) {
+                        dependents.add(movedDependent);
+                    }
+                }
+                movedDependents.put(target, dependents);
+            }
+        }
+        for (CellToken reader : readers) {
+            CellToken target = theRelocation.map(reader);
+            if (target != null) {
+                ExpressionTree tree = getCell(reader).getExpressionTree().relocate(theRelocation, 0);
+                rewritten.put(target, new Cell(tree.toFormula(0), tree));
+                if (losers.contains(reader)) {
+                    roots.add(target);
+                }
+            }
+        }
+
+        // An array formula that moves as a whole is replaced by a moved copy; one that is split
+        // up gives each of its rows a formula of its own.
+        List<ArrayFormula> oldArrayFormulas = new ArrayList<>();
+        Map<CellToken, List<CellToken>> newDependencies = new HashMap<>();
+        for (ArrayFormula arrayFormula : myArrayFormulas) {
+            ArrayFormula moved = arrayFormula.relocate(theRelocation);
+            if (moved == arrayFormula) {
+                continue;
+            }
+            oldArrayFormulas.add(arrayFormula);
+            boolean lostReference = moved != null
+                    && moved.getTree().getDependencies().size() < arrayFormula.getTree().getDependencies().size();
+            for (int row = arrayFormula.getFromRow(); row <= arrayFormula.getToRow(); row++) {
+                CellToken cellToken = new CellToken(arrayFormula.getColumn(), row);
+                CellToken target = theRelocation.map(cellToken);
+                if (target == null || getCell(cellToken).getArrayFormula() != arrayFormula) {
+                    continue;
+                }
+                if (moved != null) {
+                    rewritten.put(target, new Cell(moved, target.getRow()));
+                    if (moved.addCell()) {
+                        myArrayFormulas.add(moved);
+                    }
+                    if (lostReference) {
+                        roots.add(target);
+                    }
+                } else {
+                    ExpressionTree tree = arrayFormula.getTree().relocate(theRelocation,
+                            row - arrayFormula.getFromRow());
+                    rewritten.put(target, new Cell(tree.toFormula(0), tree));
+                    newDependencies.put(target, tree.getDependencies());
+                    if (tree.getDependencies().size() < arrayFormula.getDependencies(row).size()) {
+                        roots.add(target);
+                    }
+                }
+            }
+        }
+        myArrayFormulas.removeAll(oldArrayFormulas);
+
+        // Cells that are gone no longer read other sheets.
+        if (myWorkbook != null) {
+            for (CellToken formula : movedFormulas) {
+                if (theRelocation.map(formula) == null) {
+                    myWorkbook.updateReaders(this, formula, getCell(formula).getSheetReferences(),
+                            Collections.emptyList());
+                }
+            }
+        }
+
+        // Move the rows, or the cells within each row that holds a moved formula; the other rows
+        // are empty from the first moved column on.
+        final int count = theRelocation.getCount();
+        synchronized (myRowLock) {
+            if (rows) {
+                final int from = count > 0 ? firstMoved : firstMoved - count;
+                final int to = count > 0 ? firstMoved + count : firstMoved;
+                final int length = size - Math.max(from, to);
+                System.arraycopy(cells, from, cells, to, length);
+                System.arraycopy(myRowGenerations, from, myRowGenerations, to, length);
+                final int emptyFrom = count > 0 ? firstMoved : to + length;
+                final int emptyTo = count > 0 ? from + count : size;
+                Arrays.fill(cells, emptyFrom, emptyTo, null);
+                Arrays.fill(myRowGenerations, emptyFrom, emptyTo, myRowGeneration);
+            } else {
+                Set<Integer> movedRows = new HashSet<>();
+                for (CellToken formula : movedFormulas) {
+                    movedRows.add(formula.getRow());
+                }
+                for (int row : movedRows) {
+                    Cell[] oldRow = cells[row];
+                    Cell[] movedRow = Arrays.copyOf(oldRow, size);
+                    for (int column = firstMoved; column < size; column++) {
+                        int source = theRelocation.source(column);
+                        movedRow[column] = source < 0 || source >= oldRow.length ? EMPTY_CELL : oldRow[source];
+                    }
+                    cells[row] = movedRow;
+                    myRowGenerations[row] = myRowGeneration;
+                }
+            }
+            myFormulaCells.relocate(theRelocation);
+        }
+        for (Map.Entry<CellToken, Cell> entry : rewritten.entrySet()) {
+            putCell(entry.getKey(), entry.getValue());
+        }
+        myReferencedCells.relocate(theRelocation);
+        myDependents.putAll(movedDependents);
+        for (Map.Entry<CellToken, List<CellToken>> entry : newDependencies.entrySet()) {
+            for (CellToken dependency : entry.getValue()) {
+                addDependent(dependency, entry.getKey());
+            }
+        }
+        if (myWorkbook != null) {
+            myWorkbook.relocateReaders(this, theRelocation);
+        }
+        if (!myDirtyCells.isEmpty()) {
+            List<CellToken> dirty = new ArrayList<>(myDirtyCells);
+            myDirtyCells.clear();
+            for (CellToken cellToken : dirty) {
+                CellToken target = theRelocation.map(cellToken);
+                if (target != null) {
+                    myDirtyCells.add(target);
+                }
+            }
+        }
+
+        // The values move with their cells. Subscribers are told about every place a value
+        // moved from or to that shows something new.
+        synchronized (myPublishLock) {
+            SheetSnapshot before = mySnapshot;
+            SheetSnapshot after = before.relocate(theRelocation);
+            Set<CellToken> places = new HashSet<>(movedValues);
+            for (CellToken cellToken : movedValues) {
+                CellToken target = theRelocation.map(cellToken);
+                if (target != null) {
+                    places.add(target);
+                }
+            }
+            ValueChanges changes = new ValueChanges();
+            for (CellToken place : places) {
+                int row = place.getRow();
+                int column = place.getColumn();
+                byte status = after.getStatus(row, column);
+                if (status != before.getStatus(row, column) || (status == SheetSnapshot.NUMBER
+                        && after.getValue(row, column) != before.getValue(row, column))) {
+                    changes.put(row, column, status == SheetSnapshot.NUMBER ? after.getValue(row, column) : 0,
+                            status);
+                }
+            }
+            publishSnapshot(after, changes);
+            // Edits remember cells by position, which no longer holds.
+            myUndoEdits.clear();
+            myRedoEdits.clear();
+        }
+
+        Set<CellToken> downstream = findDownstreamCells(roots);
+        if (myCalculationMode == CalculationMode.LAZY) {
+            myDirtyCells.addAll(downstream);
+            return downstream;
+        }
+        ValueChanges newValues = recalculate(downstream, roots, new ValueChanges());
+        publish(newValues);
+        return changedCells(newValues);
+    }
+
+    /**
+     * Installs new formulas and recalculates every cell downstream of them.
+     * <br>
+     * The edit locks the stripes of every cell it will write (the edited cells and everything
+     * that depends on them) and every cell those read. Which cells those are can change while
+     * we wait for the locks, so once they are held the set is worked out again, and if it has
+     * grown we let go and lock the larger set. Edits whose cells don't share a stripe never wait
+     * for each other.
+     * If this sheet is in a workbook, the cells on other sheets that read the changed cells are
+     * recalculated afterwards.
+     * @param theFormulas The new formula for each CellToken to change; all must be in bounds.
+     * @throws IllegalArgumentException If a formula refers to a cell outside the spreadsheet or the edits create a cycle.
+     */
+    private void applyEdits(final Map<CellToken, String> theFormulas) {
+        // Parsing only looks at the text, so it happens before we lock anything.
+        Collection<CellToken> changed = applyEdits(theFormulas, parseEdits(theFormulas), Collections.emptySet());
+        if (myWorkbook != null) {
+            myWorkbook.propagate(this, changed);
+        }
+    }
+
+    /**
+     * Parses the new formulas of an edit, checks that every cell they refer to exists or can be
+     * grown to, and grows this sheet and the sheets it refers to so they do exist.
+     * @param theFormulas The new formula for each CellToken to change.
+     * @return The new ExpressionTree of each cell.
+     * @throws IllegalArgumentException If a cell is one its sheet can't grow to, or a formula is
+     *                                  invalid or refers to a cell its sheet can't grow to.
+     */
+    Map<CellToken, ExpressionTree> parseEdits(final Map<CellToken, String> theFormulas) {
+        Map<CellToken, ExpressionTree> newTrees = new LinkedHashMap<>();
+        List<CellToken> reached = new ArrayList<>();
+        Map<Spreadsheet, List<CellToken>> reachedOnOtherSheets = new HashMap<>();
+        for (Map.Entry<CellToken, String> entry : theFormulas.entrySet()) {
+            if (!isInReach(entry.getKey())) {
+                throw new IllegalArgumentException("Bad cell: " + entry.getKey());
+            }
+            ExpressionTree tree = FormulaParser.parse(entry.getValue(), this);
+            for (CellToken dependency : tree.getDependencies()) {
+                if (!isInReach(dependency)) {
+                    throw new IllegalArgumentException(dependency + " is not in the spreadsheet");
+                }
+                reached.add(dependency);
+            }
+            for (SheetReference reference : tree.getSheetReferences()) {
+                if (!reference.getSheet().isInReach(reference.getCell())) {
+                    throw new IllegalArgumentException(reference + " is not in the spreadsheet");
+                }
+                reachedOnOtherSheets.computeIfAbsent(reference.getSheet(), k -> new ArrayList<>())
+                        .add(reference.getCell());
+            }
+            CellToken cellToken = new CellToken(entry.getKey().getColumn(), entry.getKey().getRow());
+            newTrees.put(cellToken, tree);
+            reached.add(cellToken);
+        }
+        // Nothing is locked yet, so growing, which locks the whole sheet, can't deadlock.
+        growToInclude(reached);
+        for (Map.Entry<Spreadsheet, List<CellToken>> entry : reachedOnOtherSheets.entrySet()) {
+            entry.getKey().growToInclude(entry.getValue());
+        }
+        return newTrees;
+    }
+
+    /**
+     * Installs parsed formulas and recalculates every cell downstream of them, and of some other
+     * cells whose formulas haven't changed but which read cells on other sheets that have.
+     * Does not recalculate any other sheet.
+     * @param theFormulas The new formula text of each edited cell; a cell left out gets text made from its tree.
+     * @param theNewTrees The new ExpressionTree of each edited cell, from parseEdits.
+     * @param theRoots Cells to recalculate even though their formulas haven't changed.
+     * @return The cells whose values may have changed, if this sheet is in a workbook.
+     * @throws IllegalArgumentException If the edits create a cycle.
+     */
+    Collection<CellToken> applyEdits(final Map<CellToken, String> theFormulas,
+                                     final Map<CellToken, ExpressionTree> theNewTrees,
+                                     final Collection<CellToken> theRoots) {
+        Set<CellToken> starts = theNewTrees.keySet();
+        if (!theRoots.isEmpty()) {
+            starts = new LinkedHashSet<>(theNewTrees.keySet());
+            starts.addAll(theRoots);
+        }
+        int[] held = new int[0];
+        try {
+            while (true) {
+                int[] needed = myStripes.stripesOf(findTouchedCells(starts, theNewTrees));
+                if (LockStripes.covers(held, needed)) {
+                    break;
+                }
+                myStripes.unlock(held);
+                held = LockStripes.union(held, needed);
+                myStripes.lock(held);
+            }
+            return applyEditsLocked(theFormulas, theNewTrees, starts);
+        } finally {
+            myStripes.unlock(held);
+        }
+    }
+
+    /**
+     * Finds every cell an edit could read or write: the edited cells, all cells downstream of them,
+     * and every cell any of those refers to, before or after the edit.
+     * @param theStartCells The edited cells, and any others to recalculate.
+     * @param theNewTrees The new ExpressionTree of each edited cell.
+     * @return The cells whose stripes the edit must hold.
+     */
+    private Set<CellToken> findTouchedCells(final Collection<CellToken> theStartCells,
+                                            final Map<CellToken, ExpressionTree> theNewTrees) {
+        Set<CellToken> touched = new HashSet<>();
+        for (CellToken cellToken : findDownstreamCells(theStartCells)) {
+            touched.add(cellToken);
+            touched.addAll(getCell(cellToken).getDependencies());
+        }
+        for (ExpressionTree tree : theNewTrees.values()) {
+            touched.addAll(tree.getDependencies());
+        }
+        return touched;
+    }
+
+    /**
+     * Finds the given cells and every cell that depends on them, directly or indirectly.
+     * @param theStartCells The cells to start from.
+     * @return The start cells followed by everything downstream of them.
+     */
+    private Set<CellToken> findDownstreamCells(final Collection<CellToken> theStartCells) {
+        Set<CellToken> found = new LinkedHashSet<>(theStartCells);
+        Deque<CellToken> toVisit = new ArrayDeque<>(theStartCells);
+        while (!toVisit.isEmpty()) {
+            for (CellToken dependent : getDependents(toVisit.pop())) {
+                if (found.add(dependent)) {
+                    toVisit.push(dependent);
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Finds the cells whose formulas refer to the given cell, including rows of array formulas.
+     * @param theCellToken The cell that is referred to.
+     * @return The cells that refer to it.
+     */
+    private Collection<CellToken> getDependents(final CellToken theCellToken) {
+        Set<CellToken> dependents = myDependents.get(theCellToken);
+        if (myArrayFormulas.isEmpty()) {
+            return dependents == null ? Collections.emptySet() : dependents;
+        }
+        List<CellToken> all = dependents == null ? new ArrayList<>() : new ArrayList<>(dependents);
+        for (ArrayFormula arrayFormula : myArrayFormulas) {
+            int start = all.size();
+            arrayFormula.findReaders(theCellToken, all);
+            // Rows that have since been given their own formula no longer read the cell.
+            for (int i = all.size() - 1; i >= start; i--) {
+                if (getCell(all.get(i)).getArrayFormula() != arrayFormula) {
+                    all.remove(i);
+                }
+            }
+        }
+        return all;
+    }
+
+    /**
+     * Does the work of applyEdits once the stripes of every touched cell are locked.
+     * @param theFormulas The new formula text of each edited cell; a cell left out gets text made from its tree.
+     * @param theNewTrees The new ExpressionTree of each edited cell.
+     * @param theStartCells The edited cells, and any others to recalculate.
+     * @return The cells whose values may have changed, if this sheet is in a workbook.
+     */
+    private Collection<CellToken> applyEditsLocked(final Map<CellToken, String> theFormulas,
+                                                   final Map<CellToken, ExpressionTree> theNewTrees,
+                                                   final Set<CellToken> theStartCells) {
+        // We save a copy of the previous formulas just in-case the new ones cause an error, or are undone.
+        // Recalculating cells without editing any isn't something to undo.
+        Edit edit = theNewTrees.isEmpty() ? null : new Edit(theNewTrees.size());
+        if (edit != null && theStartCells.size() > theNewTrees.size()) {
+            // The recalculation also catches up with other sheets, which undo mustn't take back.
+            edit.myValuesReusable = false;
+        }
+        boolean readsOtherSheets = false;
+        for (Map.Entry<CellToken, ExpressionTree> entry : theNewTrees.entrySet()) {
+            Cell formula = new Cell(theFormulas.get(entry.getKey()), entry.getValue());
+            edit.add(entry.getKey(), getCell(entry.getKey()).copy(), formula);
+            installCell(entry.getKey(), formula);
+            readsOtherSheets |= !entry.getValue().getSheetReferences().isEmpty();
+        }
+        if (readsOtherSheets && myWorkbook.hasSheetCycle()) {
+            edit.restore(true);
+            throw new IllegalArgumentException("Cycle found between sheets");
+        }
+
+        Set<CellToken> downstream = findDownstreamCells(theStartCells);
+        ValueChanges newValues = null;
+        if (myCalculationMode == CalculationMode.LAZY) {
+            // The cells are only checked for a cycle now, and calculated when they are read.
+            if (orderCells(downstream) != null) {
+                myDirtyCells.addAll(downstream);
+                if (edit != null) {
+                    publish(new ValueChanges(), edit);
+                }
+                return downstream;
+            }
+        } else {
+            newValues = recalculate(downstream, theStartCells, new ValueChanges());
+        }
+        if (newValues == null) {
+            if (edit != null) {
+                edit.restore(true);
+            }
+            throw new IllegalArgumentException("Cycle found");
+        }
+        publish(newValues, edit);
+        return changedCells(newValues);
+    }
+
+    /**
+     * Lists the cells a recalculation changed, for passing on to the sheets that read them.
+     * @param theValues The recalculation's new values.
+     * @return The changed cells, or an empty list if this sheet isn't in a workbook.
+     */
+    private Collection<CellToken> changedCells(final ValueChanges theValues) {
+        if (myWorkbook == null) {
+            return new ArrayList<>();
+        }
+        List<CellToken> changed = new ArrayList<>(theValues.size());
+        for (int i = 0; i < theValues.size(); i++) {
+            changed.add(new CellToken(theValues.getColumn(i), theValues.getRow(i)));
+        }
+        for (int run = 0; run < theValues.runCount(); run++) {
+            int fromRow = theValues.getRunFromRow(run);
+            for (int i = 0; i < theValues.getRunValues(run).length; i++) {
+                changed.add(new CellToken(theValues.getRunColumn(run), fromRow + i));
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Gives a cell a new formula and updates the dependents of the cells it used to
+     * refer to and now refers to.
+     * @param theCellToken The cell to change.
+     * @param theFormula A Cell holding the new formula, which takes the old cell's place.
+     */
+    private void installCell(final CellToken theCellToken, final Cell theFormula) {
+        Cell cell = getCell(theCellToken);
+        ArrayFormula oldArrayFormula = cell.getArrayFormula();
+        if (oldArrayFormula == null) {
+            for (CellToken dependency : cell.getDependencies()) {
+                Set<CellToken> dependents = myDependents.get(dependency);
+                if (dependents != null) {
+                    dependents.remove(theCellToken);
+                }
+            }
+        } else if (oldArrayFormula.removeCell()) {
+            myArrayFormulas.remove(oldArrayFormula);
+        }
+        putCell(theCellToken, theFormula);
+        if (myWorkbook != null) {
+            myWorkbook.updateReaders(this, theCellToken, cell.getSheetReferences(), theFormula.getSheetReferences());
+        }
+        ArrayFormula newArrayFormula = theFormula.getArrayFormula();
+        if (newArrayFormula == null) {
+            for (CellToken dependency : theFormula.getDependencies()) {
+                addDependent(new CellToken(dependency.getColumn(), dependency.getRow()), theCellToken);
+            }
+        } else if (newArrayFormula.addCell()) {
+            myArrayFormulas.add(newArrayFormula);
+        }
+    }
+
+    /**
+     * Puts a Cell in a row, copying the row first if a FormulaSnapshot still holds it.
+     * Does not update any dependencies.
+     * @param theCellToken Where to put the cell.
+     * @param theCell The cell.
+     */
+    private void putCell(final CellToken theCellToken, final Cell theCell) {
+        final int row = theCellToken.getRow();
+        final int column = theCellToken.getColumn();
+        synchronized (myRowLock) {
+            final Cell[] oldRow = cells[row];
+            if (oldRow == null || column >= oldRow.length) {
+                // A row is first made as wide as the sheet, and then widened by half again at a time as the sheet grows.
+                final int length = oldRow == null ? myColumns
+                        : Math.min(Math.max(column + 1, oldRow.length + (oldRow.length >> 1)), myColumns);
+                final Cell[] newRow = oldRow == null ? new Cell[length] : Arrays.copyOf(oldRow, length);
+                Arrays.fill(newRow, oldRow == null ? 0 : oldRow.length, length, EMPTY_CELL);
+                cells[row] = newRow;
+                myRowGenerations[row] = myRowGeneration;
+            } else if (myRowGenerations[row] != myRowGeneration) {
+                // A FormulaSnapshot still holds this row.
+                cells[row] = cells[row].clone();
+                myRowGenerations[row] = myRowGeneration;
+            }
+            if (cells[row][column].isEmpty() != theCell.isEmpty()) {
+                if (theCell.isEmpty()) {
+                    myFormulaCells.remove(row, column);
+                } else {
+                    myFormulaCells.add(row, column);
+                }
+            }
+            cells[row][column] = theCell;
+        }
+    }
+
+    /**
+     * Records that a cell's formula refers to another cell.
+     * @param theDependency The cell referred to.
+     * @param theDependent The cell whose formula refers to it.
+     */
+    private void addDependent(final CellToken theDependency, final CellToken theDependent) {
+        myDependents.computeIfAbsent(theDependency, k -> {
+            myReferencedCells.add(k.getRow(), k.getColumn());
+            return ConcurrentHashMap.newKeySet();
+        }).add(theDependent);
+    }
+
+    /**
+     * Topologically sorts the given cells by their dependencies and evaluates them in that order.
+     * Nothing is published; the caller decides whether to keep the result.
+     * <br>
+     * A cell is only evaluated if its formula changed or a cell it reads got a new value. When a
+     * cell comes out the same as its published value it isn't recorded, so the cells after it are
+     * skipped unless some other changed cell reaches them.
+     * @param theCells The cells to recalculate. Every cell that depends on one of them must be included.
+     * @param theChangedCells The cells whose formulas changed, which are always evaluated.
+     * @param theNewValues Values already computed by the same edit for cells outside theCells, which count
+     *                     as changed; the results are added to it.
+     * @return theNewValues, holding only the cells whose value or status changed, or null if a cycle was found.
+     */
+    private ValueChanges recalculate(final Set<CellToken> theCells, final Set<CellToken> theChangedCells,
+                                     final ValueChanges theNewValues) {
+        List<CellToken> processQueue = orderCells(theCells);
+        if (processQueue == null) {
+            return null;
+        }
+
+        // Now iterate through the queue of cells. Every cell a formula refers to either comes earlier
+        // in the queue, so its new value is already in place, or isn't affected by this edit at all.
+        // A formula that divides by zero, or reads a cell holding an error, becomes an error itself.
+        ValueChanges newValues = theNewValues;
+        SheetSnapshot snapshot = mySnapshot;
+        CellValues values = (theRow, theColumn) -> newValues.read(theRow, theColumn, snapshot);
+        for (CellToken cellToken : processQueue) {
+            Cell cell = getCell(cellToken);
+            if (!theChangedCells.contains(cellToken) && !readsNewValue(cell, newValues)) {
+                continue;
+            }
+            int value = 0;
+            byte status = SheetSnapshot.NUMBER;
+            if (cell.isEmpty()) {
+                status = SheetSnapshot.EMPTY;
+            } else {
+                try {
+                    value = cell.evaluate(values);
+                } catch (ArithmeticException e) {
+                    status = SheetSnapshot.ERROR;
+                }
+            }
+            int row = cellToken.getRow();
+            int column = cellToken.getColumn();
+            if (status != snapshot.getStatus(row, column)
+                    || (status == SheetSnapshot.NUMBER && value != snapshot.getValue(row, column))) {
+                newValues.put(row, column, value, status);
+            }
+        }
+        return newValues;
+    }
+
+    /**
+     * Returns whether a cell reads any cell that has been given a new value during a recalculation.
+     * @param theCell The cell to check.
+     * @param theNewValues The values recorded so far.
+     * @return True if one of the cell's dependencies has a recorded value.
+     */
+    private static boolean readsNewValue(final Cell theCell, final ValueChanges theNewValues) {
+        for (CellToken dependency : theCell.getDependencies()) {
+            if (theNewValues.contains(dependency.getRow(), dependency.getColumn())) {
+                return true;
             }
         }
+        return false;
     }
 
     /**
-     * @return The number of rows in the spreadsheet.
+     * Topologically sorts the given cells by their dependencies on each other.
+     * @param theCells The cells to sort.
+     * @return The cells in an order where each comes after every cell it refers to, or null if a cycle was found.
      */
-    public int getNumRows() {
-        return cells.length;
+    private List<CellToken> orderCells(final Set<CellToken> theCells) {
+        Map<CellToken, Integer> remaining = new HashMap<>(); // How many unprocessed cells each cell still depends on.
+        Deque<CellToken> ready = new ArrayDeque<>();
+        List<CellToken> processQueue = new ArrayList<>(theCells.size()); // Which cells to process, and in what order.
+
+        for (CellToken cellToken : theCells) {
+            int count = 0;
+            for (CellToken dependency : getCell(cellToken).getDependencies()) {
+                if (theCells.contains(dependency)) count++;
+            }
+            remaining.put(cellToken, count);
+            if (count == 0) {
+                ready.add(cellToken);
+            }
+        }
+
+        // Go through the ready cells, releasing each cell's dependents once all of their inputs are done.
+        while (!ready.isEmpty()) {
+            CellToken cellToken = ready.remove();
+            processQueue.add(cellToken);
+            for (CellToken dependent : getDependents(cellToken)) {
+                if (!theCells.contains(dependent)) continue;
+                if (remaining.merge(dependent, -1, Integer::sum) == 0) {
+                    ready.add(dependent);
+                }
+            }
+        }
+        // If we couldn't queue every cell, a cycle has been found.
+        return processQueue.size() == theCells.size() ? processQueue : null;
     }
 
     /**
-     * @return The number of columns in the spreadsheet.
+     * Brings the given cells up to date, calculating any that are dirty along with the dirty cells they read.
+     * In eager mode nothing is ever dirty, so this returns straight away.
+     * @param theCells The cells that are about to be read.
+     * @return A snapshot in which every given cell is up to date.
      */
-    public int getNumColumns() {
-        return cells[0].length;
+    public SheetSnapshot calculate(final Collection<CellToken> theCells) {
+        if (myDirtyCells.isEmpty()) {
+            return mySnapshot;
+        }
+        // Like an edit, we lock the cells we will write and read, and check the set again once they're held.
+        int[] held = new int[0];
+        try {
+            Set<CellToken> dirty;
+            while (true) {
+                dirty = findDirtyPrecedents(theCells);
+                Set<CellToken> touched = new HashSet<>(dirty);
+                for (CellToken cellToken : dirty) {
+                    touched.addAll(getCell(cellToken).getDependencies());
+                }
+                int[] needed = myStripes.stripesOf(touched);
+                if (LockStripes.covers(held, needed)) {
+                    break;
+                }
+                myStripes.unlock(held);
+                held = LockStripes.union(held, needed);
+                myStripes.lock(held);
+            }
+            calculateLocked(dirty);
+        } finally {
+            myStripes.unlock(held);
+        }
+        return mySnapshot;
     }
 
     /**
-     * Changes the given cellToken's formula to the String provided, then recalculates the spreadsheet.
-     * @param cellToken The CellToken to change.
-     * @param theFormula The formula for this Cell to have.
+     * Brings a rectangle of cells up to date. The corners may be given in any order.
+     * @param theFromRow The row of one corner.
+     * @param theFromColumn The column of one corner.
+     * @param theToRow The row of the opposite corner.
+     * @param theToColumn The column of the opposite corner.
+     * @return A snapshot in which every cell of the rectangle is up to date.
      */
-    public void changeCellFormulaAndRecalculate(final CellToken cellToken, final String theFormula) throws IllegalArgumentException {
-        Stack<Token> expTreeTokenStack = getFormula(theFormula);
-        // We save a copy of the previous formula just in-case the new one causes an error.
-        String previousFormula = getCell(cellToken).getFormula();
-        // Update our cell with the new expression tree stack we were given.
-        cells[cellToken.getRow()][cellToken.getColumn()].buildExpressionTree(expTreeTokenStack);
-        getCell(cellToken).setFormula(theFormula);
+    public SheetSnapshot calculateRange(final int theFromRow, final int theFromColumn,
+                                        final int theToRow, final int theToColumn) {
+        if (myDirtyCells.isEmpty()) {
+            return mySnapshot;
+        }
+        int top = Math.min(theFromRow, theToRow);
+        int bottom = Math.max(theFromRow, theToRow);
+        int left = Math.min(theFromColumn, theToColumn);
+        int right = Math.max(theFromColumn, theToColumn);
+        List<CellToken> inRange = new ArrayList<>();
+        for (CellToken cellToken : myDirtyCells) {
+            if (cellToken.getRow() >= top && cellToken.getRow() <= bottom
+                    && cellToken.getColumn() >= left && cellToken.getColumn() <= right) {
+                inRange.add(cellToken);
+            }
+        }
+        return calculate(inRange);
+    }
 
-        Queue<CellToken> processQueue = new LinkedList<>(); // Stores which cells to process, and in what order.
-        ConcurrentHashMap<CellToken, List<CellToken>> cellDependencies = new ConcurrentHashMap<>(); // All dependencies of a given cell.
+    /**
+     * Brings every cell up to date.
+     * @return A snapshot in which every cell is up to date.
+     */
+    public SheetSnapshot calculateAll() {
+        return calculate(new ArrayList<>(myDirtyCells));
+    }
 
-        for(int y = 0; y < getNumRows(); y++) {
-            for(int x = 0; x < getNumColumns(); x++) {
-                CellToken cToken = new CellToken();
-                cToken.setRow(y);
-                cToken.setColumn(x);
-                cellDependencies.put(cToken, getCell(cToken).getDependencies());
-            }
-        }
-
-        // Go through the cell dependencies, topologically sorting them into the process queue.
-        while(!cellDependencies.isEmpty()) {
-            boolean removedValue = false;
-            for (CellToken t : cellDependencies.keySet()) {
-                // If this cell has an empty list of dependencies, remove it from the hashtable.
-                if (cellDependencies.get(t).isEmpty()) {
-                    removedValue = true;
-                    cellDependencies.remove(t);
-                    processQueue.add(t);
-                    for (CellToken u : cellDependencies.keySet()) {
-                        // If this cell has a dependent, it's removed. if not, then it won't.
-                        cellDependencies.get(u).remove(t);
-                    }
-                }
+    /**
+     * Finds the dirty cells among the given cells, and the dirty cells those read, directly or indirectly.
+     * @param theCells The cells to start from.
+     * @return The dirty cells that have to be calculated before the given cells can be read.
+     */
+    private Set<CellToken> findDirtyPrecedents(final Collection<CellToken> theCells) {
+        Set<CellToken> found = new HashSet<>();
+        Deque<CellToken> toVisit = new ArrayDeque<>();
+        for (CellToken cellToken : theCells) {
+            if (myDirtyCells.contains(cellToken) && found.add(cellToken)) {
+                toVisit.push(cellToken);
             }
-            // If we didn't remove anything during a loop, a cycle has been found.
-            if (!removedValue) {
-                System.out.println("Cycle found");
-                // Since we know the graph originally worked before we changed a cell,
-                // we revert the change and then break.
-                Stack<Token> prevExpTreeTokenStack = getFormula(previousFormula);
-                // Update our cell with the original expression tree.
-                cells[cellToken.getRow()][cellToken.getColumn()].buildExpressionTree(prevExpTreeTokenStack);
-                if (!previousFormula.isEmpty()) {
-                    getCell(cellToken).setFormula(previousFormula);
-                } else {
-                    getCell(cellToken).setFormula("0");
+        }
+        while (!toVisit.isEmpty()) {
+            for (CellToken dependency : getCell(toVisit.pop()).getDependencies()) {
+                if (myDirtyCells.contains(dependency) && found.add(dependency)) {
+                    toVisit.push(dependency);
                 }
-                throw new IllegalArgumentException();
             }
         }
+        return found;
+    }
 
-        // Now iterate through the queue of cells.
-        while(!processQueue.isEmpty()) {
-            CellToken cToken = processQueue.remove();
-            getCell(cToken).evaluate(this);
+    /**
+     * Calculates dirty cells and publishes their values, once the stripes of every cell they
+     * read or write are locked.
+     * @param theCells The dirty cells to calculate, including every dirty cell they read.
+     */
+    private void calculateLocked(final Set<CellToken> theCells) {
+        if (theCells.isEmpty()) {
+            return;
         }
+        // Formulas are checked for cycles when they are entered, so this always succeeds.
+        // A dirty cell's published value may be older than the values of the cells it reads, so every one is evaluated.
+        publish(recalculate(theCells, theCells, new ValueChanges()));
+        myDirtyCells.removeAll(theCells);
     }
 
     /**
-     * Evaluates the formula in this cell and returns the result.
-     * @param theCellToken The CellToken of the cell we want to evaluate.
-     * @return The result of this cell's formula.
+     * Publishes the result of a recalculation as the next snapshot, so readers see all of it at once.
+     * Concurrent edits never change the same cells, so each one is applied on top of whatever was
+     * published last.
+     * @param theValues The new value and status of each recalculated cell.
      */
-    public int evaluateCell(final CellToken theCellToken) {
-        return cells[theCellToken.getRow()][theCellToken.getColumn()].evaluate(this);
+    private void publish(final ValueChanges theValues) {
+        publish(theValues, null);
     }
 
     /**
-     * Gets the cell at the specified row and column.
-     * @param theRow The row of the cell.
-     * @param theColumn The column of the cell.
-     * @return The Cell of this spreadsheet.
+     * Publishes the result of an edit as the next snapshot, and remembers the edit so it can be undone.
+     * @param theValues The new value and status of each recalculated cell.
+     * @param theEdit The edit, or null if the values are only a calculation and nothing was edited.
      */
-    public Cell getCell(final int theRow, final int theColumn) {
-        return cells[theRow][theColumn];
+    private void publish(final ValueChanges theValues, final Edit theEdit) {
+        synchronized (myPublishLock) {
+            SheetSnapshot before = mySnapshot;
+            publishSnapshot(before.withChanges(theValues), theValues);
+            if (theEdit != null) {
+                theEdit.myValuesBefore = before;
+                theEdit.myValuesAfter = mySnapshot;
+                theEdit.myChangedValues = theValues;
+                myUndoEdits.push(theEdit);
+                if (myUndoEdits.size() > UNDO_LIMIT) {
+                    myUndoEdits.removeLast();
+                }
+                myRedoEdits.clear();
+            }
+        }
     }
 
     /**
-     * Gets the cell at the specified CellToken.
-     * @param theToken The CellToken referring to a given cell.
-     * @return The Cell from this spreadsheet.
+     * Makes a snapshot the current one and tells subscribers which cells changed.
+     * Must be called while holding myPublishLock.
+     * @param theSnapshot The new snapshot.
+     * @param theChangedValues Which cells may have changed.
      */
-    public Cell getCell(final CellToken theToken) { return getCell(theToken.getRow(), theToken.getColumn()); }
+    private void publishSnapshot(final SheetSnapshot theSnapshot, final ValueChanges theChangedValues) {
+        // While a submit is stuck behind a slow subscriber, later publishes are merged into one
+        // batch, so only the snapshot from before them is kept rather than one pair per publish.
+        if (myPendingBefore == null) {
+            myPendingBefore = mySnapshot;
+            myChangeSubmitter.execute(this::submitPendingChanges);
+        }
+        myPendingChanges.add(theChangedValues);
+        mySnapshot = theSnapshot;
+    }
 
     /**
-     * getCellToken
-     * <br>
-     * Assuming that the next chars in a String (at the given startIndex)
-     * is a cell reference, set cellToken's column and row to the
-     * cell's column and row.
-     * If the cell reference is invalid, the row and column of the return CellToken
-     * are both set to BadCell (which should be a final int that equals -1).
-     * Also, return the index of the position in the string after processing
-     * the cell reference.
-     * (Possible improvement: instead of returning a CellToken with row and
-     * column equal to BadCell, throw an exception that indicates a parsing error.)
-     * <br>
-     * A cell reference is defined to be a sequence of CAPITAL letters,
-     * followed by a sequence of digits (0-9).  The letters refer to
-     * columns as follows: A = 0, B = 1, C = 2, ..., Z = 25, AA = 26,
-     * AB = 27, ..., AZ = 51, BA = 52, ..., ZA = 676, ..., ZZ = 701,
-     * AAA = 702.  The digits represent the row number.
-     * <br>
-     * @param inputString  the input string
-     * @param startIndex  the index of the first char to process
-     * @param cellToken  a cellToken (essentially a return value)
-     * @return  index corresponding to the position in the string just after the cell reference
-     */
-    int getCellToken (String inputString, int startIndex, CellToken cellToken) {
-        char ch;
-        int column;
-        int row;
-        int index = startIndex;
-
-        // handle a bad startIndex
-        if ((startIndex < 0) || (startIndex >= inputString.length() )) {
-            cellToken.setColumn(-1);
-            cellToken.setRow(-1);
-            return index;
-        }
-
-        // get rid of leading whitespace characters
-        while (index < inputString.length() ) {
-            ch = inputString.charAt(index);
-            if (!Character.isWhitespace(ch)) {
-                break;
-            }
-            index++;
+     * Sends subscribers one ChangeBatch of everything published since the last one. Runs on
+     * myChangeSubmitter, since even asking myChanges for its subscribers waits while a submit is stuck.
+     */
+    private void submitPendingChanges() {
+        final SheetSnapshot before;
+        final SheetSnapshot after;
+        final List<ValueChanges> changes;
+        synchronized (myPublishLock) {
+            before = myPendingBefore;
+            after = mySnapshot;
+            changes = new ArrayList<>(myPendingChanges);
+            myPendingBefore = null;
+            myPendingChanges.clear();
         }
-        if (index == inputString.length()) {
-            // reached the end of the string before finding a capital letter
-            cellToken.setColumn(-1);
-            cellToken.setRow(-1);
-            return index;
+        if (myChanges.hasSubscribers()) {
+            myChanges.submit(ChangeBatch.of(changes, before, after));
         }
+    }
 
-        // ASSERT: index now points to the first non-whitespace character
+    /**
+     * @return An executor that runs tasks one at a time, in order, on a thread that won't keep
+     *         the program running and ends when it has been idle for a second.
+     */
+    private static ThreadPoolExecutor newChangeSubmitter() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), task -> {
+                    Thread thread = new Thread(task, "spreadsheet-changes");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
 
-        ch = inputString.charAt(index);
-        // process CAPITAL alphabetic characters to calculate the column
-        if (!Character.isUpperCase(ch)) {
-            cellToken.setColumn(-1);
-            cellToken.setRow(-1);
-            return index;
-        } else {
-            column = ch - 'A';
-            index++;
+    /**
+     * @return True if there is an edit to undo.
+     */
+    public boolean canUndo() {
+        synchronized (myPublishLock) {
+            return !myUndoEdits.isEmpty();
         }
+    }
 
-        while (index < inputString.length() ) {
-            ch = inputString.charAt(index);
-            if (Character.isUpperCase(ch)) {
-                column = ((column + 1) * 26) + (ch - 'A');
-                index++;
-            } else {
-                break;
-            }
-        }
-        if (index == inputString.length() ) {
-            // reached the end of the string before fully parsing the cell reference
-            cellToken.setColumn(-1);
-            cellToken.setRow(-1);
-            return index;
+    /**
+     * @return True if there is an undone edit to redo.
+     */
+    public boolean canRedo() {
+        synchronized (myPublishLock) {
+            return !myRedoEdits.isEmpty();
         }
+    }
 
-        // ASSERT: We have processed leading whitespace and the
-        // capital letters of the cell reference
+    /**
+     * Undoes the most recent edit, putting back the formulas it replaced. If nothing has been
+     * published since the edit, the values from before it are put back as they were, without
+     * recalculating anything; otherwise the cells downstream of the edit are recalculated.
+     * @return True if an edit was undone, false if there was nothing to undo.
+     */
+    public boolean undo() {
+        return switchEdit(myUndoEdits, myRedoEdits, true);
+    }
 
-        // read numeric characters to calculate the row
-        if (Character.isDigit(ch)) {
-            row = ch - '0';
-            index++;
-        } else {
-            cellToken.setColumn(-1);
-            cellToken.setRow(-1);
-            return index;
-        }
+    /**
+     * Redoes the most recently undone edit, the same way undo puts back the previous state.
+     * @return True if an edit was redone, false if there was nothing to redo.
+     */
+    public boolean redo() {
+        return switchEdit(myRedoEdits, myUndoEdits, false);
+    }
 
-        while (index < inputString.length() ) {
-            ch = inputString.charAt(index);
-            if (Character.isDigit(ch)) {
-                row = (row * 10) + (ch - '0');
-                index++;
-            } else {
-                break;
+    /**
+     * Does the work of undo and redo.
+     * @param theFrom The edits to take the edit from.
+     * @param theTo The edits to put the edit on once it is switched.
+     * @param theUndo True to go back to the state before the edit, false to go forward to the state after it.
+     * @return True if there was an edit to switch.
+     */
+    private boolean switchEdit(final Deque<Edit> theFrom, final Deque<Edit> theTo, final boolean theUndo) {
+        Collection<CellToken> changed = null;
+        int[] held = myStripes.lockAll();
+        try {
+            Edit edit;
+            synchronized (myPublishLock) {
+                edit = theFrom.poll();
+            }
+            if (edit == null) {
+                return false;
+            }
+            edit.restore(theUndo);
+            if (myWorkbook != null && myWorkbook.hasSheetCycle()) {
+                // Another sheet has started reading this one since the edit.
+                edit.restore(!theUndo);
+                synchronized (myPublishLock) {
+                    theFrom.push(edit);
+                }
+                throw new IllegalArgumentException("Cycle found between sheets");
+            }
+            SheetSnapshot current = theUndo ? edit.myValuesAfter : edit.myValuesBefore;
+            SheetSnapshot target = theUndo ? edit.myValuesBefore : edit.myValuesAfter;
+            synchronized (myPublishLock) {
+                // The values on the other side of the edit can't be trusted if the formulas there
+                // read other sheets, which may have changed since.
+                if (myCalculationMode == CalculationMode.EAGER && mySnapshot.hasSameValues(current)
+                        && edit.myValuesReusable && !edit.readsOtherSheets(theUndo)) {
+                    // Nothing has changed the values since, so the other side of the edit is still right.
+                    publishSnapshot(target.withVersion(mySnapshot.getVersion() + 1), edit.myChangedValues);
+                    theTo.push(edit);
+                    changed = changedCells(edit.myChangedValues);
+                }
+            }
+            if (changed == null) {
+                Set<CellToken> downstream = findDownstreamCells(edit.myCells);
+                if (myCalculationMode == CalculationMode.LAZY) {
+                    myDirtyCells.addAll(downstream);
+                    changed = downstream;
+                } else {
+                    ValueChanges newValues = recalculate(downstream, new HashSet<>(edit.myCells),
+                                                         new ValueChanges());
+                    if (newValues == null) {
+                        // Only possible if the sheet was changed some other way since the edit.
+                        edit.restore(!theUndo);
+                        synchronized (myPublishLock) {
+                            theFrom.push(edit);
+                        }
+                        throw new IllegalArgumentException("Cycle found");
+                    }
+                    publish(newValues);
+                    changed = changedCells(newValues);
+                }
+                synchronized (myPublishLock) {
+                    theTo.push(edit);
+                }
             }
+        } finally {
+            myStripes.unlock(held);
         }
-
-        // successfully parsed a cell reference
-        cellToken.setColumn(column);
-        cellToken.setRow(row);
-        return index;
+        if (myWorkbook != null) {
+            myWorkbook.propagate(this, changed);
+        }
+        return true;
     }
 
     /**
-     * getFormula
-     * <br>
-     * Given a string that represents a formula that is an infix
-     * expression, return a stack of Tokens so that the expression,
-     * when read from the bottom of the stack to the top of the stack,
-     * is a postfix expression.
-     * <br>
-     * A formula is defined as a sequence of tokens that represents
-     * a legal infix expression.
-     * <br>
-     * A token can consist of a numeric literal, a cell reference, or an
-     * operator (+, -, *, /).
-     * <br>
-     * Multiplication (*) and division (/) have higher precedence than
-     * addition (+) and subtraction (-).  Among operations within the same
-     * level of precedence, grouping is from left to right.
-     * <br>
-     * This algorithm follows the algorithm described in Weiss, pages 105-108.
+     * Edit remembers what one edit changed, so it can be undone and redone: the formula of each
+     * edited cell before and after, and the published values before and after.
      */
-    Stack<Token> getFormula(String formula) {
-        Stack<Token> returnStack = new Stack<>();  // stack of Tokens (representing a postfix expression)
-        boolean error = false;
-        char ch = ' ';
+    private final class Edit {
+        /** The edited cells. */
+        private final List<CellToken> myCells;
 
-        int literalValue;
+        /** The formula of each edited cell before the edit, in the same order as myCells. */
+        private final List<Cell> myBefore;
 
-        CellToken cellToken;
+        /** The formula of each edited cell after the edit, in the same order as myCells. */
+        private final List<Cell> myAfter;
 
-        int index = 0;  // index into formula
-        Stack<Token> operatorStack = new Stack<>();  // stack of operators
+        /** The snapshot published before the edit. */
+        private SheetSnapshot myValuesBefore;
 
-        while (index < formula.length() ) {
-            // get rid of leading whitespace characters
-            while (index < formula.length() ) {
-                ch = formula.charAt(index);
-                if (!Character.isWhitespace(ch)) {
-                    break;
+        /** The snapshot the edit published. */
+        private SheetSnapshot myValuesAfter;
+
+        /** The values the edit changed. */
+        private ValueChanges myChangedValues;
+
+        /** False if the values the edit published also hold changes made by other sheets. */
+        private boolean myValuesReusable = true;
+
+        Edit(final int theSize) {
+            myCells = new ArrayList<>(theSize);
+            myBefore = new ArrayList<>(theSize);
+            myAfter = new ArrayList<>(theSize);
+        }
+
+        /**
+         * Records one edited cell.
+         * @param theCellToken The cell.
+         * @param theBefore A copy of the cell's formula before the edit.
+         * @param theAfter The cell's formula after the edit, which must not be changed afterwards.
+         */
+        void add(final CellToken theCellToken, final Cell theBefore, final Cell theAfter) {
+            myCells.add(theCellToken);
+            myBefore.add(theBefore);
+            myAfter.add(theAfter);
+        }
+
+        /**
+         * Returns whether any edited cell's formula, before or after the edit, refers to another sheet.
+         * @param theBefore True for before the edit, false for after it.
+         * @return True if a formula refers to another sheet.
+         */
+        boolean readsOtherSheets(final boolean theBefore) {
+            for (Cell formula : theBefore ? myBefore : myAfter) {
+                if (!formula.getSheetReferences().isEmpty()) {
+                    return true;
                 }
-                index++;
             }
+            return false;
+        }
 
-            if (index == formula.length() ) {
-                error = true;
-                break;
+        /**
+         * Puts the formulas of the edited cells back to how they were before or after the edit.
+         * @param theBefore True for before the edit, false for after it.
+         */
+        void restore(final boolean theBefore) {
+            List<Cell> formulas = theBefore ? myBefore : myAfter;
+            for (int i = 0; i < myCells.size(); i++) {
+                installCell(myCells.get(i), formulas.get(i));
             }
+        }
+    }
 
-            // ASSERT: ch now contains the first character of the next token.
-            if (OperatorToken.isOperator(ch)) {
-                // We found an operator token
-                switch (ch) {
-                    case OperatorToken.Plus:
-                    case OperatorToken.Minus:
-                    case OperatorToken.Mult:
-                    case OperatorToken.Div:
-                    case OperatorToken.Pow:
-                    case OperatorToken.LeftParen:
-                        // push operatorTokens onto the output stack until
-                        // we reach an operator on the operator stack that has
-                        // lower priority than the current one.
-                        OperatorToken stackOperator;
-                        while (!operatorStack.isEmpty()) {
-                            stackOperator = (OperatorToken) operatorStack.peek();
-                            if ((stackOperator.priority() >= OperatorToken.operatorPriority(ch)) &&
-                                    (stackOperator.getToken() != OperatorToken.LeftParen) ) {
-
-                                // output the operator to the return stack
-                                operatorStack.pop();
-                                returnStack.push(stackOperator);
-                            } else {
-                                break;
-                            }
-                        }
+    /**
+     * Returns a publisher of the changes to this spreadsheet's values. Each time a snapshot is
+     * published, every subscriber is sent a ChangeBatch of the cells whose values changed, in version
+     * order. Subscribers are sent only as many batches as they request; once a subscriber has
+     * Flow.defaultBufferSize() batches waiting, the snapshots published until it catches up are
+     * merged into a single batch, so nothing is lost and edits never wait for a slow subscriber.
+     * @return The publisher of ChangeBatches.
+     */
+    public Flow.Publisher<ChangeBatch> getChanges() {
+        return myChanges;
+    }
 
-                        // push the operator on the operator stack
-                        operatorStack.push(new OperatorToken(ch));
-                        index++;
-                        break;
-                    case OperatorToken.RightParen:
-                        if(!operatorStack.isEmpty()) {
-                            stackOperator = (OperatorToken) operatorStack.pop();
-                            // This code does not handle operatorStack underflow.
-                            while (stackOperator.getToken() != OperatorToken.LeftParen) {
-                                // pop operators off the stack until a LeftParen appears and
-                                // place the operators on the output stack
-                                returnStack.push(stackOperator);
-                                if (!operatorStack.isEmpty())
-                                    stackOperator = (OperatorToken) operatorStack.pop();
-                                else break;
-                            }
-                        }
+    /**
+     * Returns a publisher of the changes to a rectangle of cells. Like getChanges, except each batch
+     * only holds the changes inside the rectangle, and batches without any are not sent.
+     * @param theTop The first row of the rectangle.
+     * @param theLeft The first column of the rectangle.
+     * @param theBottom The last row of the rectangle.
+     * @param theRight The last column of the rectangle.
+     * @return The publisher of ChangeBatches.
+     */
+    public Flow.Publisher<ChangeBatch> getChanges(final int theTop, final int theLeft,
+                                                  final int theBottom, final int theRight) {
+        return theSubscriber -> myChanges.subscribe(
+                new RangeSubscriber(theSubscriber, theTop, theLeft, theBottom, theRight));
+    }
 
-                        index++;
-                        break;
-                    default:
-                        // This case should NEVER happen
-                        System.out.println("Error in getFormula.");
-                        System.exit(0);
-                        break;
-                }
+    /**
+     * RangeSubscriber passes on the changes inside a rectangle of cells to another subscriber.
+     * Batches with no changes inside are dropped, and another batch is requested in their place
+     * so the subscriber still gets as many as it asked for.
+     */
+    private static final class RangeSubscriber implements Flow.Subscriber<ChangeBatch> {
+        private final Flow.Subscriber<? super ChangeBatch> mySubscriber;
+        private final int myTop;
+        private final int myLeft;
+        private final int myBottom;
+        private final int myRight;
+        private Flow.Subscription mySubscription;
 
-            } else if (Character.isDigit(ch)) {
-                // We found a literal token
-                literalValue = ch - '0';
-                index++;
-                while (index < formula.length()) {
-                    ch = formula.charAt(index);
-                    if (Character.isDigit(ch)) {
-                        literalValue = (literalValue * 10) + (ch - '0');
-                        index++;
-                    } else {
-                        break;
-                    }
-                }
-                // place the literal on the output stack
-                returnStack.push(new LiteralToken(literalValue));
+        RangeSubscriber(final Flow.Subscriber<? super ChangeBatch> theSubscriber, final int theTop,
+                        final int theLeft, final int theBottom, final int theRight) {
+            mySubscriber = theSubscriber;
+            myTop = theTop;
+            myLeft = theLeft;
+            myBottom = theBottom;
+            myRight = theRight;
+        }
 
-            } else if (Character.isUpperCase(ch)) {
-                // We found a cell reference token
-                //CellToken cellToken = new CellToken();
-                cellToken = new CellToken();
-                index = getCellToken(formula, index, cellToken);
-                if (cellToken.getRow() == -1) {
-                    error = true;
-                    break;
-                } else {
-                    // place the cell reference on the output stack
-                    returnStack.push(cellToken);
-                }
+        @Override
+        public void onSubscribe(final Flow.Subscription theSubscription) {
+            mySubscription = theSubscription;
+            mySubscriber.onSubscribe(theSubscription);
+        }
 
+        @Override
+        public void onNext(final ChangeBatch theBatch) {
+            ChangeBatch inside = theBatch.within(myTop, myLeft, myBottom, myRight);
+            if (inside.isEmpty()) {
+                mySubscription.request(1);
             } else {
-                error = true;
-                break;
+                mySubscriber.onNext(inside);
             }
         }
 
-        // pop all remaining operators off the operator stack
-        while (!operatorStack.isEmpty()) {
-            returnStack.push(operatorStack.pop());
+        @Override
+        public void onError(final Throwable theError) {
+            mySubscriber.onError(theError);
         }
 
-        if (error) {
-            // a parse error; return the empty stack.
-            // Go through the entire return stack and pop every item.
-            // Maybe there's a better way to do this?
-            while(!returnStack.empty())
-                returnStack.pop();
+        @Override
+        public void onComplete() {
+            mySubscriber.onComplete();
         }
-
-        return returnStack;
     }
 
     /**
-     *  Given a CellToken, print it out as it appears on the
-     *  spreadsheet (e.g., "A3")
-     *  @param cellToken  a CellToken
-     *  @return  the cellToken's coordinates
+     * Returns whether the given CellToken refers to a cell inside this spreadsheet.
+     * @param theToken The CellToken to check.
+     * @return True if the row and column are within the spreadsheet, false otherwise.
      */
-    String printCellToken (CellToken cellToken) {
-        char ch;
-        StringBuilder returnString = new StringBuilder();
-        int col;
-        int largest = 26;  // minimum col number with number_of_digits digits
-        int number_of_digits = 2;
+    public boolean isInBounds(final CellToken theToken) {
+        return theToken.getRow() >= 0 && theToken.getRow() < getNumRows()
+                && theToken.getColumn() >= 0 && theToken.getColumn() < getNumColumns();
+    }
 
-        col = cellToken.getColumn();
+    /**
+     * Returns whether the given CellToken refers to a cell inside this spreadsheet, or to one it
+     * would grow to include if an edit or formula referred to it.
+     * @param theToken The CellToken to check.
+     * @return True if the row and column are within the most this spreadsheet can grow to.
+     */
+    public boolean isInReach(final CellToken theToken) {
+        return theToken.getRow() >= 0 && theToken.getRow() < Math.max(MAX_ROWS, getNumRows())
+                && theToken.getColumn() >= 0 && theToken.getColumn() < Math.max(MAX_COLUMNS, getNumColumns());
+    }
 
-        // compute the biggest power of 26 that is less than or equal to col
-        // We don't check for overflow of largest here.
-        while (largest <= col) {
-            largest = largest * 26;
-            number_of_digits++;
+    /**
+     * Grows this spreadsheet, if needed, so that it includes every given cell.
+     * Must not be called while holding any stripe.
+     * @param theCells Cells that are all in reach.
+     */
+    void growToInclude(final Collection<CellToken> theCells) {
+        int rows = getNumRows();
+        int columns = getNumColumns();
+        for (CellToken cellToken : theCells) {
+            rows = Math.max(rows, cellToken.getRow() + 1);
+            columns = Math.max(columns, cellToken.getColumn() + 1);
         }
-        largest = largest / 26;
-        number_of_digits--;
+        growTo(rows, columns);
+    }
 
-        // append the column label, one character at a time
-        while (number_of_digits > 1) {
-            ch = (char)(((col / largest) - 1) + 'A');
-            returnString.append(ch);
-            col = col % largest;
-            largest = largest  / 26;
-            number_of_digits--;
+    /**
+     * Grows this spreadsheet to at least the given size, publishing a snapshot of the new size
+     * in which every new cell is empty. Nothing already in the sheet is copied: there is room
+     * for more rows than the sheet has, which grows by half again whenever it runs out, and
+     * rows only widen when a cell past their end is written. Must not be called while holding
+     * any stripe.
+     * @param theRows The number of rows the sheet must have.
+     * @param theColumns The number of columns the sheet must have.
+     */
+    private void growTo(final int theRows, final int theColumns) {
+        if (theRows <= myRows && theColumns <= myColumns) {
+            return;
+        }
+        int[] held = myStripes.lockAll();
+        try {
+            final int rows = Math.max(theRows, myRows);
+            final int columns = Math.max(theColumns, myColumns);
+            synchronized (myRowLock) {
+                if (rows > cells.length) {
+                    final int capacity = Math.max(rows, Math.min(cells.length + (cells.length >> 1), MAX_ROWS));
+                    myRowGenerations = Arrays.copyOf(myRowGenerations, capacity);
+                    cells = Arrays.copyOf(cells, capacity);
+                }
+                myRows = rows;
+                myColumns = columns;
+            }
+            synchronized (myPublishLock) {
+                publishSnapshot(mySnapshot.withSize(rows, columns), new ValueChanges());
+            }
+        } finally {
+            myStripes.unlock(held);
         }
+    }
+
+    /**
+     * Returns the most recently published snapshot of this spreadsheet's values.
+     * The snapshot never changes, so it can be read from any thread while edits continue.
+     * In lazy mode it may hold out of date values for dirty cells; use calculate or
+     * calculateRange to get a snapshot that is up to date where it will be read.
+     * @return The latest SheetSnapshot.
+     */
+    public SheetSnapshot getSnapshot() {
+        return mySnapshot;
+    }
 
-        // handle last digit
-        ch = (char)(col + 'A');
-        returnString.append(ch);
+    /**
+     * Returns the result of this cell's formula as of the last finished recalculation.
+     * @param theCellToken The CellToken of the cell we want to evaluate.
+     * @return The result of this cell's formula.
+     * @throws ArithmeticException If the cell's formula couldn't be evaluated.
+     */
+    public int evaluateCell(final CellToken theCellToken) {
+        return calculate(Collections.singletonList(theCellToken)).getValue(theCellToken);
+    }
 
-        // append the row as an integer
-        returnString.append(cellToken.getRow());
+    @Override
+    public int getValue(final int theRow, final int theColumn) {
+        if (myDirtyCells.isEmpty()) {
+            return mySnapshot.getValue(theRow, theColumn);
+        }
+        return evaluateCell(new CellToken(theColumn, theRow));
+    }
 
-        return returnString.toString();
+    /**
+     * Gets the cell at the specified row and column. The Cell must not be changed; cells are
+     * edited with changeCellFormulaAndRecalculate.
+     * @param theRow The row of the cell.
+     * @param theColumn The column of the cell.
+     * @return The Cell of this spreadsheet.
+     */
+    public Cell getCell(final int theRow, final int theColumn) {
+        if (theRow < 0 || theRow >= myRows || theColumn < 0 || theColumn >= myColumns) {
+            throw new ArrayIndexOutOfBoundsException(CellAddress.toString(theColumn, theRow)
+                    + " is not in the spreadsheet");
+        }
+        final Cell[] row = cells[theRow];
+        return row == null || theColumn >= row.length ? EMPTY_CELL : row[theColumn];
     }
 
+    /**
+     * Gets the cell at the specified CellToken.
+     * @param theToken The CellToken referring to a given cell.
+     * @return The Cell from this spreadsheet.
+     */
+    public Cell getCell(final CellToken theToken) { return getCell(theToken.getRow(), theToken.getColumn()); }
+
     /**
      * Prints out the values inside this spreadsheet.
      */
     public void printValues() {
-        for(int y = 0; y < getNumRows(); y++) {
-            for(int x = 0; x < getNumColumns(); x++) {
-                CellToken cellToken = new CellToken();
-                cellToken.setRow(y);
-                cellToken.setColumn(x);
-                System.out.print(printCellToken(cellToken));
-                System.out.print(": ");
-                System.out.print(evaluateCell(cellToken));
-                System.out.print(" | ");
+        SheetSnapshot snapshot = calculateAll();
+        // Each row is built up first and printed in one call, rather than a few calls per cell.
+        StringBuilder line = new StringBuilder();
+        for(int y = 0; y < snapshot.getNumRows(); y++) {
+            line.setLength(0);
+            for(int x = 0; x < snapshot.getNumColumns(); x++) {
+                CellAddress.append(line, x, y).append(": ");
+                if (snapshot.getStatus(y, x) == SheetSnapshot.ERROR) {
+                    line.append(SheetSnapshot.ERROR_TEXT);
+                } else {
+                    line.append(snapshot.getValue(y, x));
+                }
+                line.append(" | ");
             }
-            System.out.println();
+            line.append(System.lineSeparator());
+            System.out.print(line);
         }
+        System.out.flush();
+    }
+
+    /**
+     * Builds a DependencyGraph describing how the cells of this spreadsheet depend on each other.
+     * @return A new DependencyGraph for the current formulas.
+     */
+    public DependencyGraph getDependencyGraph() {
+        return new DependencyGraph(this);
+    }
+
+    /**
+     * Builds a ScenarioModel of this spreadsheet as it is now, for running what-if scenarios
+     * without editing it.
+     * @return A new ScenarioModel for the current formulas and values.
+     */
+    public ScenarioModel getScenarioModel() {
+        return new ScenarioModel(this);
     }
 
     /**
@@ -478,7 +2021,7 @@ public class Spreadsheet {
             for(int x = 0; x < getNumColumns(); x++) {
                 cellToken.setRow(y);
                 cellToken.setColumn(x);
-                System.out.print(printCellToken(cellToken));
+                System.out.print(cellToken);
                 System.out.print(": ");
                 System.out.print(getCell(cellToken).getFormula());
                 System.out.print(" | ");
@@ -488,61 +2031,182 @@ public class Spreadsheet {
     }
 
     /**
-     * Saves the current spreadsheet as a file.
-     * @param theFilePath the path of the file
-     * @param mainTable the spreadsheet table
-     * @param headerTable the row header table
+     * Takes a snapshot of every formula and the values published with them. It briefly waits for
+     * edits in progress to finish, but costs only one reference per row.
+     * @return The snapshot.
      */
-    public void saveToFile(String theFilePath, JTable mainTable, JTable headerTable) throws IOException {
-        FileWriter writer = new FileWriter(theFilePath);
-
-        // writes the column header
-        writer.write("\t");
-        JTableHeader header = mainTable.getTableHeader();
-        for (int i = 0; i < header.getColumnModel().getColumnCount(); i++) {
-            writer.write(header.getColumnModel().getColumn(i).getHeaderValue().toString() + "\t");
+    public FormulaSnapshot snapshotFormulas() {
+        int[] held = myStripes.lockAll();
+        try {
+            synchronized (myRowLock) {
+                myRowGeneration++;
+                return new FormulaSnapshot(cells.clone(), mySnapshot);
+            }
+        } finally {
+            myStripes.unlock(held);
         }
-        writer.write("\n");
+    }
 
+    /**
+     * Saves the current spreadsheet as a file, waiting until it is written.
+     * @param theFilePath the path of the file
+     */
+    public void saveToFile(final String theFilePath) throws IOException {
+        writeFormulas(snapshotFormulas(), theFilePath, null);
+    }
 
-        for (int i = 0; i < cells.length; i++) {
-            writer.write(headerTable.getValueAt(i, 0).toString() + "\t"); // writes the row header
-            for (int j = 0; j < cells[i].length; j++) {
-                Cell cell = cells[i][j];
-                String formula = cell.getFormula();
-                if (formula != null) {
-                    writer.write(formula); // writes the values in the table
-                }
+    /**
+     * Saves the spreadsheet as a file on a background thread. The formulas are taken now, so the
+     * file holds the sheet as it is when this is called, however it is edited while the file is
+     * written. The file is written under a temporary name and renamed when complete, so a
+     * failed save leaves any earlier file in place.
+     * @param theFilePath the path of the file
+     * @param theProgress told how far the save has got, or null
+     * @return completed when the file has been written; add a callback to it to be told when the
+     *         save finishes, or completed exceptionally with an UncheckedIOException if it failed
+     */
+    public CompletableFuture<Void> saveInBackground(final String theFilePath, final SaveProgress theProgress) {
+        FormulaSnapshot snapshot = snapshotFormulas();
+        return CompletableFuture.runAsync(() -> {
+            try {
+                writeFormulas(snapshot, theFilePath, theProgress);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, SAVER);
+    }
+
+    /**
+     * Writes the formulas of a snapshot to a file, in the layout readFromFile reads.
+     * @param theSnapshot the formulas to write
+     * @param theFilePath the path of the file
+     * @param theProgress told how far the save has got, or null
+     */
+    private static void writeFormulas(final FormulaSnapshot theSnapshot, final String theFilePath,
+                                      final SaveProgress theProgress) throws IOException {
+        Path target = Paths.get(theFilePath);
+        Path temporary = target.resolveSibling(target.getFileName() + ".saving");
+        int rows = theSnapshot.getNumRows();
+        char[] label = new char[CellAddress.MAX_LENGTH];
+        try (Writer writer = new BufferedWriter(new FileWriter(temporary.toFile()), SAVE_BUFFER_SIZE)) {
+            // writes the column header
+            writer.write("\t");
+            for (int x = 0; x < theSnapshot.getNumColumns(); x++) {
+                writer.write(label, 0, CellAddress.encodeColumn(x, label, 0));
                 writer.write("\t");
             }
             writer.write("\n");
+
+            for (int y = 0; y < rows; y++) {
+                writer.write(label, 0, CellAddress.encodeRow(y, label, 0)); // writes the row header
+                writer.write("\t");
+                for (int x = 0; x < theSnapshot.getNumColumns(); x++) {
+                    writer.write(theSnapshot.getFormula(y, x));
+                    writer.write("\t");
+                }
+                writer.write("\n");
+                if (theProgress != null && (y + 1) % SAVE_PROGRESS_ROWS == 0 && y + 1 < rows) {
+                    theProgress.rowsWritten(y + 1, rows);
+                }
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(temporary);
+            throw e;
+        }
+        try {
+            Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+        if (theProgress != null) {
+            theProgress.rowsWritten(rows, rows);
+        }
+    }
+
+    /**
+     * Writes the computed value of every cell in the same tab separated layout as saveToFile.
+     * Cells without a formula are left blank, and cells holding an error are written as SheetSnapshot.ERROR_TEXT.
+     * @param theWriter the Writer to write to; it is not closed, and should be buffered
+     */
+    public void writeValues(final Writer theWriter) throws IOException {
+        // Every value comes from one snapshot, even if the sheet is edited while we write.
+        writeValues(calculateAll(), theWriter);
+    }
+
+    /**
+     * Writes every value of a snapshot in the same tab separated layout as saveToFile.
+     * @param theSnapshot the values to write
+     * @param theWriter the Writer to write to; it is not closed, and should be buffered
+     */
+    static void writeValues(final SheetSnapshot theSnapshot, final Writer theWriter) throws IOException {
+        char[] label = new char[CellAddress.MAX_LENGTH];
+        // writes the column header
+        theWriter.write("\t");
+        for (int x = 0; x < theSnapshot.getNumColumns(); x++) {
+            theWriter.write(label, 0, CellAddress.encodeColumn(x, label, 0));
+            theWriter.write("\t");
+        }
+        theWriter.write("\n");
+
+        for (int y = 0; y < theSnapshot.getNumRows(); y++) {
+            theWriter.write(label, 0, CellAddress.encodeRow(y, label, 0)); // writes the row header
+            theWriter.write("\t");
+            for (int x = 0; x < theSnapshot.getNumColumns(); x++) {
+                theWriter.write(theSnapshot.getText(y, x));
+                theWriter.write("\t");
+            }
+            theWriter.write("\n");
         }
-        writer.close();
     }
 
     /**
-     * Read the spreadsheet values from a file and loads it into the current table.
+     * Reads the formulas from a file into this spreadsheet, which grows if the file is bigger.
+     * A table showing the sheet picks up the new values from its change batches.
      * @param file the file to read
-     * @param mainTable the spreadsheet table
      */
-    public void readFromFile(String file, JTable mainTable) throws IOException {
-        FileReader reader = new FileReader(file);
-        BufferedReader bufferedReader = new BufferedReader(reader);
-        String line;
+    public void readFromFile(String file) throws IOException {
+        changeCellFormulasAndRecalculate(readFormulas(file, new int[2]));
+    }
+
+    /**
+     * Creates a new spreadsheet sized to fit a file written by saveToFile and loads its formulas,
+     * recalculating once at the end.
+     * @param theFile the file to read
+     * @return the loaded spreadsheet
+     */
+    public static Spreadsheet loadFromFile(final String theFile) throws IOException {
+        int[] size = new int[2];
+        Map<CellToken, String> formulas = readFormulas(theFile, size);
+        Spreadsheet spreadsheet = new Spreadsheet(Math.max(size[0], 1), Math.max(size[1], 1));
+        spreadsheet.changeCellFormulasAndRecalculate(formulas);
+        return spreadsheet;
+    }
 
-        line = bufferedReader.readLine();
+    /**
+     * Reads every formula from a file written by saveToFile.
+     * @param theFile the file to read
+     * @param theSize receives the number of rows and columns the file describes
+     * @return the formula of each cell in the file, in file order
+     */
+    static Map<CellToken, String> readFormulas(final String theFile, final int[] theSize) throws IOException {
+        Map<CellToken, String> formulas = new LinkedHashMap<>();
+        try (BufferedReader bufferedReader = new BufferedReader(new FileReader(theFile))) {
+            // the first line is the column header
+            String line = bufferedReader.readLine();
+            int columns = line == null ? 0 : line.split("\t").length - 1;
 
-        int row = 0;
-        while ((line = bufferedReader.readLine()) != null) {
-            String[] columns = line.split("\t");
-            // reads the values in the file and loads it into current table
-            for (int i = 1; i < columns.length; i++) {
-                mainTable.setValueAt(columns[i], row, i-1);
-                CellToken curr = new CellToken(i-1, row);
-                changeCellFormulaAndRecalculate(curr, columns[i]);
+            int row = 0;
+            while ((line = bufferedReader.readLine()) != null) {
+                String[] values = line.split("\t");
+                for (int i = 1; i < values.length; i++) {
+                    formulas.put(new CellToken(i - 1, row), values[i]);
+                }
+                columns = Math.max(columns, values.length - 1);
+                row++;
             }
-            row++;
+            theSize[0] = row;
+            theSize[1] = columns;
         }
-        bufferedReader.close();
+        return formulas;
     }
 }
@@ -46,9 +46,9 @@ public class SpreadsheetApp {
 
         System.out.println("Enter the cell: ");
         inputString = readString();
-        theSpreadsheet.getCellToken(inputString, 0, cellToken);
+        CellAddress.decode(inputString, 0, inputString.length(), cellToken);
 
-        System.out.println(theSpreadsheet.printCellToken(cellToken));
+        System.out.println(cellToken);
         System.out.println(": ");
 
         if ((cellToken.getRow() < 0) ||
@@ -69,6 +69,10 @@ public class SpreadsheetApp {
         System.out.println();
     }
 
+    private static void menuPrintDependencyGraph(Spreadsheet theSpreadsheet) {
+        System.out.println(theSpreadsheet.getDependencyGraph());
+    }
+
     private static void menuChangeCellFormula(Spreadsheet theSpreadsheet) {
         String inputCell;
         String inputFormula;
@@ -78,14 +82,11 @@ public class SpreadsheetApp {
 
         System.out.println("Enter the cell to change: ");
         inputCell = readString();
-        theSpreadsheet.getCellToken(inputCell, 0, cellToken);
+        CellAddress.decode(inputCell, 0, inputCell.length(), cellToken);
 
         // error check to make sure the row and column
-        // are within spreadsheet array bounds.
-        if ((cellToken.getRow() < 0) ||
-                (cellToken.getRow() >= theSpreadsheet.getNumRows()) ||
-                (cellToken.getColumn() < 0) ||
-                (cellToken.getColumn() >= theSpreadsheet.getNumColumns())) {
+        // are within the most the spreadsheet can grow to.
+        if (!theSpreadsheet.isInReach(cellToken)) {
 
             System.out.println("Bad cell.");
             return;
@@ -104,11 +105,22 @@ public class SpreadsheetApp {
         }
         */
 
-        theSpreadsheet.changeCellFormulaAndRecalculate(cellToken, inputFormula);
+        try {
+            theSpreadsheet.changeCellFormulaAndRecalculate(cellToken, inputFormula);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+        }
         System.out.println();
     }
 
     public static void main(String[] args) {
+        // Any arguments mean a headless run, so Swing is never touched.
+        if (args.length > 0 && args[0].equals("--serve")) {
+            System.exit(SpreadsheetServer.run(args));
+        } else if (args.length > 0) {
+            System.exit(BatchRunner.run(args));
+        }
+
         new GUI().start();
         Spreadsheet theSpreadsheet = new Spreadsheet(8, 10);
 
@@ -127,6 +139,7 @@ public class SpreadsheetApp {
             System.out.println("f: print out a cell's formula");
             System.out.println("a: print all cell formulas");
             System.out.println("c: change the formula of a cell");
+            System.out.println("g: print dependency graph statistics");
     /* BONUS
             System.out.println("r: read in a spreadsheet from a textfile");
             System.out.println("s: save the spreadsheet to a textfile");
@@ -155,6 +168,10 @@ public class SpreadsheetApp {
                 case 'c':
                     menuChangeCellFormula(theSpreadsheet);
                     break;
+
+                case 'g':
+                    menuPrintDependencyGraph(theSpreadsheet);
+                    break;
         
                     /* BONUS:
                 case 'r':
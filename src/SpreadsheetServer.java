@@ -0,0 +1,437 @@
+import java.io.*;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * SpreadsheetServer lets other processes on the same machine read and write the cells of a
+ * Spreadsheet over a simple line protocol. It only listens on the loopback address.
+ * <br>
+ * Each request is one line, answered with a line starting with "OK" or "ERR":
+ * <pre>
+ *   GET A1                 OK 42 (blank for an empty cell, #ERROR for an error)
+ *   SET A1 B2*3            OK &lt;version&gt;
+ *   BATCH 2                (followed by 2 lines of cell=formula) OK &lt;version&gt;
+ *   RANGE A1 C2            OK 2 3, then 2 lines of 3 tab separated values; at most MAX_RANGE_CELLS cells
+ *   QUIT                   closes the connection
+ * </pre>
+ * Reads are answered straight from the latest published SheetSnapshot. Writes are handed to a
+ * single writer thread through a queue; writes that are waiting together are applied as one
+ * batch with one recalculation. Each connection gets its own virtual thread when the Java
+ * runtime supports them, and a pooled platform thread otherwise.
+ * @author Chelsea Dacones
+ * @author Makai Martines
+ * @author Elias Peterson
+ * @author Alexis Zakrzewski
+ */
+public class SpreadsheetServer implements Closeable {
+    /** The most writes the writer thread will merge into a single recalculation. */
+    private static final int MAX_WRITES_PER_BATCH = 1024;
+
+    /** The most cells one RANGE request may ask for, so one request can't make us format a whole giant sheet. */
+    static final int MAX_RANGE_CELLS = 1 << 20;
+
+    /** The number of connections the operating system may queue before we accept them. */
+    private static final int ACCEPT_BACKLOG = 4096;
+
+    /** The spreadsheet being served. */
+    private final Spreadsheet mySheet;
+
+    /** The socket we accept connections on. */
+    private final ServerSocket myServerSocket;
+
+    /** Runs one task per connection. */
+    private final ExecutorService myConnections;
+
+    /** Writes waiting for the writer thread. */
+    private final BlockingQueue<Write> myWrites = new LinkedBlockingQueue<>();
+
+    /** The thread accepting connections. */
+    private final Thread myAcceptThread;
+
+    /** The only thread that changes the spreadsheet. */
+    private final Thread myWriterThread;
+
+    /** Set once close has been called. */
+    private volatile boolean myClosed;
+
+    /**
+     * Creates a server for the given spreadsheet, bound to the loopback address.
+     * Call start to begin accepting connections.
+     * @param theSheet The spreadsheet to serve.
+     * @param thePort The port to listen on, or 0 to pick any free port.
+     */
+    public SpreadsheetServer(final Spreadsheet theSheet, final int thePort) throws IOException {
+        mySheet = theSheet;
+        myServerSocket = new ServerSocket(thePort, ACCEPT_BACKLOG, InetAddress.getLoopbackAddress());
+        myConnections = newConnectionExecutor();
+        myAcceptThread = new Thread(this::acceptConnections, "spreadsheet-server-accept");
+        myWriterThread = new Thread(this::applyWrites, "spreadsheet-server-writer");
+        myWriterThread.setDaemon(true);
+    }
+
+    /**
+     * Runs the server from the command line until the process is killed.
+     * @param args "--serve", the port, and optionally a workbook file or a size such as "100x26"
+     */
+    public static int run(final String[] args) {
+        if (args.length < 2 || args.length > 3) {
+            System.err.println("Usage: SpreadsheetApp --serve <port> [workbook | <rows>x<columns>]");
+            return 2;
+        }
+        try {
+            Spreadsheet sheet;
+            if (args.length == 2) {
+                sheet = new Spreadsheet(100, 26);
+            } else if (args[2].matches("\\d+x\\d+")) {
+                String[] size = args[2].split("x");
+                sheet = new Spreadsheet(Integer.parseInt(size[0]), Integer.parseInt(size[1]));
+            } else {
+                sheet = Spreadsheet.loadFromFile(args[2]);
+            }
+            SpreadsheetServer server = new SpreadsheetServer(sheet, Integer.parseInt(args[1]));
+            server.start();
+            System.err.println("Serving on 127.0.0.1:" + server.getPort());
+            server.myAcceptThread.join();
+            return 0;
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Error: " + e.getMessage());
+            return 1;
+        } catch (InterruptedException e) {
+            return 1;
+        }
+    }
+
+    /**
+     * Starts accepting connections.
+     */
+    public void start() {
+        myWriterThread.start();
+        myAcceptThread.start();
+    }
+
+    /**
+     * @return The port this server is listening on.
+     */
+    public int getPort() {
+        return myServerSocket.getLocalPort();
+    }
+
+    /**
+     * Stops accepting connections and stops the writer. Writes still queued are failed.
+     */
+    @Override
+    public void close() throws IOException {
+        myClosed = true;
+        myServerSocket.close();
+        myConnections.shutdownNow();
+        myWriterThread.interrupt();
+        Write write;
+        while ((write = myWrites.poll()) != null) {
+            write.myResult.completeExceptionally(new IOException("Server closed"));
+        }
+    }
+
+    /**
+     * Creates an executor that starts a virtual thread per task if this runtime has virtual threads.
+     * They are looked up reflectively since the project still compiles for Java 17.
+     * @return The executor to run connections on.
+     */
+    private static ExecutorService newConnectionExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // No virtual threads (or only as a disabled preview), so fall back to pooled threads.
+            return Executors.newCachedThreadPool(task -> {
+                Thread thread = new Thread(task, "spreadsheet-server-connection");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * Accepts connections until the server is closed.
+     */
+    private void acceptConnections() {
+        while (!myClosed) {
+            try {
+                Socket socket = myServerSocket.accept();
+                socket.setTcpNoDelay(true);
+                myConnections.execute(() -> serve(socket));
+            } catch (IOException | RejectedExecutionException e) {
+                if (!myClosed) {
+                    System.err.println("Error accepting connection: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Answers requests on one connection until the client quits or disconnects.
+     * @param theSocket The client's connection.
+     */
+    private void serve(final Socket theSocket) {
+        try (theSocket;
+             BufferedReader in = new BufferedReader(
+                     new InputStreamReader(theSocket.getInputStream(), StandardCharsets.UTF_8));
+             Writer out = new BufferedWriter(
+                     new OutputStreamWriter(theSocket.getOutputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.trim().equalsIgnoreCase("QUIT")) break;
+                try {
+                    handle(line, in, out);
+                } catch (IllegalArgumentException e) {
+                    out.write("ERR " + e.getMessage() + "\n");
+                }
+                // Don't make the client wait for data we've already got if it pipelines requests.
+                if (!in.ready()) {
+                    out.flush();
+                }
+            }
+        } catch (SocketException e) {
+            // The client went away; nothing to do.
+        } catch (IOException e) {
+            System.err.println("Error serving connection: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Answers one request.
+     * @param theLine The request line.
+     * @param theIn The connection's input, for requests that span several lines.
+     * @param theOut The connection's output.
+     * @throws IllegalArgumentException If the request is malformed or rejected.
+     */
+    private void handle(final String theLine, final BufferedReader theIn, final Writer theOut) throws IOException {
+        String[] parts = theLine.trim().split("\\s+", 3);
+        String command = parts[0].toUpperCase();
+        switch (command) {
+            case "GET": {
+                requireArguments(parts, 2, "GET <cell>");
+                CellToken cell = parseCell(parts[1], false);
+                theOut.write("OK " + mySheet.calculate(Collections.singletonList(cell)).getText(cell.getRow(), cell.getColumn())
+                        + "\n");
+                break;
+            }
+            case "SET": {
+                requireArguments(parts, 2, "SET <cell> <formula>");
+                Map<CellToken, String> edit = new LinkedHashMap<>();
+                edit.put(parseCell(parts[1], true), parts.length == 3 ? parts[2] : "");
+                theOut.write("OK " + submit(edit) + "\n");
+                break;
+            }
+            case "BATCH": {
+                requireArguments(parts, 2, "BATCH <count>");
+                int count = parseCount(parts[1]);
+                // Read the whole batch before checking any of it, so a bad line can't leave the
+                // rest of the batch to be read as requests.
+                List<String> editLines = new ArrayList<>();
+                for (int i = 0; i < count; i++) {
+                    String editLine = theIn.readLine();
+                    if (editLine == null) {
+                        return;
+                    }
+                    editLines.add(editLine);
+                }
+                theOut.write("OK " + submit(parseEdits(editLines)) + "\n");
+                break;
+            }
+            case "RANGE": {
+                requireArguments(parts, 3, "RANGE <from cell> <to cell>");
+                CellToken from = parseCell(parts[1], false);
+                CellToken to = parseCell(parts[2], false);
+                writeRange(from, to, theOut);
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("unknown command " + parts[0]);
+        }
+    }
+
+    /**
+     * Writes the values of a rectangular range, all taken from one snapshot.
+     * @param theFrom One corner of the range.
+     * @param theTo The opposite corner of the range.
+     * @param theOut Where to write the values.
+     * @throws IllegalArgumentException If the range has more than MAX_RANGE_CELLS cells.
+     */
+    private void writeRange(final CellToken theFrom, final CellToken theTo, final Writer theOut) throws IOException {
+        int top = Math.min(theFrom.getRow(), theTo.getRow());
+        int bottom = Math.max(theFrom.getRow(), theTo.getRow());
+        int left = Math.min(theFrom.getColumn(), theTo.getColumn());
+        int right = Math.max(theFrom.getColumn(), theTo.getColumn());
+        long cells = (long) (bottom - top + 1) * (right - left + 1);
+        if (cells > MAX_RANGE_CELLS) {
+            throw new IllegalArgumentException("range of " + cells + " cells is over the limit of " + MAX_RANGE_CELLS);
+        }
+        SheetSnapshot snapshot = mySheet.calculateRange(top, left, bottom, right);
+        theOut.write("OK " + (bottom - top + 1) + " " + (right - left + 1) + "\n");
+        for (int row = top; row <= bottom; row++) {
+            for (int column = left; column <= right; column++) {
+                if (column > left) theOut.write('\t');
+                theOut.write(snapshot.getText(row, column));
+            }
+            theOut.write('\n');
+        }
+    }
+
+    /**
+     * Queues edits for the writer thread and waits for them to be applied.
+     * @param theEdits The new formula of each cell to change.
+     * @return The version of the first snapshot that includes the edits.
+     * @throws IllegalArgumentException If the edits were rejected.
+     */
+    private long submit(final Map<CellToken, String> theEdits) throws IOException {
+        Write write = new Write(theEdits);
+        myWrites.add(write);
+        try {
+            return write.myResult.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for the writer", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IllegalArgumentException(e.getCause().getMessage() == null
+                    ? e.getCause().getClass().getSimpleName() : e.getCause().getMessage());
+        }
+    }
+
+    /**
+     * The writer thread's loop. It takes every write that is waiting, applies them together with
+     * one recalculation, and if that fails applies them one by one so only the bad ones fail.
+     */
+    private void applyWrites() {
+        List<Write> pending = new ArrayList<>();
+        while (!myClosed) {
+            try {
+                pending.add(myWrites.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            myWrites.drainTo(pending, MAX_WRITES_PER_BATCH - 1);
+
+            if (pending.size() > 1) {
+                Map<CellToken, String> merged = new LinkedHashMap<>();
+                for (Write write : pending) {
+                    merged.putAll(write.myEdits);
+                }
+                try {
+                    mySheet.changeCellFormulasAndRecalculate(merged);
+                    long version = mySheet.getSnapshot().getVersion();
+                    for (Write write : pending) {
+                        write.myResult.complete(version);
+                    }
+                    pending.clear();
+                    continue;
+                } catch (RuntimeException e) {
+                    // Nothing was changed, so fall through and find out which writes were the problem.
+                }
+            }
+            for (Write write : pending) {
+                try {
+                    mySheet.changeCellFormulasAndRecalculate(write.myEdits);
+                    write.myResult.complete(mySheet.getSnapshot().getVersion());
+                } catch (RuntimeException e) {
+                    write.myResult.completeExceptionally(e);
+                }
+            }
+            pending.clear();
+        }
+    }
+
+    /**
+     * Parses a cell reference such as "B12" and checks that it is inside the spreadsheet, or for
+     * an edit, that the spreadsheet can grow to include it.
+     * @param theText The text to parse.
+     * @param theEditing True if the cell is to be edited.
+     * @return The CellToken the text refers to.
+     */
+    private CellToken parseCell(final String theText, final boolean theEditing) {
+        CellToken cellToken = new CellToken();
+        String text = theText.trim();
+        int end = CellAddress.decode(text, 0, text.length(), cellToken);
+        if (cellToken.getRow() == -1 || end != text.length()
+                || !(theEditing ? mySheet.isInReach(cellToken) : mySheet.isInBounds(cellToken))) {
+            throw new IllegalArgumentException("bad cell " + text);
+        }
+        return cellToken;
+    }
+
+    /**
+     * Parses the lines of a BATCH request.
+     * @param theLines The lines, each of the form cell=formula.
+     * @return The new formula of each cell, in the order given.
+     * @throws IllegalArgumentException If any line is malformed, naming the first bad line.
+     */
+    private Map<CellToken, String> parseEdits(final List<String> theLines) {
+        Map<CellToken, String> edits = new LinkedHashMap<>();
+        for (int i = 0; i < theLines.size(); i++) {
+            String editLine = theLines.get(i);
+            int equals = editLine.indexOf('=');
+            try {
+                if (equals < 0) {
+                    throw new IllegalArgumentException("expected cell=formula");
+                }
+                edits.put(parseCell(editLine.substring(0, equals), true), editLine.substring(equals + 1).trim());
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("line " + (i + 1) + ": " + e.getMessage());
+            }
+        }
+        return edits;
+    }
+
+    /**
+     * Parses the count of a BATCH request.
+     */
+    private static int parseCount(final String theText) {
+        try {
+            int count = Integer.parseInt(theText.trim());
+            if (count < 0) throw new NumberFormatException();
+            return count;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("bad count " + theText);
+        }
+    }
+
+    /**
+     * Checks that a request has at least the given number of parts.
+     */
+    private static void requireArguments(final String[] theParts, final int theCount, final String theUsage) {
+        if (theParts.length < theCount) {
+            throw new IllegalArgumentException("usage: " + theUsage);
+        }
+    }
+
+    /**
+     * Write is one client's request to change some cells, waiting for the writer thread.
+     */
+    private static class Write {
+        /** The new formula of each cell to change. */
+        private final Map<CellToken, String> myEdits;
+
+        /** Completed with the published version once the edits are applied. */
+        private final CompletableFuture<Long> myResult = new CompletableFuture<>();
+
+        /**
+         * Creates a write.
+         * @param theEdits The new formula of each cell to change.
+         */
+        Write(final Map<CellToken, String> theEdits) {
+            myEdits = theEdits;
+        }
+    }
+}
@@ -0,0 +1,196 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ValueChanges collects the new values a recalculation computes, in the order it computed
+ * them, so they can be read back by later formulas in the same recalculation and then
+ * published together as the next snapshot.
+ * <br>
+ * Besides single cells, it can hold runs of rows in one column, as computed in bulk for an
+ * ArrayFormula, without indexing each cell of the run separately.
+ * @author Chelsea Dacones
+ * @author Makai Martines
+ * @author Elias Peterson
+ * @author Alexis Zakrzewski
+ */
+final class ValueChanges {
+    /** The position of each changed cell in the arrays below. */
+    private final Map<CellToken, Integer> myIndex = new HashMap<>();
+
+    /** Reused to look cells up without allocating a CellToken per lookup. */
+    private final CellToken myLookup = new CellToken();
+
+    private int[] myRows = new int[16];
+    private int[] myColumns = new int[16];
+    private int[] myValues = new int[16];
+    private byte[] myStatuses = new byte[16];
+    private int mySize;
+
+    /** The column runs, in the order they were recorded. */
+    private final List<ColumnRun> myRuns = new ArrayList<>();
+
+    /**
+     * Records a cell's new value. A cell may only be recorded once.
+     * @param theRow The row of the cell.
+     * @param theColumn The column of the cell.
+     * @param theValue The new value.
+     * @param theStatus SheetSnapshot.EMPTY, NUMBER or ERROR.
+     */
+    void put(final int theRow, final int theColumn, final int theValue, final byte theStatus) {
+        if (mySize == myRows.length) {
+            final int capacity = mySize * 2;
+            myRows = Arrays.copyOf(myRows, capacity);
+            myColumns = Arrays.copyOf(myColumns, capacity);
+            myValues = Arrays.copyOf(myValues, capacity);
+            myStatuses = Arrays.copyOf(myStatuses, capacity);
+        }
+        myIndex.put(new CellToken(theColumn, theRow), mySize);
+        myRows[mySize] = theRow;
+        myColumns[mySize] = theColumn;
+        myValues[mySize] = theValue;
+        myStatuses[mySize] = theStatus;
+        mySize++;
+    }
+
+    /**
+     * Finds where a cell was recorded.
+     * @param theRow The row of the cell.
+     * @param theColumn The column of the cell.
+     * @return The cell's position, or -1 if it hasn't been recorded.
+     */
+    int indexOf(final int theRow, final int theColumn) {
+        myLookup.setRow(theRow);
+        myLookup.setColumn(theColumn);
+        final Integer index = myIndex.get(myLookup);
+        return index == null ? -1 : index;
+    }
+
+    /**
+     * Records the new values of a run of rows in one column. The run's cells must not also be
+     * recorded with put.
+     * @param theColumn The column of the run.
+     * @param theFromRow The first row of the run.
+     * @param theValues The new value of each row, counted from the first.
+     * @param theErrors Whether each row, counted from the first, holds an error.
+     */
+    void putColumn(final int theColumn, final int theFromRow, final int[] theValues, final boolean[] theErrors) {
+        myRuns.add(new ColumnRun(theColumn, theFromRow, theValues, theErrors));
+    }
+
+    /**
+     * Returns whether a cell's new value has been recorded, either on its own or in a column run.
+     * @param theRow The row of the cell.
+     * @param theColumn The column of the cell.
+     * @return True if the cell has been recorded.
+     */
+    boolean contains(final int theRow, final int theColumn) {
+        if (indexOf(theRow, theColumn) >= 0) {
+            return true;
+        }
+        for (ColumnRun run : myRuns) {
+            final int offset = theRow - run.myFromRow;
+            if (run.myColumn == theColumn && offset >= 0 && offset < run.myValues.length) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reads a cell's new value if it has been recorded, and its current value otherwise.
+     * @param theRow The row of the cell.
+     * @param theColumn The column of the cell.
+     * @param theCurrent The values from before this recalculation.
+     * @return The cell's value.
+     * @throws ArithmeticException If the cell holds an error.
+     */
+    int read(final int theRow, final int theColumn, final CellValues theCurrent) {
+        final int index = indexOf(theRow, theColumn);
+        if (index >= 0) {
+            if (myStatuses[index] == SheetSnapshot.ERROR) {
+                throw new ArithmeticException(CellAddress.toString(theColumn, theRow) + " holds an error");
+            }
+            return myValues[index];
+        }
+        for (ColumnRun run : myRuns) {
+            final int offset = theRow - run.myFromRow;
+            if (run.myColumn == theColumn && offset >= 0 && offset < run.myValues.length) {
+                if (run.myErrors[offset]) {
+                    throw new ArithmeticException(CellAddress.toString(theColumn, theRow) + " holds an error");
+                }
+                return run.myValues[offset];
+            }
+        }
+        return theCurrent.getValue(theRow, theColumn);
+    }
+
+    /** @return The number of recorded column runs. */
+    int runCount() {
+        return myRuns.size();
+    }
+
+    /** @return The column of the run at the given position. */
+    int getRunColumn(final int theRun) {
+        return myRuns.get(theRun).myColumn;
+    }
+
+    /** @return The first row of the run at the given position. */
+    int getRunFromRow(final int theRun) {
+        return myRuns.get(theRun).myFromRow;
+    }
+
+    /** @return The values of the run at the given position; not to be changed. */
+    int[] getRunValues(final int theRun) {
+        return myRuns.get(theRun).myValues;
+    }
+
+    /** @return Which rows of the run at the given position hold an error; not to be changed. */
+    boolean[] getRunErrors(final int theRun) {
+        return myRuns.get(theRun).myErrors;
+    }
+
+    /** @return The number of recorded cells. */
+    int size() {
+        return mySize;
+    }
+
+    /** @return The row of the cell at the given position. */
+    int getRow(final int theIndex) {
+        return myRows[theIndex];
+    }
+
+    /** @return The column of the cell at the given position. */
+    int getColumn(final int theIndex) {
+        return myColumns[theIndex];
+    }
+
+    /** @return The value of the cell at the given position. */
+    int getValue(final int theIndex) {
+        return myValues[theIndex];
+    }
+
+    /** @return The status of the cell at the given position. */
+    byte getStatus(final int theIndex) {
+        return myStatuses[theIndex];
+    }
+
+    /**
+     * The new values of a run of rows in one column.
+     */
+    private static final class ColumnRun {
+        private final int myColumn;
+        private final int myFromRow;
+        private final int[] myValues;
+        private final boolean[] myErrors;
+
+        ColumnRun(final int theColumn, final int theFromRow, final int[] theValues, final boolean[] theErrors) {
+            myColumn = theColumn;
+            myFromRow = theFromRow;
+            myValues = theValues;
+            myErrors = theErrors;
+        }
+    }
+}
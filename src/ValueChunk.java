@@ -0,0 +1,67 @@
+/**
+ * ValueChunk stores the computed values of a run of consecutive rows in one column, as
+ * primitive values plus two bitmaps that give each cell's status (empty, number or error).
+ * Chunks are shared between snapshots, so a chunk must not be changed once a snapshot that
+ * holds it has been published.
+ * @author Chelsea Dacones
+ * @author Makai Martines
+ * @author Elias Peterson
+ * @author Alexis Zakrzewski
+ */
+abstract class ValueChunk {
+    /** The base two logarithm of the number of rows in a full chunk. */
+    static final int SHIFT = 12;
+
+    /** The number of rows in a full chunk. */
+    static final int ROWS = 1 << SHIFT;
+
+    /** Masks a row number down to its position within its chunk. */
+    static final int MASK = ROWS - 1;
+
+    /**
+     * @return The number of rows in this chunk.
+     */
+    abstract int size();
+
+    /**
+     * @param theIndex The row within this chunk.
+     * @return The value stored for that row.
+     */
+    abstract int getValue(int theIndex);
+
+    /**
+     * @param theIndex The row within this chunk.
+     * @return The status of that row: SheetSnapshot.EMPTY, NUMBER or ERROR.
+     */
+    abstract byte getStatus(int theIndex);
+
+    /**
+     * Stores a row's value and status.
+     * @param theIndex The row within this chunk.
+     * @param theValue The value, ignored unless the status is NUMBER.
+     * @param theStatus SheetSnapshot.EMPTY, NUMBER or ERROR.
+     */
+    abstract void set(int theIndex, int theValue, byte theStatus);
+
+    /**
+     * Copies a range of values into an array. Empty and error cells copy as 0.
+     * @param theFrom The first row within this chunk to copy.
+     * @param theDestination The array to copy into.
+     * @param theOffset Where in the array to put the first value.
+     * @param theLength How many values to copy.
+     */
+    abstract void copyValues(int theFrom, int[] theDestination, int theOffset, int theLength);
+
+    /**
+     * Adds up a range of values. Empty and error cells count as 0, so no status check is needed.
+     * @param theFrom The first row within this chunk.
+     * @param theTo One past the last row within this chunk.
+     * @return The sum of the values.
+     */
+    abstract long sum(int theFrom, int theTo);
+
+    /**
+     * @return A copy of this chunk, kept in the same kind of storage, that can be changed without affecting this one.
+     */
+    abstract ValueChunk copy();
+}
@@ -0,0 +1,212 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * ValueExport writes the computed values of a sheet, or of a rectangle of it, to a CSV or TSV
+ * file: one line per row and one field per column, with no headers. Cells without a formula are
+ * left blank, and cells holding an error are written as SheetSnapshot.ERROR_TEXT.
+ * <br>
+ * Every value comes from one snapshot, so the sheet can be edited while an export runs. The rows
+ * are split into chunks, and each chunk's numbers are formatted straight into a byte buffer on
+ * the common fork join pool, so several chunks are formatted at once while earlier ones are being
+ * written. The buffers are reused, and the chunks are written in order through one FileChannel,
+ * so an export makes no Strings and is limited by how fast the disk takes the bytes.
+ * @author Chelsea Dacones
+ * @author Makai Martines
+ * @author Elias Peterson
+ * @author Alexis Zakrzewski
+ */
+public final class ValueExport {
+    /**
+     * The layouts a file can be written in.
+     */
+    public enum Format {
+        /** Comma separated values. */
+        CSV((byte) ','),
+
+        /** Tab separated values. */
+        TSV((byte) '\t');
+
+        /** The byte between two fields of a line. */
+        private final byte mySeparator;
+
+        Format(final byte theSeparator) {
+            mySeparator = theSeparator;
+        }
+
+        /**
+         * Picks the format a file's name asks for.
+         * @param theFileName The file's name.
+         * @return TSV if the name ends in ".tsv" or ".txt", CSV otherwise.
+         */
+        public static Format forFileName(final String theFileName) {
+            String name = theFileName.toLowerCase();
+            return name.endsWith(".tsv") || name.endsWith(".txt") ? TSV : CSV;
+        }
+    }
+
+    /** The size of each chunk's buffer. */
+    static final int BUFFER_SIZE = 1 << 20;
+
+    /** The most bytes one cell's field can take, with its separator. */
+    private static final int MAX_FIELD = CellAddress.MAX_INT_LENGTH + 1;
+
+    /** How an error is written. */
+    private static final byte[] ERROR_BYTES = SheetSnapshot.ERROR_TEXT.getBytes(StandardCharsets.US_ASCII);
+
+    private ValueExport() {
+    }
+
+    /**
+     * Calculates every cell of a sheet and writes its values to a file.
+     * @param theSheet The sheet to export.
+     * @param theFile The file to write; replaced if it exists.
+     * @param theFormat The layout to write.
+     */
+    public static void exportSheet(final Spreadsheet theSheet, final Path theFile, final Format theFormat)
+            throws IOException {
+        SheetSnapshot snapshot = theSheet.calculateAll();
+        if (snapshot.getNumRows() == 0 || snapshot.getNumColumns() == 0) {
+            // A sheet made with no rows or columns has no rectangle to export.
+            Files.write(theFile, new byte[0]);
+            return;
+        }
+        export(snapshot, 0, 0, snapshot.getNumRows() - 1, snapshot.getNumColumns() - 1, theFile, theFormat);
+    }
+
+    /**
+     * Calculates a rectangle of a sheet and writes its values to a file.
+     * @param theSheet The sheet to export.
+     * @param theTop The first row of the rectangle.
+     * @param theLeft The first column of the rectangle.
+     * @param theBottom The last row of the rectangle.
+     * @param theRight The last column of the rectangle.
+     * @param theFile The file to write; replaced if it exists.
+     * @param theFormat The layout to write.
+     * @throws IllegalArgumentException If the rectangle isn't inside the sheet.
+     */
+    public static void exportRange(final Spreadsheet theSheet, final int theTop, final int theLeft,
+                                   final int theBottom, final int theRight, final Path theFile,
+                                   final Format theFormat) throws IOException {
+        checkRange(theSheet.getNumRows(), theSheet.getNumColumns(), theTop, theLeft, theBottom, theRight);
+        export(theSheet.calculateRange(theTop, theLeft, theBottom, theRight), theTop, theLeft, theBottom, theRight,
+                theFile, theFormat);
+    }
+
+    /**
+     * Writes a rectangle of a snapshot's values to a file.
+     * @param theSnapshot The values to write.
+     * @param theTop The first row of the rectangle.
+     * @param theLeft The first column of the rectangle.
+     * @param theBottom The last row of the rectangle.
+     * @param theRight The last column of the rectangle.
+     * @param theFile The file to write; replaced if it exists.
+     * @param theFormat The layout to write.
+     * @throws IllegalArgumentException If the rectangle isn't inside the snapshot.
+     */
+    public static void export(final SheetSnapshot theSnapshot, final int theTop, final int theLeft,
+                              final int theBottom, final int theRight, final Path theFile,
+                              final Format theFormat) throws IOException {
+        checkRange(theSnapshot.getNumRows(), theSnapshot.getNumColumns(), theTop, theLeft, theBottom, theRight);
+        final int lineSize = (theRight - theLeft + 1) * MAX_FIELD + 1;
+        final int chunkRows = Math.max(1, BUFFER_SIZE / lineSize);
+        // Enough chunks under way to keep every core formatting while one chunk is written.
+        final int inFlight = ForkJoinPool.getCommonPoolParallelism() + 1;
+        final Deque<ByteBuffer> free = new ArrayDeque<>();
+        for (int i = 0; i < inFlight; i++) {
+            free.add(ByteBuffer.allocate(Math.max(BUFFER_SIZE, lineSize)));
+        }
+        final Deque<CompletableFuture<ByteBuffer>> pending = new ArrayDeque<>();
+        try (FileChannel channel = FileChannel.open(theFile, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            for (int from = theTop; from <= theBottom; from += chunkRows) {
+                if (pending.size() == inFlight) {
+                    free.add(write(channel, pending.removeFirst()));
+                }
+                final int first = from;
+                final int last = Math.min(theBottom, from + chunkRows - 1);
+                final ByteBuffer buffer = free.removeFirst();
+                pending.add(CompletableFuture.supplyAsync(() -> format(theSnapshot, first, theLeft, last, theRight,
+                        theFormat.mySeparator, buffer)));
+            }
+            while (!pending.isEmpty()) {
+                write(channel, pending.removeFirst());
+            }
+        } finally {
+            // A failed write leaves chunks still being formatted; they only touch their own buffers.
+            for (CompletableFuture<ByteBuffer> chunk : pending) {
+                chunk.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Checks that a rectangle lies inside a sheet of the given size, with its corners in order.
+     * @throws IllegalArgumentException If it doesn't.
+     */
+    private static void checkRange(final int theRows, final int theColumns, final int theTop, final int theLeft,
+                                   final int theBottom, final int theRight) {
+        if (theTop < 0 || theLeft < 0 || theBottom >= theRows || theRight >= theColumns
+                || theTop > theBottom || theLeft > theRight) {
+            throw new IllegalArgumentException("Bad range: " + CellAddress.toString(theLeft, theTop) + ":"
+                    + CellAddress.toString(theRight, theBottom));
+        }
+    }
+
+    /**
+     * Waits for a chunk to be formatted and writes it.
+     * @return The chunk's buffer, to be used again.
+     */
+    private static ByteBuffer write(final FileChannel theChannel, final CompletableFuture<ByteBuffer> theChunk)
+            throws IOException {
+        ByteBuffer buffer;
+        try {
+            buffer = theChunk.join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+        }
+        while (buffer.hasRemaining()) {
+            theChannel.write(buffer);
+        }
+        return buffer;
+    }
+
+    /**
+     * Formats the lines of a run of rows into a buffer.
+     * @return The buffer, flipped for writing.
+     */
+    private static ByteBuffer format(final SheetSnapshot theSnapshot, final int theTop, final int theLeft,
+                                     final int theBottom, final int theRight, final byte theSeparator,
+                                     final ByteBuffer theBuffer) {
+        final byte[] bytes = theBuffer.array();
+        int position = 0;
+        for (int row = theTop; row <= theBottom; row++) {
+            for (int column = theLeft; column <= theRight; column++) {
+                if (column > theLeft) {
+                    bytes[position++] = theSeparator;
+                }
+                final byte status = theSnapshot.getStatus(row, column);
+                if (status == SheetSnapshot.NUMBER) {
+                    position = CellAddress.encodeInt(theSnapshot.getValue(row, column), bytes, position);
+                } else if (status == SheetSnapshot.ERROR) {
+                    System.arraycopy(ERROR_BYTES, 0, bytes, position, ERROR_BYTES.length);
+                    position += ERROR_BYTES.length;
+                }
+            }
+            bytes[position++] = '\n';
+        }
+        theBuffer.clear();
+        theBuffer.limit(position);
+        return theBuffer;
+    }
+}
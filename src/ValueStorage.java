@@ -0,0 +1,22 @@
+/**
+ * ValueStorage decides where a Spreadsheet keeps its computed values by creating the chunks
+ * they are stored in. The default keeps them on the Java heap; OffHeapValueStorage keeps them
+ * in native memory or a memory-mapped file instead. Formulas are kept on the heap either way.
+ * @author Chelsea Dacones
+ * @author Makai Martines
+ * @author Elias Peterson
+ * @author Alexis Zakrzewski
+ */
+public interface ValueStorage {
+    /**
+     * Keeps values in ordinary Java arrays.
+     */
+    ValueStorage HEAP = HeapValueChunk::new;
+
+    /**
+     * Creates a chunk of empty cells.
+     * @param theRows The number of rows in the chunk, at most ValueChunk.ROWS.
+     * @return The new chunk.
+     */
+    ValueChunk newChunk(int theRows);
+}
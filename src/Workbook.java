@@ -0,0 +1,423 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Workbook is a set of named Spreadsheets whose formulas can refer to each other's cells, written
+ * as "Sheet2!A1". Each sheet keeps its own cells, dependencies and locks; the workbook keeps the
+ * references between sheets: which cells on other sheets read each cell, and which sheets each
+ * sheet reads.
+ * <br>
+ * When a sheet's values change, the cells on other sheets that read them are recalculated. This
+ * happens in rounds: a round recalculates every waiting sheet that doesn't read, directly or
+ * through other sheets, any sheet that is still waiting. The sheets in a round don't depend on
+ * each other, so they are recalculated in parallel, each on its own core. For that to be
+ * possible, sheets may not read each other in a cycle, even if no cell would be part of a cycle.
+ * @author Chelsea Dacones
+ * @author Makai Martines
+ * @author Elias Peterson
+ * @author Alexis Zakrzewski
+ */
+public class Workbook {
+    /** The sheets by name, in the order they were added. Guarded by this. */
+    private final Map<String, Spreadsheet> mySheets = new LinkedHashMap<>();
+
+    /** For each sheet, for each of its cells that another sheet refers to, the cells that refer to it. */
+    private final Map<Spreadsheet, Map<CellToken, Set<SheetCell>>> myReaders = new ConcurrentHashMap<>();
+
+    /** For each sheet, how many of its formulas' references go to each other sheet. Guarded by this. */
+    private final Map<Spreadsheet, Map<Spreadsheet, Integer>> mySheetReads = new HashMap<>();
+
+    /**
+     * Adds an empty sheet to this workbook.
+     * @param theName The sheet's name: letters, digits and '_', not starting with a digit.
+     * @param theRows The number of rows in the sheet.
+     * @param theColumns The number of columns in the sheet.
+     * @return The new sheet.
+     * @throws IllegalArgumentException If the name isn't valid or is already used.
+     */
+    public synchronized Spreadsheet addSheet(final String theName, final int theRows, final int theColumns) {
+        if (theName.isEmpty() || Character.isDigit(theName.charAt(0))) {
+            throw new IllegalArgumentException("Bad sheet name: " + theName);
+        }
+        for (int i = 0; i < theName.length(); i++) {
+            if (!Character.isLetterOrDigit(theName.charAt(i)) && theName.charAt(i) != '_') {
+                throw new IllegalArgumentException("Bad sheet name: " + theName);
+            }
+        }
+        if (mySheets.containsKey(theName)) {
+            throw new IllegalArgumentException("There is already a sheet named " + theName);
+        }
+        Spreadsheet sheet = new Spreadsheet(theRows, theColumns, Spreadsheet.DEFAULT_STRIPE_ROWS,
+                Spreadsheet.DEFAULT_STRIPE_COLUMNS, ValueStorage.HEAP, this, theName);
+        mySheets.put(theName, sheet);
+        return sheet;
+    }
+
+    /**
+     * Returns the sheet with the given name.
+     * @param theName The sheet's name.
+     * @return The sheet, or null if there is none by that name.
+     */
+    public synchronized Spreadsheet getSheet(final String theName) {
+        return mySheets.get(theName);
+    }
+
+    /**
+     * @return Every sheet, in the order they were added.
+     */
+    public synchronized List<Spreadsheet> getSheets() {
+        return new ArrayList<>(mySheets.values());
+    }
+
+    /**
+     * Returns the sheets that a sheet's formulas refer to.
+     * @param theSheet The sheet.
+     * @return The sheets it reads.
+     */
+    public synchronized Set<Spreadsheet> getSheetsReadBy(final Spreadsheet theSheet) {
+        Map<Spreadsheet, Integer> reads = mySheetReads.get(theSheet);
+        return reads == null ? Collections.emptySet() : new HashSet<>(reads.keySet());
+    }
+
+    /**
+     * Changes the formulas of cells on several sheets at once, then recalculates. Each sheet's
+     * edits are applied together with its recalculation, and sheets that don't depend on each
+     * other are edited in parallel. If one sheet's edits are rejected, that sheet is left as it
+     * was, but the other sheets keep theirs.
+     * @param theEdits For each sheet name, the new formula of each cell to change on that sheet.
+     * @throws FormulaParseException If a formula isn't a valid expression; nothing is changed.
+     * @throws IllegalArgumentException If a sheet or cell doesn't exist or the edits would make
+     *                                  sheets read each other in a cycle, in which case nothing is
+     *                                  changed, or a sheet's edits create a cycle within it.
+     */
+    public void changeCellFormulasAndRecalculate(final Map<String, Map<CellToken, String>> theEdits) {
+        Map<Spreadsheet, Map<CellToken, String>> formulas = new HashMap<>();
+        for (Map.Entry<String, Map<CellToken, String>> entry : theEdits.entrySet()) {
+            Spreadsheet sheet = getSheet(entry.getKey());
+            if (sheet == null) {
+                throw new IllegalArgumentException("Unknown sheet " + entry.getKey());
+            }
+            for (CellToken cellToken : entry.getValue().keySet()) {
+                if (!sheet.isInReach(cellToken)) {
+                    throw new IllegalArgumentException("Bad cell: " + entry.getKey() + "!" + cellToken);
+                }
+            }
+            formulas.put(sheet, entry.getValue());
+        }
+        // Parsing only looks at the text, so every sheet's formulas are parsed at once.
+        Map<Spreadsheet, Map<CellToken, ExpressionTree>> trees = new ConcurrentHashMap<>();
+        formulas.keySet().parallelStream().forEach(sheet -> trees.put(sheet, sheet.parseEdits(formulas.get(sheet))));
+
+        // The sheets the edits will make each sheet read, which must be known to put the sheets in order.
+        Map<Spreadsheet, Set<Spreadsheet>> newReads = new HashMap<>();
+        for (Map.Entry<Spreadsheet, Map<CellToken, ExpressionTree>> entry : trees.entrySet()) {
+            for (ExpressionTree tree : entry.getValue().values()) {
+                for (SheetReference reference : tree.getSheetReferences()) {
+                    newReads.computeIfAbsent(entry.getKey(), k -> new HashSet<>()).add(reference.getSheet());
+                }
+            }
+        }
+        synchronized (this) {
+            if (hasSheetCycle(newReads)) {
+                throw new IllegalArgumentException("Cycle found between sheets");
+            }
+        }
+        recalculate(formulas, trees, new HashMap<>(), newReads);
+    }
+
+    /**
+     * Recalculates the cells on other sheets that read cells whose values have changed.
+     * @param theSheet The sheet whose values changed.
+     * @param theChangedCells The cells whose values may have changed.
+     */
+    void propagate(final Spreadsheet theSheet, final Collection<CellToken> theChangedCells) {
+        Map<Spreadsheet, Set<CellToken>> roots = new HashMap<>();
+        addReaders(theSheet, theChangedCells, roots);
+        if (!roots.isEmpty()) {
+            recalculate(new HashMap<>(), new HashMap<>(), roots, Collections.emptyMap());
+        }
+    }
+
+    /**
+     * Edits and recalculates sheets in rounds, each round taking the waiting sheets that don't read
+     * any other waiting sheet, and recalculating them in parallel. The cells on other sheets that
+     * read a changed value are added to the work still waiting.
+     * @param theFormulas The new formula text of the edited cells of each sheet.
+     * @param theTrees The new ExpressionTree of the edited cells of each sheet.
+     * @param theRoots The cells of each sheet to recalculate even though their formulas haven't changed.
+     * @param theNewReads The sheets each sheet will read once its edits are applied, beyond those it reads now.
+     */
+    private void recalculate(final Map<Spreadsheet, Map<CellToken, String>> theFormulas,
+                             final Map<Spreadsheet, Map<CellToken, ExpressionTree>> theTrees,
+                             final Map<Spreadsheet, Set<CellToken>> theRoots,
+                             final Map<Spreadsheet, Set<Spreadsheet>> theNewReads) {
+        RuntimeException failure = null;
+        Set<Spreadsheet> waiting = new HashSet<>(theFormulas.keySet());
+        waiting.addAll(theRoots.keySet());
+        while (!waiting.isEmpty()) {
+            List<Spreadsheet> ready = findReadySheets(waiting, theNewReads);
+            Map<Spreadsheet, Collection<CellToken>> changed = new ConcurrentHashMap<>();
+            List<RuntimeException> failures = Collections.synchronizedList(new ArrayList<>());
+            ready.parallelStream().forEach(sheet -> {
+                Map<CellToken, String> formulas = theFormulas.getOrDefault(sheet, Collections.emptyMap());
+                Map<CellToken, ExpressionTree> trees = theTrees.getOrDefault(sheet, Collections.emptyMap());
+                Collection<CellToken> roots = theRoots.getOrDefault(sheet, Collections.emptySet());
+                try {
+                    changed.put(sheet, sheet.applyEdits(formulas, trees, roots));
+                } catch (RuntimeException e) {
+                    failures.add(e);
+                    // The sheet's edits were undone, but it still has to catch up with the sheets it reads.
+                    if (!roots.isEmpty()) {
+                        changed.put(sheet, sheet.applyEdits(Collections.emptyMap(), Collections.emptyMap(), roots));
+                    }
+                }
+            });
+            if (failure == null && !failures.isEmpty()) {
+                failure = failures.get(0);
+            }
+            for (Spreadsheet sheet : ready) {
+                waiting.remove(sheet);
+                theFormulas.remove(sheet);
+                theTrees.remove(sheet);
+                theRoots.remove(sheet);
+            }
+            for (Map.Entry<Spreadsheet, Collection<CellToken>> entry : changed.entrySet()) {
+                addReaders(entry.getKey(), entry.getValue(), theRoots);
+            }
+            waiting.addAll(theRoots.keySet());
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Finds the waiting sheets that can be recalculated now: those that don't read any other
+     * waiting sheet, directly or through other sheets.
+     * @param theWaiting The sheets with work waiting.
+     * @param theNewReads The sheets each sheet will read once its edits are applied, beyond those it reads now.
+     * @return The sheets that are ready.
+     */
+    private synchronized List<Spreadsheet> findReadySheets(final Set<Spreadsheet> theWaiting,
+                                                           final Map<Spreadsheet, Set<Spreadsheet>> theNewReads) {
+        List<Spreadsheet> ready = new ArrayList<>();
+        for (Spreadsheet sheet : theWaiting) {
+            Set<Spreadsheet> read = new HashSet<>();
+            Deque<Spreadsheet> toVisit = new ArrayDeque<>();
+            toVisit.push(sheet);
+            boolean readsWaiting = false;
+            while (!toVisit.isEmpty() && !readsWaiting) {
+                for (Spreadsheet next : readSheets(toVisit.pop(), theNewReads)) {
+                    if (read.add(next)) {
+                        readsWaiting = theWaiting.contains(next);
+                        toVisit.push(next);
+                    }
+                    if (readsWaiting) break;
+                }
+            }
+            if (!readsWaiting) {
+                ready.add(sheet);
+            }
+        }
+        return ready;
+    }
+
+    /**
+     * Adds the cells on other sheets that read any of the given cells to the cells to recalculate.
+     * @param theSheet The sheet the cells are on.
+     * @param theCells The cells.
+     * @param theRoots The cells to recalculate on each sheet, which the readers are added to.
+     */
+    private void addReaders(final Spreadsheet theSheet, final Collection<CellToken> theCells,
+                            final Map<Spreadsheet, Set<CellToken>> theRoots) {
+        Map<CellToken, Set<SheetCell>> readers = myReaders.get(theSheet);
+        if (readers == null || readers.isEmpty()) {
+            return;
+        }
+        for (CellToken cellToken : theCells) {
+            Set<SheetCell> cellReaders = readers.get(cellToken);
+            if (cellReaders != null) {
+                for (SheetCell reader : cellReaders) {
+                    theRoots.computeIfAbsent(reader.mySheet, k -> new LinkedHashSet<>()).add(reader.myCell);
+                }
+            }
+        }
+    }
+
+    /**
+     * Records that a cell's formula has changed from one that refers to some cells on other sheets
+     * to one that refers to others.
+     * @param theSheet The sheet of the changed cell.
+     * @param theCellToken The changed cell.
+     * @param theOldReferences The old formula's references to other sheets.
+     * @param theNewReferences The new formula's references to other sheets.
+     */
+    void updateReaders(final Spreadsheet theSheet, final CellToken theCellToken,
+                       final List<SheetReference> theOldReferences, final List<SheetReference> theNewReferences) {
+        if (theOldReferences.isEmpty() && theNewReferences.isEmpty()) {
+            return;
+        }
+        SheetCell reader = new SheetCell(theSheet, new CellToken(theCellToken.getColumn(), theCellToken.getRow()));
+        synchronized (this) {
+            for (SheetReference reference : theOldReferences) {
+                Set<SheetCell> readers = myReaders.get(reference.getSheet()).get(reference.getCell());
+                readers.remove(reader);
+                Map<Spreadsheet, Integer> reads = mySheetReads.get(theSheet);
+                if (reads.merge(reference.getSheet(), -1, Integer::sum) == 0) {
+                    reads.remove(reference.getSheet());
+                }
+            }
+            for (SheetReference reference : theNewReferences) {
+                myReaders.computeIfAbsent(reference.getSheet(), k -> new ConcurrentHashMap<>())
+                        .computeIfAbsent(reference.getCell(), k -> ConcurrentHashMap.newKeySet()).add(reader);
+                mySheetReads.computeIfAbsent(theSheet, k -> new HashMap<>()).merge(reference.getSheet(), 1, Integer::sum);
+            }
+        }
+    }
+
+    /**
+     * Moves the cells of a sheet that read other sheets to where a Relocation puts them. The
+     * sheet has already dropped the readers that are gone. Called by the sheet while it holds
+     * all its locks.
+     * @param theSheet The sheet whose cells moved.
+     * @param theRelocation Where the cells move.
+     */
+    synchronized void relocateReaders(final Spreadsheet theSheet, final Relocation theRelocation) {
+        for (Map<CellToken, Set<SheetCell>> sheetReaders : myReaders.values()) {
+            for (Set<SheetCell> readers : sheetReaders.values()) {
+                List<SheetCell> moved = new ArrayList<>();
+                for (Iterator<SheetCell> iterator = readers.iterator(); iterator.hasNext();) {
+                    SheetCell reader = iterator.next();
+                    if (reader.mySheet == theSheet) {
+                        CellToken target = theRelocation.map(reader.myCell);
+                        if (target != reader.myCell) {
+                            iterator.remove();
+                            moved.add(new SheetCell(theSheet, target));
+                        }
+                    }
+                }
+                readers.addAll(moved);
+            }
+        }
+    }
+
+    /**
+     * Changes the formulas on other sheets that refer to cells of a sheet that moved, so they
+     * refer to the cells where they are now, or to #REF! for cells that are gone. The formulas
+     * are edited like any others, so the sheets that read them catch up too.
+     * @param theSheet The sheet whose cells moved.
+     * @param theRelocation Where the cells move.
+     */
+    void relocateReferences(final Spreadsheet theSheet, final Relocation theRelocation) {
+        Map<Spreadsheet, Map<CellToken, String>> formulas = new HashMap<>();
+        Map<Spreadsheet, Map<CellToken, ExpressionTree>> trees = new HashMap<>();
+        Map<CellToken, Set<SheetCell>> readers = myReaders.get(theSheet);
+        if (readers == null) {
+            return;
+        }
+        synchronized (this) {
+            for (Map.Entry<CellToken, Set<SheetCell>> entry : readers.entrySet()) {
+                if (theRelocation.map(entry.getKey()) == entry.getKey()) continue;
+                for (SheetCell reader : entry.getValue()) {
+                    Map<CellToken, ExpressionTree> sheetTrees = trees.computeIfAbsent(reader.mySheet, k -> new HashMap<>());
+                    if (sheetTrees.containsKey(reader.myCell)) continue;
+                    ExpressionTree tree = reader.mySheet.getCell(reader.myCell).getExpressionTree()
+                            .relocateReferences(theSheet, theRelocation);
+                    sheetTrees.put(reader.myCell, tree);
+                    formulas.computeIfAbsent(reader.mySheet, k -> new HashMap<>()).put(reader.myCell, tree.toFormula(0));
+                }
+            }
+        }
+        if (!formulas.isEmpty()) {
+            recalculate(formulas, trees, new HashMap<>(), Collections.emptyMap());
+        }
+    }
+
+    /**
+     * @return True if some sheets read each other in a cycle.
+     */
+    synchronized boolean hasSheetCycle() {
+        return hasSheetCycle(Collections.emptyMap());
+    }
+
+    /**
+     * Returns whether some sheets would read each other in a cycle if they also read some other sheets.
+     * @param theNewReads The extra sheets each sheet would read.
+     * @return True if there would be a cycle.
+     */
+    private boolean hasSheetCycle(final Map<Spreadsheet, Set<Spreadsheet>> theNewReads) {
+        // A depth first search, where a sheet still on the path being searched has been reached again.
+        Map<Spreadsheet, Boolean> onPath = new HashMap<>();
+        for (Spreadsheet sheet : mySheets.values()) {
+            if (!onPath.containsKey(sheet) && reachesItself(sheet, theNewReads, onPath)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Searches the sheets a sheet reads for a cycle.
+     * @param theSheet The sheet to search from.
+     * @param theNewReads The extra sheets each sheet would read.
+     * @param theOnPath True for each sheet on the path being searched, false once a sheet is finished.
+     * @return True if a cycle was found.
+     */
+    private boolean reachesItself(final Spreadsheet theSheet, final Map<Spreadsheet, Set<Spreadsheet>> theNewReads,
+                                  final Map<Spreadsheet, Boolean> theOnPath) {
+        theOnPath.put(theSheet, true);
+        for (Spreadsheet next : readSheets(theSheet, theNewReads)) {
+            Boolean state = theOnPath.get(next);
+            if (Boolean.TRUE.equals(state) || (state == null && reachesItself(next, theNewReads, theOnPath))) {
+                return true;
+            }
+        }
+        theOnPath.put(theSheet, false);
+        return false;
+    }
+
+    /**
+     * Returns the sheets a sheet reads now, together with those it will read.
+     * Must be called while synchronized on this.
+     */
+    private Set<Spreadsheet> readSheets(final Spreadsheet theSheet, final Map<Spreadsheet, Set<Spreadsheet>> theNewReads) {
+        Map<Spreadsheet, Integer> reads = mySheetReads.get(theSheet);
+        Set<Spreadsheet> newReads = theNewReads.get(theSheet);
+        if (newReads == null) {
+            return reads == null ? Collections.emptySet() : reads.keySet();
+        }
+        Set<Spreadsheet> all = new HashSet<>(newReads);
+        if (reads != null) {
+            all.addAll(reads.keySet());
+        }
+        return all;
+    }
+
+    /**
+     * SheetCell is a cell together with the sheet it is on.
+     */
+    private static final class SheetCell {
+        /** The sheet. */
+        private final Spreadsheet mySheet;
+
+        /** The cell. */
+        private final CellToken myCell;
+
+        SheetCell(final Spreadsheet theSheet, final CellToken theCell) {
+            mySheet = theSheet;
+            myCell = theCell;
+        }
+
+        @Override
+        public boolean equals(final Object theOther) {
+            if (!(theOther instanceof SheetCell)) return false;
+            SheetCell other = (SheetCell) theOther;
+            return other.mySheet == mySheet && other.myCell.equals(myCell);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(mySheet) + myCell.hashCode();
+        }
+    }
+}